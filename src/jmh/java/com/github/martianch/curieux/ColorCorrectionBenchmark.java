@@ -0,0 +1,38 @@
+package com.github.martianch.curieux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.awt.image.BufferedImage;
+
+public class ColorCorrectionBenchmark extends ImageBenchmarkBase {
+    BufferedImage color;
+    HsvRange hsvRange;
+
+    @Setup(Level.Trial)
+    public void setUpImages() {
+        color = colorImage();
+        hsvRange = HsvColorBalancer.getHsvRangeFromImage(0, width, 0, height, color, false, 1, 0., false);
+    }
+    @Benchmark
+    public BufferedImage stretchColorsRgb() {
+        return RgbColorBalancer.stretchColorsRgb(color, true, false);
+    }
+    @Benchmark
+    public BufferedImage stretchColorsUsingHsvRange() {
+        return HsvColorBalancer.stretchColorsUsingHsvRange(
+                hsvRange, HTargetRange.newFullRange(), color,
+                false, true, true,
+                false, false, false
+        );
+    }
+    @Benchmark
+    public BufferedImage gamma() {
+        return GammaColorBalancer.balanceColors(color, 2.2);
+    }
+    @Benchmark
+    public BufferedImage unglare() {
+        return BilinearDeglareWhite.unglare(color);
+    }
+}
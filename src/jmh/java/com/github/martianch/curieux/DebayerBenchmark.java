@@ -0,0 +1,50 @@
+package com.github.martianch.curieux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.awt.image.BufferedImage;
+
+public class DebayerBenchmark extends ImageBenchmarkBase {
+    BufferedImage bayer;
+    BufferedImage color;
+
+    @Setup(Level.Trial)
+    public void setUpImages() {
+        bayer = bayerImage();
+        color = colorImage();
+    }
+    @Benchmark
+    public BufferedImage debayerAvg() {
+        return Debayer.debayer_avg(bayer);
+    }
+    /** Closest match, mode 3 */
+    @Benchmark
+    public BufferedImage debayerClosestMatchSquare() {
+        return Debayer.debayer_closest_match_square(bayer);
+    }
+    /** Closest match, mode 3, one pixel at a time, for comparison */
+    @Benchmark
+    public BufferedImage debayerClosestMatchSquareReference() {
+        return DebayerClosestMatchTest.Reference.debayer_closest_match_square(bayer);
+    }
+    /** Closest match, mode 4 */
+    @Benchmark
+    public BufferedImage debayerClosestMatchWnseClockwise() {
+        return Debayer.debayer_closest_match_WNSE_clockwise(bayer);
+    }
+    /** Closest match, mode 4, one pixel at a time, for comparison */
+    @Benchmark
+    public BufferedImage debayerClosestMatchWnseClockwiseReference() {
+        return DebayerClosestMatchTest.Reference.debayer_closest_match_WNSE_clockwise(bayer);
+    }
+    @Benchmark
+    public BufferedImage debayerBicubic() {
+        return DebayerBicubic.debayer_bicubic(bayer);
+    }
+    @Benchmark
+    public BufferedImage redebayerBicubic() {
+        return RedebayerBicubic.redebayer_bicubic(color);
+    }
+}
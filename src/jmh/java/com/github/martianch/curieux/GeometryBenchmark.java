@@ -0,0 +1,39 @@
+package com.github.martianch.curieux;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+public class GeometryBenchmark extends ImageBenchmarkBase {
+    BufferedImage color;
+    FisheyeCorrection fisheyeCorrection;
+    AffineTransform rotation;
+
+    @Setup(Level.Trial)
+    public void setUpImages() {
+        color = colorImage();
+        fisheyeCorrection = FisheyeCorrection.defaultValue()
+                .withAlgo(FisheyeCorrectionAlgo.UNFISH1)
+                .withFunc(QuadraticPolynomial.of(0.0002, 0.9, 0.));
+        rotation = X3DViewer.rotationTransform(color, 7.5);
+    }
+    @Benchmark
+    public BufferedImage fisheyeCorrection() {
+        return FisheyeCorrectionAlgo.UNFISH1.doFisheyeCorrection(color, fisheyeCorrection);
+    }
+    @Benchmark
+    public BufferedImage rotate() {
+        return X3DViewer.rotate(color, rotation);
+    }
+    @Benchmark
+    public BufferedImage zoomIn() {
+        return X3DViewer.zoom(color, 2.5, color, 2.5, 0, 0, ImageResamplingMode.BICUBIC);
+    }
+    @Benchmark
+    public BufferedImage zoomOut() {
+        return X3DViewer.zoom(color, 0.4, color, 0.4, 0, 0, ImageResamplingMode.BICUBIC);
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.martianch.curieux;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parameters common for all image processing benchmarks:
+ * the size of the synthetic input image and the Par settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public abstract class ImageBenchmarkBase {
+    /** 1K: 1024x1024, 5K: 5120x2880, 20MP: 5472x3648 */
+    @Param({"1K", "5K", "20MP"})
+    public String size;
+    /** seq: sequential, N: a pool of N threads, all: a pool of all available processors */
+    @Param({"seq", "4", "all"})
+    public String parallelism;
+
+    int width;
+    int height;
+
+    @Setup(Level.Trial)
+    public void setUpPar() {
+        switch (size) {
+            case "1K": width = 1024; height = 1024; break;
+            case "5K": width = 5120; height = 2880; break;
+            case "20MP": width = 5472; height = 3648; break;
+            default: throw new IllegalArgumentException("unknown size: " + size);
+        }
+        int n;
+        switch (parallelism) {
+            case "seq": n = 0; break;
+            case "all": n = Par.Configurator.availableParallelism(); break;
+            default: n = Integer.parseInt(parallelism);
+        }
+        Par.Configurator.init(n, n);
+    }
+    @TearDown(Level.Trial)
+    public void tearDownPar() {
+        Par.Configurator.shutdownPar();
+    }
+
+    /** A raw image as we get it from the camera: one RGGB value per pixel, stored as gray in a color JPEG */
+    BufferedImage bayerImage() {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(1);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int type = (j & 1) << 1 | (i & 1);
+                int v = Math.min(255, (i * 7 + j * 3 + type * 40) % 200 + random.nextInt(56));
+                res.setRGB(i, j, v << 16 | v << 8 | v);
+            }
+        }
+        return res;
+    }
+    /** A color image with gradients and noise */
+    BufferedImage colorImage() {
+        PixelBuffer res = PixelBuffer.newRgbImage(width, height);
+        Random random = new Random(2);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int r = (i * 200 / width) + random.nextInt(40);
+                int g = (j * 200 / height) + random.nextInt(40);
+                int b = ((i + j) * 100 / (width + height)) + random.nextInt(100);
+                res.set(i, j, r << 16 | g << 8 | b);
+            }
+        }
+        return res.image;
+    }
+}
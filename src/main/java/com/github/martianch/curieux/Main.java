@@ -71,10 +71,16 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
-import java.awt.image.AffineTransformOp;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -87,6 +93,7 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.InvocationTargetException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -95,11 +102,16 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
@@ -110,9 +122,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -125,16 +139,22 @@ import java.util.Scanner;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.DoubleBinaryOperator;
@@ -144,6 +164,7 @@ import java.util.function.IntBinaryOperator;
 import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
 import java.util.function.IntUnaryOperator;
+import java.util.function.ObjIntConsumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
@@ -185,6 +206,11 @@ public class Main {
 
     public static void main(String[] args) throws Exception {
         System.out.println("args: "+ Arrays.toString(args));
+        if (args.length > 0 && BatchProcessor.BATCH_FLAG.equals(args[0])) {
+            System.setProperty("java.awt.headless", "true");
+            BatchProcessor.main(Arrays.asList(args).subList(1, args.length));
+            return;
+        }
         List<String> paths;
         switch (args.length) {
             case 0:
@@ -231,6 +257,261 @@ public class Main {
         return "Metal".equals(LOOK_AND_FEEL_NAME);
     }
 }
+/**
+ * Headless batch mode: runs the image processing pipeline of the viewer over many stereo pairs
+ * and writes the processed left and right images as PNG files.
+ * Without an output directory nothing is written, which makes a batch run a throughput benchmark.
+ */
+class BatchProcessor {
+    static final String BATCH_FLAG = "--batch";
+    static final String USAGE =
+            "Usage: " + BATCH_FLAG + " [options] [left right]...\n" +
+            "  --pairs FILE          a text file with one pair per line: \"left right\", or one path/URL of a pair\n" +
+            "  --out DIR             the directory for the processed images; without it, nothing is written\n" +
+            "  --threads N           how many pairs are processed at the same time (default: 2)\n" +
+            "  --repeat N            process all pairs N times (default: 1)\n" +
+            "  --debayer MODE        " + Arrays.toString(DebayerMode.values()) + "\n" +
+            "  --prefilter ALGO      DO_NOTHING or INTERPOLATE_BROKEN_PIXELS\n" +
+            "  --color ALGO,ALGO...  color correction algorithms, in the order of application\n" +
+            "  --fisheye PARAMETERS  fisheye correction, as in the \"parameters\" field of the fisheye correction dialog\n" +
+            "  --resampling MODE     " + Arrays.toString(ImageResamplingMode.values()) + "\n" +
+            "  --zoom Z, --zoom-l Z, --zoom-r Z, --offset DX,DY, --angle A, --angle-l A, --angle-r A\n" +
+            "  --fused-warp          do fisheye correction, rotation and zoom in one resampling\n" +
+            "  --demosaic-cache DIR  save the demosaiced images in DIR, and take them from there next time\n" +
+            "  --metrics             print the time spent in each processing stage\n";
+
+    final DisplayParameters displayParameters = new DisplayParameters();
+    final List<List<String>> pairs = new ArrayList<>();
+    File outputDirectory;
+    int nThreads = 2;
+    int nRepeats = 1;
+    boolean printMetrics;
+    boolean fusedWarp;
+    DemosaicDiskCache demosaicDiskCache;
+
+    static void main(List<String> args) throws Exception {
+        BatchProcessor batchProcessor;
+        try {
+            batchProcessor = fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        Par.init();
+        int nFailed = batchProcessor.run();
+        Par.Configurator.shutdownPar();
+        System.exit(nFailed == 0 ? 0 : 1);
+    }
+
+    static BatchProcessor fromArgs(List<String> args) throws IOException {
+        BatchProcessor res = new BatchProcessor();
+        DisplayParameters dp = res.displayParameters;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (!arg.startsWith("--")) {
+                paths.add(arg);
+                continue;
+            }
+            if ("--metrics".equals(arg)) {
+                res.printMetrics = true;
+                continue;
+            }
+            if ("--fused-warp".equals(arg)) {
+                res.fusedWarp = true;
+                continue;
+            }
+            if (i + 1 >= args.size()) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args.get(++i);
+            try {
+                switch (arg) {
+                    case "--pairs":
+                        for (String line : Files.readAllLines(Paths.get(value))) {
+                            res.addPair(line);
+                        }
+                        break;
+                    case "--out":
+                        res.outputDirectory = new File(value);
+                        break;
+                    case "--threads":
+                        res.nThreads = Math.max(1, Integer.parseInt(value));
+                        break;
+                    case "--repeat":
+                        res.nRepeats = Math.max(1, Integer.parseInt(value));
+                        break;
+                    case "--debayer":
+                        dp.debayerL = dp.debayerR = DebayerMode.valueOf(value);
+                        break;
+                    case "--prefilter":
+                        dp.preFilterL = dp.preFilterR = ColorCorrectionAlgo.valueOf(value);
+                        break;
+                    case "--color": {
+                        List<ColorCorrectionAlgo> algos = new ArrayList<>();
+                        for (String name : value.split("\\s*,\\s*")) {
+                            if (!name.isEmpty()) {
+                                algos.add(ColorCorrectionAlgo.valueOf(name));
+                            }
+                        }
+                        dp.lColorCorrection = dp.rColorCorrection = dp.lColorCorrection.copyWith(algos);
+                    }
+                    break;
+                    case "--fisheye": {
+                        FisheyeCorrection fc = FisheyeCorrection.fromParameterString(value, Collections.emptyMap());
+                        if (fc == null) {
+                            throw new IllegalArgumentException("Bad fisheye correction parameters: " + value);
+                        }
+                        dp.lFisheyeCorrection = dp.rFisheyeCorrection = fc;
+                    }
+                    break;
+                    case "--demosaic-cache":
+                        res.demosaicDiskCache = new DemosaicDiskCache(new File(value), DemosaicDiskCache.DEFAULT_MAX_BYTES);
+                        break;
+                    case "--resampling":
+                        dp.imageResamplingModeL = dp.imageResamplingModeR = ImageResamplingMode.valueOf(value);
+                        break;
+                    case "--zoom":
+                        dp.zoom = Double.parseDouble(value);
+                        break;
+                    case "--zoom-l":
+                        dp.zoomL = Double.parseDouble(value);
+                        break;
+                    case "--zoom-r":
+                        dp.zoomR = Double.parseDouble(value);
+                        break;
+                    case "--offset": {
+                        String[] xy = value.split("\\s*,\\s*");
+                        if (xy.length != 2) {
+                            throw new IllegalArgumentException("Bad offset: " + value + ", expected: DX,DY");
+                        }
+                        dp.offsetX = Integer.parseInt(xy[0]);
+                        dp.offsetY = Integer.parseInt(xy[1]);
+                    }
+                    break;
+                    case "--angle":
+                        dp.angle = Double.parseDouble(value);
+                        break;
+                    case "--angle-l":
+                        dp.angleL = Double.parseDouble(value);
+                        break;
+                    case "--angle-r":
+                        dp.angleR = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad number for " + arg + ": " + value);
+            }
+        }
+        if (paths.size() % 2 != 0) {
+            throw new IllegalArgumentException("Left and right paths must go in pairs: " + paths);
+        }
+        for (int i = 0; i < paths.size(); i += 2) {
+            res.pairs.add(FileLocations.twoPaths(HttpLocations.unPage(paths.get(i)), HttpLocations.unPage(paths.get(i + 1))));
+        }
+        if (res.pairs.isEmpty()) {
+            throw new IllegalArgumentException("No stereo pairs to process");
+        }
+        return res;
+    }
+    /** Add a line of a pairs file: "left right" or one path of a pair; empty lines and # comments are ignored */
+    void addPair(String line) {
+        String s = line.trim();
+        if (s.isEmpty() || s.startsWith("#")) {
+            return;
+        }
+        String[] lr = s.split("\\s+");
+        switch (lr.length) {
+            case 1:
+                pairs.add(FileLocations.twoPaths(HttpLocations.unPage(lr[0])));
+                break;
+            case 2:
+                pairs.add(FileLocations.twoPaths(HttpLocations.unPage(lr[0]), HttpLocations.unPage(lr[1])));
+                break;
+            default:
+                throw new IllegalArgumentException("Expected \"left right\", got: " + line);
+        }
+    }
+
+    /**
+     * Process all pairs, nThreads pairs at a time; each pair is processed by its own thread's X3DViewer,
+     * and within a pair, the images are processed in parallel as usual.
+     * @return the number of pairs that could not be processed
+     */
+    int run() throws InterruptedException {
+        if (outputDirectory != null) {
+            outputDirectory.mkdirs();
+        }
+        ThreadLocal<X3DViewer> viewers = ThreadLocal.withInitial(() -> {
+            X3DViewer x3dViewer = new X3DViewer();
+            x3dViewer.fusedWarp = fusedWarp;
+            x3dViewer.demosaicDiskCache = demosaicDiskCache;
+            return x3dViewer;
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        AtomicInteger nFailed = new AtomicInteger();
+        AtomicLong nPixels = new AtomicLong();
+        int nTotal = pairs.size() * nRepeats;
+        long startedAt = System.nanoTime();
+        for (int n = 0; n < nTotal; n++) {
+            List<String> pair = pairs.get(n % pairs.size());
+            String label = "[" + (n + 1) + "/" + nTotal + "] ";
+            executor.execute(() -> {
+                try {
+                    long t0 = System.nanoTime();
+                    long pixels = processPair(viewers.get(), pair);
+                    nPixels.addAndGet(pixels);
+                    System.out.println(label + pair.get(0) + " " + pair.get(1) + ": " + (System.nanoTime() - t0) / 1_000_000 + " ms"
+                            + (printMetrics ? "\n" + viewers.get().pipelineMetrics.toText() : "")
+                    );
+                } catch (Throwable t) {
+                    nFailed.incrementAndGet();
+                    System.out.println(label + pair.get(0) + " " + pair.get(1) + ": FAILED: " + t);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        System.out.println(String.format(
+                "Processed %d of %d pairs in %.3f s: %.3f pairs/s, %.3f MP/s (%d threads, %s)",
+                nTotal - nFailed.get(), nTotal, seconds, (nTotal - nFailed.get()) / seconds, nPixels.get() / 1e6 / seconds,
+                nThreads, Par.describe()
+        ));
+        return nFailed.get();
+    }
+    /** @return the number of input pixels processed */
+    long processPair(X3DViewer x3dViewer, List<String> pair) throws Exception {
+        ImageAndPath left = ImageAndPath.imageIoRead(pair.get(0), pair.get(0));
+        ImageAndPath right = ImageAndPath.imageIoRead(pair.get(1), pair.get(1));
+        for (ImageAndPath iap : Arrays.asList(left, right)) {
+            if (ImageAndPath.isDummyImage(iap.image)) {
+                throw new IOException("could not read " + iap.path);
+            }
+        }
+        var rd = new RawData(left, right);
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        List<BufferedImage> images = x3dViewer.processBothImages(rd, displayParameters, ms, ColorCorrection.Command.SHOW);
+        if (outputDirectory != null) {
+            for (boolean isRight : new boolean[]{false, true}) {
+                String path = isRight ? right.path : left.path;
+                File file = getOutputFile(path, isRight);
+                ScreenshotSaver.writePng(file, images.get(isRight ? 1 : 0),
+                        "Software", "Curious: X3D Viewer",
+                        "Description", UiController.processedImageDescription(path, displayParameters, isRight));
+            }
+        }
+        return (long) left.image.getWidth() * left.image.getHeight() + (long) right.image.getWidth() * right.image.getHeight();
+    }
+    File getOutputFile(String urlOrPath, boolean isRight) {
+        return new File(outputDirectory, FileLocations.getFileNameNoExt(urlOrPath) + (isRight ? ".right.png" : ".left.png"));
+    }
+}
 
 interface UiDefault {
     interface Measurement {
@@ -247,9 +528,16 @@ interface UiDefault {
     boolean SAVE_LEFT_RIGHT_IMAGES = true;
     boolean USE_CUSTOM_CROSSHAIR_CURSOR = true;
     int SIZER_POSITION_CODE = 7;
+    boolean VIEWPORT_RENDERING = false;
+    boolean FUSED_WARP = false;
+    boolean DEMOSAIC_DISK_CACHE = false;
+    int DECODED_IMAGE_CACHE_MB = DecodedImageCache.DEFAULT_MAX_MB;
     boolean UNTHUMBNAIL = true;
     boolean DND_TO_BOTH = true;
     boolean SHOW_URLS = true;
+    /** while a control is being adjusted: the delays of the preview and of setting the value */
+    int PREVIEW_DELAY_MS = 100;
+    int ADJUSTMENT_OVER_DELAY_MS = 700;
     // See also: getUiDefault() in different enum classes
 }
 interface UiSizes {
@@ -326,12 +614,19 @@ interface UiEventListener {
     Dimension getRawImageDimensions(boolean isRight);
     void setCustomStretchRgbParameters(CustomStretchRgbParameters customStretchRgbParameters, boolean isRight); //???
     void setCustomStretchHsvParameters(CustomStretchHsvParameters customStretchHsvParameters, boolean isRight); //???
+    void previewCustomStretchRgbParameters(CustomStretchRgbParameters customStretchRgbParameters, boolean isRight);
+    void previewCustomStretchHsvParameters(CustomStretchHsvParameters customStretchHsvParameters, boolean isRight);
     void setSaveOptions(boolean saveGif, boolean saveLeftRIght);
     void setUseCustomCrosshairCursor(boolean useCustomCrosshairCursor);
     void setGeometryIndicator(int position);
+    void setViewportRendering(boolean viewportRendering);
+    void setFusedWarp(boolean fusedWarp);
+    void setDemosaicDiskCache(boolean demosaicDiskCache);
+    void setDecodedImageCacheMb(int megabytes);
     void setFisheyeCorrection(boolean isRight, FisheyeCorrection fc);
     void setPreFilter(boolean isRight, boolean isOn);
     ParUiFacade getParUiFacade();
+    PipelineMetrics getPipelineMetrics();
 }
 
 enum GoToImageOptions {
@@ -998,6 +1293,10 @@ class BehavioralOptions {
     boolean saveLeftRightImages = UiDefault.SAVE_LEFT_RIGHT_IMAGES;
     boolean useCustomCrosshairCursor = UiDefault.USE_CUSTOM_CROSSHAIR_CURSOR;
     int sizerPosition = UiDefault.SIZER_POSITION_CODE;
+    boolean viewportRendering = UiDefault.VIEWPORT_RENDERING;
+    boolean fusedWarp = UiDefault.FUSED_WARP;
+    boolean demosaicDiskCache = UiDefault.DEMOSAIC_DISK_CACHE;
+    int decodedImageCacheMb = UiDefault.DECODED_IMAGE_CACHE_MB;
 }
 class DisplayParameters {
     double zoom, zoomL, zoomR;
@@ -1058,6 +1357,9 @@ class DisplayParameters {
         this.lFisheyeCorrection = lFisheyeCorrection;
         this.rFisheyeCorrection = rFisheyeCorrection;
     }
+    public DisplayParameters copy() {
+        return new DisplayParameters(zoom, zoomL, zoomR, offsetX, offsetY, angle, angleL, angleR, debayerL, debayerR, preFilterL, preFilterR, imageResamplingModeL, imageResamplingModeR, lColorCorrection, rColorCorrection, lFisheyeCorrection, rFisheyeCorrection);
+    }
     public DisplayParameters swapped() {
         return new DisplayParameters(zoom, zoomR, zoomL, -offsetX, -offsetY, angle, angleR, angleL, debayerR, debayerL, preFilterR, preFilterL, imageResamplingModeR, imageResamplingModeL, rColorCorrection, lColorCorrection, rFisheyeCorrection, lFisheyeCorrection);
     }
@@ -1183,7 +1485,7 @@ class ImageAndPath implements UiSizes.ImageAndPathConst {
                 try(
                     InputStream inputStream = uc.getInputStream()
                 ) {
-                    res = ImageIO.read(inputStream);
+                    res = GrayBuffer.compactIfGray(ImageIO.read(inputStream));
                     res.getWidth(); // throw an exception if null
                     long readAt = System.currentTimeMillis();
                     System.out.println("Read in " + (openedAt - startedAt) + ", " + (readAt - openedAt) + " ms");
@@ -1231,7 +1533,7 @@ class ImageAndPath implements UiSizes.ImageAndPathConst {
             }
         } else {
             try {
-                res = ImageIO.read(new File(path));
+                res = GrayBuffer.compactIfGray(ImageIO.read(new File(path)));
                 res.getWidth(); // throw an exception if null
             } catch (Throwable t) {
                 System.out.println("could not read file "+path);
@@ -1266,6 +1568,139 @@ class ImageAndPath implements UiSizes.ImageAndPathConst {
                 '}';
     }
 }
+/**
+ * Recently decoded images by the path they were loaded from (ImageAndPath.pathToLoad), so that going back
+ * to an image, say, to the previous frame of a sol, neither downloads nor decodes it again.
+ * The least recently used images are pushed out when the total goes over the budget, counting width*height*4
+ * bytes per image (and the budget is never more than a quarter of the heap). Images pushed out are kept
+ * via soft references: they are found again unless the garbage collector has needed the memory.
+ * Errors and other dummy images are not cached. A local file is loaded again if it has been modified.
+ */
+class DecodedImageCache {
+    static final int DEFAULT_MAX_MB = 512;
+    private static final DecodedImageCache DEFAULT = new DecodedImageCache(DEFAULT_MAX_MB);
+
+    private static class Entry {
+        final ImageAndPath image;
+        /** the last modification time of a local file, 0 for what is not a local file */
+        final long version;
+        final long bytes;
+
+        Entry(ImageAndPath image, long version) {
+            this.image = image;
+            this.version = version;
+            this.bytes = bytes(image.image);
+        }
+    }
+    /** the images within the budget, the least recently used first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** the images pushed out of the budget */
+    private final Map<String, SoftReference<Entry>> evicted = new HashMap<>();
+    private long maxBytes;
+    private long totalBytes;
+
+    DecodedImageCache(int maxMegabytes) {
+        this.maxBytes = (long) maxMegabytes << 20;
+    }
+    static DecodedImageCache getDefault() {
+        return DEFAULT;
+    }
+    static long bytes(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+    /** The image from the cache, or loaded (and cached if it is not an error) */
+    ImageAndPath read(String pathToLoad) {
+        long version = versionOf(pathToLoad);
+        ImageAndPath res = get(pathToLoad, version);
+        if (res == null) {
+            res = ImageAndPath.imageIoReadNoExc(pathToLoad, pathToLoad);
+            put(res, version);
+        }
+        return res;
+    }
+    /** The cached image, or null */
+    ImageAndPath get(String pathToLoad) {
+        return get(pathToLoad, versionOf(pathToLoad));
+    }
+    private synchronized ImageAndPath get(String pathToLoad, long version) {
+        Entry entry = entries.get(pathToLoad);
+        if (entry == null) {
+            SoftReference<Entry> ref = evicted.remove(pathToLoad);
+            entry = ref == null ? null : ref.get();
+            if (entry == null) {
+                return null;
+            }
+            // used again, so within the budget again
+            add(pathToLoad, entry);
+        }
+        if (entry.version != version) {
+            remove(pathToLoad);
+            return null;
+        }
+        return entry.image;
+    }
+    void put(ImageAndPath image) {
+        put(image, versionOf(image.pathToLoad));
+    }
+    private synchronized void put(ImageAndPath image, long version) {
+        if (ImageAndPath.isSpecialPath(image.pathToLoad) || ImageAndPath.isDummyImage(image.image)) {
+            return;
+        }
+        evicted.remove(image.pathToLoad);
+        add(image.pathToLoad, new Entry(image, version));
+    }
+    private void add(String pathToLoad, Entry entry) {
+        Entry old = entries.put(pathToLoad, entry);
+        if (old != null) {
+            totalBytes -= old.bytes;
+        }
+        totalBytes += entry.bytes;
+        trim();
+    }
+    private void remove(String pathToLoad) {
+        Entry old = entries.remove(pathToLoad);
+        if (old != null) {
+            totalBytes -= old.bytes;
+        }
+    }
+    private void trim() {
+        long budget = Math.min(maxBytes, Runtime.getRuntime().maxMemory() / 4);
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); totalBytes > budget && it.hasNext(); ) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue().bytes;
+            evicted.put(eldest.getKey(), new SoftReference<>(eldest.getValue()));
+        }
+        evicted.values().removeIf(ref -> ref.get() == null);
+    }
+    synchronized void setMaxMegabytes(int maxMegabytes) {
+        maxBytes = (long) maxMegabytes << 20;
+        trim();
+    }
+    synchronized void clear() {
+        entries.clear();
+        evicted.clear();
+        totalBytes = 0;
+    }
+    /** The bytes of the images within the budget */
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+    /** Whether the image is within the budget (and not only softly reachable) */
+    synchronized boolean isWithinBudget(String pathToLoad) {
+        return entries.containsKey(pathToLoad);
+    }
+    static long versionOf(String pathToLoad) {
+        if (ImageAndPath.isSpecialPath(pathToLoad)
+         || FileLocations.isUrl(pathToLoad)
+         || FileLocations.isCuriousLRUrn(pathToLoad)
+         || FileLocations.isCuriousMUrn(pathToLoad)
+        ) {
+            return 0;
+        }
+        return new File(pathToLoad).lastModified();
+    }
+}
 // MVC Model
 class RawData {
     final ImageAndPath left;
@@ -1560,6 +1995,16 @@ class PanelMeasurementStatus {
         res.centeringDY = this.centeringDY;
         return res;
     }
+    /** copy what processBothImages() has calculated for the displayed image */
+    public void setRenderingResultsFrom(PanelMeasurementStatus other) {
+        w = other.w;
+        h = other.h;
+        ifov = other.ifov;
+        descr = other.descr;
+        centeringDX = other.centeringDX;
+        centeringDY = other.centeringDY;
+        transform = other.transform;
+    }
     public BufferedImage drawMarks(BufferedImage img, MeasurementPointMark measurementPointMark) {
         BufferedImage res = img;
         // old version (xN, yN used to be int)
@@ -1602,19 +2047,22 @@ class PanelMeasurementStatus {
     public static BufferedImage copyImage(BufferedImage source){
         int width = source.getWidth();
         int height = source.getHeight();
-        BufferedImage b = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        PixelBuffer src = PixelBuffer.of(source);
+        PixelBuffer dst = PixelBuffer.newRgbImage(width, height);
         Par.splitFor(0, height, (from, to) -> {
+            int[] row = new int[width];
             for (int j = from; j < to; j++) {
-                for (int i = 0; i < width; i++) {
-                    b.setRGB(i, j, source.getRGB(i, j));
-                }
+                dst.setRow(0, j, width, src.getRow(0, j, width, row));
             }
         });
-        return b;
+        return dst.image;
     }
     public void setWHI(BufferedImage image, double new_ifov, String description) {
-        w = image.getWidth();
-        h = image.getHeight();
+        setWHI(image.getWidth(), image.getHeight(), new_ifov, description);
+    }
+    public void setWHI(int width, int height, double new_ifov, String description) {
+        w = width;
+        h = height;
         ifov = new_ifov;
         descr = description;
     }
@@ -1934,38 +2382,12 @@ class UiController implements UiEventListener {
     public void saveProcessedImage(boolean isRight) {
         try {
             String urlOrPath = isRight ? rawData.right.path : rawData.left.path;
-            RenderedImage bi = (RenderedImage)
-                    ((ImageIcon) (isRight ? x3dViewer.lblR : x3dViewer.lblL).getIcon()).getImage();
+            RenderedImage bi = x3dViewer.getDisplayedImage(isRight);
             x3dViewer.processedImageSaver.showSaveDialog(
                     x3dViewer.frame,
                     urlOrPath,
                     imgFile -> {
-                        String effects = isRight
-                            ? displayParameters.rColorCorrection.getShortDescription(rawData.right.path, displayParameters.getImageEffects(isRight))
-                            : displayParameters.lColorCorrection.getShortDescription(rawData.left.path, displayParameters.getImageEffects(isRight));
-                        if (effects.trim().isEmpty()) {
-                            effects = "none";
-                        }
-                        String effects2 = isRight
-                            ? displayParameters.rColorCorrection.getFullDescription(rawData.right.path, displayParameters.getImageEffects(isRight))
-                            : displayParameters.lColorCorrection.getFullDescription(rawData.left.path, displayParameters.getImageEffects(isRight));
-                        if (effects2.trim().isEmpty()) {
-                            effects2 = "none";
-                        }
-
-                        String fisheyeDescr = "";
-                        if(displayParameters.getFisheyeCorrection(isRight).algo.notNothing()) {
-                            fisheyeDescr = displayParameters.getFisheyeCorrection(isRight).parametersToString() + "\n";
-                        }
-                        String description =
-                                ( FileLocations.isNonLocalUrl(urlOrPath)
-                                ? "Original URL: " + urlOrPath + "\n"
-                                : ""
-                                )
-                                + "Exported from the Curious X3D Viewer.\n"
-                                + "Effects: "+effects + "\n"
-                                + "Effects_verbose: "+effects2 + "\n"
-                                + fisheyeDescr;
+                        String description = processedImageDescription(urlOrPath, displayParameters, isRight);
                         ScreenshotSaver.writePng(imgFile, bi,
                                 "Software", "Curious: X3D Viewer",
                                 "Description", description);
@@ -1977,6 +2399,32 @@ class UiController implements UiEventListener {
             e.printStackTrace();
         }
     }
+    /** The PNG "Description" of a processed image: where it comes from and what effects have been applied */
+    static String processedImageDescription(String urlOrPath, DisplayParameters displayParameters, boolean isRight) {
+        ColorCorrection colorCorrection = isRight ? displayParameters.rColorCorrection : displayParameters.lColorCorrection;
+        String effects = colorCorrection.getShortDescription(urlOrPath, displayParameters.getImageEffects(isRight));
+        if (effects.trim().isEmpty()) {
+            effects = "none";
+        }
+        String effects2 = colorCorrection.getFullDescription(urlOrPath, displayParameters.getImageEffects(isRight));
+        if (effects2.trim().isEmpty()) {
+            effects2 = "none";
+        }
+
+        String fisheyeDescr = "";
+        if(displayParameters.getFisheyeCorrection(isRight).algo.notNothing()) {
+            fisheyeDescr = displayParameters.getFisheyeCorrection(isRight).parametersToString() + "\n";
+        }
+        return
+                ( FileLocations.isNonLocalUrl(urlOrPath)
+                ? "Original URL: " + urlOrPath + "\n"
+                : ""
+                )
+                + "Exported from the Curious X3D Viewer.\n"
+                + "Effects: "+effects + "\n"
+                + "Effects_verbose: "+effects2 + "\n"
+                + fisheyeDescr;
+    }
 
     @Override
     public void gotoImage(GoToImageOptions goToImageOptions, boolean isRight, Optional<Integer> sol) {
@@ -2134,7 +2582,7 @@ class UiController implements UiEventListener {
         int marginX, marginY;
         {
             JButton source = (JButton) e.getSource();
-            ImageIcon icon = (ImageIcon) source.getIcon();
+            Icon icon = source.getIcon();
             marginX = Math.max(0, (source.getWidth() - icon.getIconWidth()) / 2);
             marginY = Math.max(0, (source.getHeight() - icon.getIconHeight()) / 2);
         }
@@ -2435,10 +2883,12 @@ class UiController implements UiEventListener {
     public void adjustZoomAngleOffsets(boolean isRight, int pointId) {
         adjustAngleModel(isRight);
         adjustZoomModel(isRight);
-        x3dViewer.updateViews(rawData, displayParameters, measurementStatus);
-        adjustOffsetsModel(1);
-        x3dViewer.updateViews(rawData, displayParameters, measurementStatus);
-        x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
+        // the offsets are calculated from the rotation transforms of the rendered images
+        x3dViewer.updateViews(rawData, displayParameters, measurementStatus, () -> {
+            adjustOffsetsModel(1);
+            x3dViewer.updateViews(rawData, displayParameters, measurementStatus);
+            x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
+        });
     }
     @Override
     public void escapePressed() {
@@ -2491,44 +2941,42 @@ class UiController implements UiEventListener {
     }
     @Override
     public RgbRange getViewportRgbRange(boolean isRight, boolean ignoreBroken) {
-        Rectangle visibleArea = x3dViewer.getViewportRectangle(isRight);
-        ColorCorrection lcc = insertSrgb3IfNotThere(displayParameters.lColorCorrection);
-        ColorCorrection rcc = insertSrgb3IfNotThere(displayParameters.rColorCorrection);
-        var dp = displayParameters
-                .withColorCorrection(lcc, rcc);
-        var bis = x3dViewer.processBothImages(rawData, dp, measurementStatus, ColorCorrection.Command.GET_RANGE_RGB);
-        var bi = bis.get(isRight ? 1 : 0);
-        int d = (int) Math.round(displayParameters.getFullZoom(isRight)); // TODO: BUG: this code is invoked BEFORE zoom(). d should be 1 or 2
-        var cr = RgbColorBalancer.getRgbRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, d);
-        return cr;
+        ColorCorrection cc = insertSrgb3IfNotThere(displayParameters.getColorCorrection(isRight));
+        return getViewportStats(isRight, cc, ColorCorrection.Command.GET_RANGE_RGB,
+                (visibleArea, bi) -> RgbColorBalancer.getRgbRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, 1));
     }
     @Override
     public HsvRange getViewportHsvRange(boolean isRight, boolean ignoreBroken, double hLower) {
-        Rectangle visibleArea = x3dViewer.getViewportRectangle(isRight);
-        ColorCorrection lcc = insertHsvcIfNotThere(displayParameters.lColorCorrection);
-        ColorCorrection rcc = insertHsvcIfNotThere(displayParameters.rColorCorrection);
-        var dp = displayParameters
-                .withColorCorrection(lcc, rcc);
-        var bis = x3dViewer.processBothImages(rawData, dp, measurementStatus, ColorCorrection.Command.GET_RANGE_HSV);
-        var bi = bis.get(isRight ? 1 : 0);
-        int d = (int) Math.round(displayParameters.getFullZoom(isRight)); // TODO: BUG: this code is invoked BEFORE zoom().  d should be 1 or 2
-        var hr = HsvColorBalancer.getHsvRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, d, hLower);
-        return hr;
+        ColorCorrection cc = insertHsvcIfNotThere(displayParameters.getColorCorrection(isRight));
+        return getViewportStats(isRight, cc, ColorCorrection.Command.GET_RANGE_HSV,
+                (visibleArea, bi) -> HsvColorBalancer.getHsvRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, 1, hLower));
     }
     public List<Object> getViewportStats(boolean isRight, boolean ignoreBroken) {
-        Rectangle visibleArea = x3dViewer.getViewportRectangle(isRight);
-        ColorCorrection lcc = insertGetStatsIfNotThere(displayParameters.lColorCorrection);
-        ColorCorrection rcc = insertGetStatsIfNotThere(displayParameters.rColorCorrection);
-        var dp = displayParameters
-                .withColorCorrection(lcc, rcc);
-        var bis = x3dViewer.processBothImages(rawData, dp, measurementStatus, ColorCorrection.Command.GET_RANGES_FOR_STATS);
-        var bi = bis.get(isRight ? 1 : 0);
-        int d = (int) Math.round(displayParameters.getFullZoom(isRight)); // TODO: BUG: this code is invoked BEFORE zoom(). d should be 1 or 2
-        var res = ParallelPair.<Object>creator().of(
-            () -> RgbColorBalancer.getRgbRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, d),
-            () -> HsvColorBalancer.getHsvRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, d, 0.)
-        ).toParallelPair().asList();
-        return res;
+        ColorCorrection cc = insertGetStatsIfNotThere(displayParameters.getColorCorrection(isRight));
+        return getViewportStats(isRight, cc, ColorCorrection.Command.GET_RANGES_FOR_STATS,
+                (visibleArea, bi) -> ParallelPair.<Object>creator().of(
+                        () -> RgbColorBalancer.getRgbRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, 1),
+                        () -> HsvColorBalancer.getHsvRangeWithStatsFromImage(visibleArea, bi, ignoreBroken, 1, 0.)
+                ).toParallelPair().asList());
+    }
+    /**
+     * The statistics are collected from the image at the chain position of the command, before rotation and zoom,
+     * in the part of it that is shown in the viewport; the geometry is that of the latest rendering.
+     */
+    private <T> T getViewportStats(boolean isRight, ColorCorrection cc, ColorCorrection.Command command, BiFunction<Rectangle, BufferedImage, T> stats) {
+        Rectangle viewport = x3dViewer.getViewportRectangle(isRight);
+        var dp = displayParameters.withColorCorrection(isRight, cc);
+        var pms = isRight ? measurementStatus.right : measurementStatus.left;
+        int offXL = dp.offsetX + measurementStatus.left.centeringDX - measurementStatus.right.centeringDX;
+        int offYL = dp.offsetY + measurementStatus.left.centeringDY - measurementStatus.right.centeringDY;
+        return Par.callOne(() -> x3dViewer.statsForArea(rawData, dp, command, isRight,
+                size -> X3DViewer.viewportInImage(
+                        viewport, size.width, size.height,
+                        pms.transform == null ? new AffineTransform() : pms.transform, dp.getFullZoom(isRight),
+                        isRight ? -offXL : offXL, isRight ? -offYL : offYL
+                ),
+                stats
+        ));
     }
     @Override
     public CustomStretchRgbParameters getCurrentCustomStretchRgbParameters(boolean isRight) {
@@ -2583,6 +3031,20 @@ class UiController implements UiEventListener {
         x3dViewer.updateViews(rawData, displayParameters=newDp, measurementStatus);
     }
     @Override
+    public void previewCustomStretchRgbParameters(CustomStretchRgbParameters customStretchRgbParameters, boolean isRight) {
+        ColorCorrection cc = displayParameters
+                .getColorCorrection(isRight)
+                .copyWith(customStretchRgbParameters);
+        x3dViewer.updatePreview(rawData, displayParameters.withColorCorrection(isRight, cc), measurementStatus);
+    }
+    @Override
+    public void previewCustomStretchHsvParameters(CustomStretchHsvParameters customStretchHsvParameters, boolean isRight) {
+        ColorCorrection cc = displayParameters
+                .getColorCorrection(isRight)
+                .copyWith(customStretchHsvParameters);
+        x3dViewer.updatePreview(rawData, displayParameters.withColorCorrection(isRight, cc), measurementStatus);
+    }
+    @Override
     public void setSaveOptions(boolean saveGif, boolean saveLeftRIght) {
         behavioralOptions.saveGif = saveGif;
         behavioralOptions.saveLeftRightImages = saveLeftRIght;
@@ -2598,6 +3060,29 @@ class UiController implements UiEventListener {
         behavioralOptions.sizerPosition = position;
         x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
     }
+    @Override
+    public void setViewportRendering(boolean viewportRendering) {
+        behavioralOptions.viewportRendering = viewportRendering;
+        x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
+        x3dViewer.updateViews(rawData, displayParameters, measurementStatus);
+    }
+    @Override
+    public void setFusedWarp(boolean fusedWarp) {
+        behavioralOptions.fusedWarp = fusedWarp;
+        x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
+        x3dViewer.updateViews(rawData, displayParameters, measurementStatus);
+    }
+    @Override
+    public void setDemosaicDiskCache(boolean demosaicDiskCache) {
+        behavioralOptions.demosaicDiskCache = demosaicDiskCache;
+        x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
+    }
+    @Override
+    public void setDecodedImageCacheMb(int megabytes) {
+        behavioralOptions.decodedImageCacheMb = megabytes;
+        DecodedImageCache.getDefault().setMaxMegabytes(megabytes);
+        x3dViewer.updateControls(displayParameters, measurementStatus, behavioralOptions);
+    }
     public void createAndShowViews() {
         x3dViewer.createViews(rawData, displayParameters, measurementStatus, this);
     }
@@ -2619,10 +3104,10 @@ class UiController implements UiEventListener {
         try {
             ImageAndPath l = rawData.left.isPathEqual(paths.get(0))
                            ? rawData.left
-                           : ImageAndPath.imageIoRead(ImageAndPath.IN_PROGRESS_PATH, paths.get(0));
+                           : cachedOrInProgress(paths.get(0));
             ImageAndPath r = rawData.right.isPathEqual(paths.get(1))
                            ? rawData.right
-                           : ImageAndPath.imageIoRead(ImageAndPath.IN_PROGRESS_PATH, paths.get(1));
+                           : cachedOrInProgress(paths.get(1));
             var rdWhileInProgress = new RawData(l, r);
             javax.swing.SwingUtilities.invokeLater(
                     () -> {
@@ -2636,9 +3121,18 @@ class UiController implements UiEventListener {
             throw new RuntimeException(e);
         }
     }
+    /** The image if it has been decoded recently, otherwise the "in progress" image */
+    static ImageAndPath cachedOrInProgress(String pathToLoad) throws IOException {
+        ImageAndPath res = DecodedImageCache.getDefault().get(pathToLoad);
+        return res != null ? res : ImageAndPath.imageIoRead(ImageAndPath.IN_PROGRESS_PATH, pathToLoad);
+    }
     public void updateRawDataAsync(String path1, String path2) {
         boolean sameLeftPath = rawData.left.isPathEqual(path1);
         boolean sameRightPath = rawData.right.isPathEqual(path2);
+        // going back to an image decoded recently is instant
+        DecodedImageCache decodedImages = DecodedImageCache.getDefault();
+        ImageAndPath image1 = sameLeftPath ? rawData.left : decodedImages.get(path1);
+        ImageAndPath image2 = sameRightPath ? rawData.right : decodedImages.get(path2);
         long timestamp = System.currentTimeMillis();
         if (!sameLeftPath) {
             lastLoadTimestampL = timestamp;
@@ -2653,14 +3147,14 @@ class UiController implements UiEventListener {
 //        System.out.println("path1: "+path1.equals(rawData.left.path) +"&&" + !ImageAndPath.isDummyImage(rawData.left.image));
 //        System.out.println("path2: "+path2.equals(rawData.right.path) +"&&"+ !ImageAndPath.isDummyImage(rawData.right.image));
         CompletableFuture<ImageAndPath> futureImage2 =
-                sameRightPath
-              ? CompletableFuture.completedFuture(rawData.right)
+                image2 != null
+              ? CompletableFuture.completedFuture(image2)
               : CompletableFuture
-                .supplyAsync(() -> ImageAndPath.imageIoReadNoExc(path2, path2))
+                .supplyAsync(() -> decodedImages.read(path2))
                 .exceptionally(t -> ImageAndPath.imageIoReadNoExc("", path2));
         CompletableFuture<ImageAndPath> futureImage1 =
-                sameLeftPath
-              ? CompletableFuture.completedFuture(rawData.left)
+                image1 != null
+              ? CompletableFuture.completedFuture(image1)
               : CompletableFuture
                 .supplyAsync(() -> {
                     // Why: the NASA site sometimes returns a timeout/refused error,
@@ -2683,7 +3177,7 @@ class UiController implements UiEventListener {
                     } catch (TimeoutException e) {
                         System.out.println("waiting stopped because of a timeout");
                     }
-                    return ImageAndPath.imageIoReadNoExc(path1, path1);
+                    return decodedImages.read(path1);
                 })
                 .exceptionally(t -> ImageAndPath.imageIoReadNoExc("", path1));
 
@@ -2728,10 +3222,302 @@ class UiController implements UiEventListener {
     public ParUiFacade getParUiFacade() {
         return Par.Configurator.getParUiFacade();
     }
+    @Override
+    public PipelineMetrics getPipelineMetrics() {
+        return x3dViewer.pipelineMetrics;
+    }
 }  // UiController
 
 // MVC View
+/**
+ * Per-pane memo of the intermediate images of the processing pipeline.
+ * A stage result is reused if the stage input is the same image object
+ * and the stage parameters are equal, so changing only the zoom, offset or angle
+ * does not redo debayering, fisheye correction and color correction, and changing only the zoom or offset
+ * does not redo rotation.
+ * Only the latest result of each stage is kept.
+ */
+class PipelineStageCache {
+    enum Stage {DEBAYER, PREFILTER, FISHEYE, COLOR_CORRECTION, ROTATE, PROXY}
+
+    private static class Entry {
+        final BufferedImage input;
+        final Object parameters;
+        final BufferedImage output;
+
+        Entry(BufferedImage input, Object parameters, BufferedImage output) {
+            this.input = input;
+            this.parameters = parameters;
+            this.output = output;
+        }
+        boolean matches(BufferedImage input, Object parameters) {
+            return this.input == input && Objects.equals(this.parameters, parameters);
+        }
+    }
+
+    private final Map<Stage, Entry> entries = new EnumMap<>(Stage.class);
+
+    /**
+     * Returns func(input), computing it only if the cache has no result for this input and parameters.
+     * If the stage is not applicable (!isOn), the input is returned and the stale result is dropped.
+     */
+    BufferedImage apply(Stage stage, boolean isOn, BufferedImage input, Object parameters, Function<BufferedImage, BufferedImage> func) {
+        if (!isOn) {
+            forget(stage);
+            return input;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(stage);
+        }
+        if (entry != null && entry.matches(input, parameters)) {
+            return entry.output;
+        }
+        BufferedImage output = func.apply(input);
+        synchronized (this) {
+            entries.put(stage, new Entry(input, parameters, output));
+        }
+        return output;
+    }
+    synchronized BufferedImage getCachedOutput(Stage stage) {
+        Entry entry = entries.get(stage);
+        return entry == null ? null : entry.output;
+    }
+    /** The cached result for this input and parameters, or null */
+    synchronized BufferedImage getCachedOutput(Stage stage, BufferedImage input, Object parameters) {
+        Entry entry = entries.get(stage);
+        return entry != null && entry.matches(input, parameters) ? entry.output : null;
+    }
+    synchronized void forget(Stage stage) {
+        entries.remove(stage);
+    }
+    synchronized void clear() {
+        entries.clear();
+    }
+}
+/**
+ * Timing of the image processing stages, per pane, of the latest processing of the images.
+ * The stages are: debayer, prefilter, fisheye, color correction (and, within it, each color correction algo
+ * or group of fused per-pixel algos), marks, rotate, zoom.
+ */
+class PipelineMetrics {
+    static class StageRecord {
+        final String stage;
+        final long nanos;
+        /** size of the pixel data of the output image; 0 if the output is not a new image */
+        final long bytes;
+        final int width;
+        final int height;
+        /** the output is not a new image: a memoized result or the unchanged input */
+        final boolean reused;
+
+        StageRecord(String stage, long nanos, long bytes, int width, int height, boolean reused) {
+            this.stage = stage;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.reused = reused;
+        }
+        Map<String, Object> toJsonMap() {
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("stage", stage);
+            res.put("nanos", nanos);
+            res.put("bytes", bytes);
+            res.put("width", width);
+            res.put("height", height);
+            res.put("reused", reused);
+            return res;
+        }
+        @Override
+        public String toString() {
+            return String.format("%-40s %9.3f ms %9d KB %6dx%-6d%s",
+                    stage, nanos / 1e6, bytes / 1024, width, height, reused ? " reused" : "");
+        }
+    }
+    static class Pane {
+        /** Does not record anything */
+        static final Pane NONE = new Pane() {
+            @Override
+            BufferedImage measure(String stage, BufferedImage reusable, Supplier<BufferedImage> computation) {
+                return computation.get();
+            }
+        };
+        private final List<StageRecord> records = new ArrayList<>();
+
+        BufferedImage measure(String stage, Supplier<BufferedImage> computation) {
+            return measure(stage, null, computation);
+        }
+        /**
+         * Run the computation and record its wall time and output.
+         * If the computation returns the reusable image (the input or a memoized result),
+         * no new image has been allocated.
+         */
+        BufferedImage measure(String stage, BufferedImage reusable, Supplier<BufferedImage> computation) {
+            long start = System.nanoTime();
+            BufferedImage res = computation.get();
+            long elapsed = System.nanoTime() - start;
+            boolean reused = res == reusable;
+            add(new StageRecord(
+                    stage, elapsed,
+                    reused ? 0 : imageBytes(res),
+                    res == null ? 0 : res.getWidth(),
+                    res == null ? 0 : res.getHeight(),
+                    reused
+            ));
+            return res;
+        }
+        synchronized void add(StageRecord record) {
+            records.add(record);
+        }
+        synchronized void clear() {
+            records.clear();
+        }
+        synchronized List<StageRecord> getRecords() {
+            return new ArrayList<>(records);
+        }
+    }
+    final Pane left = new Pane();
+    final Pane right = new Pane();
+    /** the whole rendering, including what is not a stage */
+    volatile long totalNanos;
+
+    Pane pane(boolean isRight) {
+        return isRight ? right : left;
+    }
+    void clear() {
+        left.clear();
+        right.clear();
+    }
+    static long imageBytes(BufferedImage image) {
+        if (image == null) {
+            return 0;
+        }
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+    String toJson() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("totalNanos", totalNanos);
+        res.put("par", Par.describe());
+        res.put("left", left.getRecords().stream().map(StageRecord::toJsonMap).collect(Collectors.toList()));
+        res.put("right", right.getRecords().stream().map(StageRecord::toJsonMap).collect(Collectors.toList()));
+        return JsonDiy.toString(res);
+    }
+    String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("total: %.3f ms%n", totalNanos / 1e6));
+        for (boolean isRight : new boolean[]{false, true}) {
+            sb.append(isRight ? "right:\n" : "left:\n");
+            for (StageRecord record : pane(isRight).getRecords()) {
+                sb.append("  ").append(record).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
+/**
+ * Runs rendering jobs on a background thread, one at a time, and delivers the results on the EDT.
+ * A newer job supersedes the older ones: a job that has not started is dropped,
+ * and the result of a job that has been superseded while running is discarded.
+ * A job may also stop early, at the checkpoints where it calls abandonIfSuperseded().
+ */
+class RenderScheduler {
+    private final AtomicLong generation = new AtomicLong();
+    /** the generation of the job being run, or -1 if none */
+    private volatile long running = -1;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "render");
+        t.setDaemon(true);
+        return t;
+    });
+
+    <T> void submit(Supplier<T> job, Consumer<T> uiUpdate) {
+        submit(null, null, job, uiUpdate);
+    }
+    /**
+     * A two-phase job: the quickly computed preview is shown first, then the job result replaces it.
+     * If superseded after the preview has been computed, the job does not start.
+     * @param preview null if there is no preview phase
+     */
+    <T> void submit(Supplier<T> preview, Consumer<T> previewUpdate, Supplier<T> job, Consumer<T> uiUpdate) {
+        long myGeneration = generation.incrementAndGet();
+        executor.execute(() -> {
+            running = myGeneration;
+            try {
+                if (preview != null) {
+                    run(myGeneration, preview, previewUpdate);
+                }
+                run(myGeneration, job, uiUpdate);
+            } finally {
+                running = -1;
+            }
+        });
+    }
+    private <T> void run(long myGeneration, Supplier<T> job, Consumer<T> uiUpdate) {
+        if (myGeneration != generation.get()) {
+            return;
+        }
+        T res;
+        try {
+            res = job.get();
+        } catch (Throwable t) {
+            if (!isAbandoned(t)) {
+                t.printStackTrace();
+            }
+            return;
+        }
+        javax.swing.SwingUtilities.invokeLater(() -> {
+            if (myGeneration == generation.get()) {
+                uiUpdate.accept(res);
+            }
+        });
+    }
+    /**
+     * A checkpoint for the running job: throws CancellationException if the job has been superseded.
+     * Does nothing when called not from a job of this scheduler, or rather, when no job is running.
+     */
+    void abandonIfSuperseded() {
+        long myGeneration = running;
+        if (myGeneration != -1 && myGeneration != generation.get()) {
+            throw new CancellationException("superseded by a newer rendering request");
+        }
+    }
+    /** The exception, possibly wrapped by Par, is what abandonIfSuperseded() throws */
+    static boolean isAbandoned(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /** Invalidate whatever is queued or running */
+    void cancelAll() {
+        generation.incrementAndGet();
+    }
+}
 class X3DViewer {
+    final PipelineStageCache stageCacheL = new PipelineStageCache();
+    final PipelineStageCache stageCacheR = new PipelineStageCache();
+    final RenderScheduler renderScheduler;
+    /** the timing of the latest complete rendering */
+    volatile PipelineMetrics pipelineMetrics = new PipelineMetrics();
+    boolean viewportRendering = UiDefault.VIEWPORT_RENDERING;
+    boolean fusedWarp = UiDefault.FUSED_WARP;
+    /** where the demosaiced images are saved, null if they are not */
+    DemosaicDiskCache demosaicDiskCache;
+    /** images larger than that get a preview rendering of a smaller copy first */
+    static final long PROXY_PIXELS = 1L << 20;
+    /**
+     * How many pixels around the area are needed for its statistics: the range functions do not look at
+     * the 16 pixels at the image borders, and the broken pixel detection looks at the neighbors
+     */
+    static final int STATS_MARGIN = 32;
+    /** renders the previews, with its own stage caches and metrics, but in the jobs of renderScheduler */
+    private X3DViewer proxyRenderer;
+    /** the images and the processing parameters of the latest rendering request, see updateViews() */
+    private List<Object> lastRenderedContent;
     JButton lblL;
     JButton lblR;
     JScrollPane componentL;
@@ -2767,6 +3553,14 @@ class X3DViewer {
     ScreenshotSaver screenshotSaver = new ScreenshotSaver(new JFileChooser());
     ProcessedImageSaver processedImageSaver = new ProcessedImageSaver(new JFileChooser());
 
+    X3DViewer() {
+        this(new RenderScheduler());
+    }
+    /** @param renderScheduler the scheduler of the jobs in which this viewer renders, it decides when they stop */
+    X3DViewer(RenderScheduler renderScheduler) {
+        this.renderScheduler = renderScheduler;
+    }
+
     public void updateControls(DisplayParameters dp, MeasurementStatus ms, BehavioralOptions bo) {
         dcZoom.setValueAndText(dp.zoom);
         dcZoomL.setValueAndText(dp.zoomL);
@@ -2787,6 +3581,17 @@ class X3DViewer {
         measurementPanel.setControls(ms);
         settingsPanel.setControls(bo);
         frame1.setIndicatorPosition(bo.sizerPosition);
+        viewportRendering = bo.viewportRendering;
+        fusedWarp = bo.fusedWarp;
+        demosaicDiskCache = bo.demosaicDiskCache ? DemosaicDiskCache.getDefault() : null;
+    }
+    /** The processed image as shown, for saving */
+    RenderedImage getDisplayedImage(boolean isRight) {
+        Icon icon = (isRight ? lblR : lblL).getIcon();
+        if (icon instanceof ZoomedImageIcon) {
+            return ((ZoomedImageIcon) icon).toBufferedImage();
+        }
+        return (RenderedImage) ((ImageIcon) icon).getImage();
     }
     void setCursor(Cursor cursor) {
         lblL.setCursor(cursor);
@@ -2804,51 +3609,216 @@ class X3DViewer {
         );
         return res;
     }
+    /**
+     * The processed and zoomed images; the timing of a SHOW rendering replaces pipelineMetrics when it is over.
+     */
     List<BufferedImage> processBothImages(RawData rd, DisplayParameters dp, MeasurementStatus ms, ColorCorrection.Command command) {
-        System.out.println("processBothImages L:" + dp.preFilterL);
-        System.out.println("processBothImages R:" + dp.preFilterR);
-        System.out.println("processBothImages L:" + dp.lFisheyeCorrection);
-        System.out.println("processBothImages R:" + dp.rFisheyeCorrection);
-        return Par.callOne(() ->
-        {
+        PipelineMetrics metrics = new PipelineMetrics();
+        long start = System.nanoTime();
+        List<BufferedImage> res = processBothImages(rd, dp, ms, command, metrics);
+        publishMetrics(metrics, start, command);
+        return res;
+    }
+    /**
+     * The metrics of a rendering are collected in their own PipelineMetrics, so that what is shown
+     * is always the complete record of the latest rendering of the displayed images,
+     * not a mix with a rendering in progress or with a range/stats request.
+     */
+    private void publishMetrics(PipelineMetrics metrics, long start, ColorCorrection.Command command) {
+        if (command == ColorCorrection.Command.SHOW) {
+            metrics.totalNanos = System.nanoTime() - start;
+            pipelineMetrics = metrics;
+        }
+    }
+    private List<BufferedImage> processBothImages(RawData rd, DisplayParameters dp, MeasurementStatus ms, ColorCorrection.Command command, PipelineMetrics metrics) {
+        if (fusedWarp && command == ColorCorrection.Command.SHOW) {
+            return processBothImagesWarped(rd, dp, ms, metrics);
+        }
+        return Par.callOne(() ->
+        {
+            final boolean PRECISE_MARKS = ms.isSubpixelPrecision;
+            ParallelPair<BufferedImage> images = processBothImagesUnzoomed(rd, dp, ms, command, metrics);
+            double zL = dp.zoom * dp.zoomL;
+            double zR = dp.zoom * dp.zoomR;
+            int offXL = dp.offsetX + ms.left.centeringDX - ms.right.centeringDX;
+            int offYL = dp.offsetY + ms.left.centeringDY - ms.right.centeringDY;
+            if (!PRECISE_MARKS || !ms.measurementShown) {
+//            return Arrays.asList(
+//                    zoom(rotatedL, zL, rotatedR, zR, offXL, offYL, dp.imageResamplingModeL),
+//                    zoom(rotatedR, zR, rotatedL, zL, -offXL, -offYL, dp.imageResamplingModeR)
+//            );
+                return ParallelPair.<BufferedImage>creator().of(
+                        () -> metrics.left.measure("zoom", images.left,
+                                () -> zoom(images.left, zL, images.right, zR, offXL, offYL, dp.imageResamplingModeL)),
+                        () -> metrics.right.measure("zoom", images.right,
+                                () -> zoom(images.right, zR, images.left, zL, -offXL, -offYL, dp.imageResamplingModeR))
+                ).toParallelPair().asList();
+
+            } else {
+//            return Arrays.asList(
+//                ms.left.drawMarks(
+//                    zoom(rotatedL, zL, rotatedR, zR, offXL, offYL, dp.imageResamplingModeL),
+//                    ms.measurementPointMark, transformL, zL, offXL, offYL
+//                ),
+//                ms.right.drawMarks(
+//                    zoom(rotatedR, zR, rotatedL, zL, -offXL, -offYL, dp.imageResamplingModeR),
+//                    ms.measurementPointMark, transformR, zR, -offXL, -offYL
+//                )
+//            );
+                return ParallelPair.<BufferedImage>creator().of(
+                        () -> {
+                            BufferedImage zoomedL = metrics.left.measure("zoom", images.left,
+                                    () -> zoom(images.left, zL, images.right, zR, offXL, offYL, dp.imageResamplingModeL));
+                            return metrics.left.measure("marks", zoomedL, () -> ms.left.drawMarks(
+                                    zoomedL, ms.measurementPointMark, ms.left.transform, zL, offXL, offYL
+                            ));
+                        },
+                        () -> {
+                            BufferedImage zoomedR = metrics.right.measure("zoom", images.right,
+                                    () -> zoom(images.right, zR, images.left, zL, -offXL, -offYL, dp.imageResamplingModeR));
+                            return metrics.right.measure("marks", zoomedR, () -> ms.right.drawMarks(
+                                    zoomedR, ms.measurementPointMark, ms.right.transform, zR, -offXL, -offYL
+                            ));
+                        }
+                ).toParallelPair().asList();
+            }
+        }
+        );
+    }
+    /**
+     * Like processBothImages() for SHOW, but the fisheye correction (when possible), rotation and zoom
+     * are done in one resampling, without the full-size intermediate images.
+     */
+    List<BufferedImage> processBothImagesWarped(RawData rd, DisplayParameters dp, MeasurementStatus ms, PipelineMetrics metrics) {
+        return Par.callOne(() ->
+        {
+            final boolean PRECISE_MARKS = ms.isSubpixelPrecision && ms.measurementShown;
+            ParallelPair<GeometricWarp> warps = processBothImagesUnwarped(rd, dp, ms, ColorCorrection.Command.SHOW, true, metrics);
+            double zL = dp.zoom * dp.zoomL;
+            double zR = dp.zoom * dp.zoomR;
+            int offXL = dp.offsetX + ms.left.centeringDX - ms.right.centeringDX;
+            int offYL = dp.offsetY + ms.left.centeringDY - ms.right.centeringDY;
+            return ParallelPair.<BufferedImage>creator().of(
+                    () -> {
+                        BufferedImage zoomedL = metrics.left.measure("warp", warps.left.source,
+                                () -> warp(warps.left, zL, warps.right, zR, offXL, offYL, dp.imageResamplingModeL));
+                        return !PRECISE_MARKS ? zoomedL : metrics.left.measure("marks", zoomedL, () -> ms.left.drawMarks(
+                                zoomedL, ms.measurementPointMark, ms.left.transform, zL, offXL, offYL
+                        ));
+                    },
+                    () -> {
+                        BufferedImage zoomedR = metrics.right.measure("warp", warps.right.source,
+                                () -> warp(warps.right, zR, warps.left, zL, -offXL, -offYL, dp.imageResamplingModeR));
+                        return !PRECISE_MARKS ? zoomedR : metrics.right.measure("marks", zoomedR, () -> ms.right.drawMarks(
+                                zoomedR, ms.measurementPointMark, ms.right.transform, zR, -offXL, -offYL
+                        ));
+                    }
+            ).toParallelPair().asList();
+        }
+        );
+    }
+    /**
+     * Like processBothImages(), but in viewportOnly mode the zoomed images are not built:
+     * the icons draw the visible part of the unzoomed images when painted.
+     */
+    List<Icon> renderBothImages(RawData rd, DisplayParameters dp, MeasurementStatus ms, boolean viewportOnly) {
+        PipelineMetrics metrics = new PipelineMetrics();
+        long start = System.nanoTime();
+        List<Icon> res = renderBothImages(rd, dp, ms, viewportOnly, metrics);
+        publishMetrics(metrics, start, ColorCorrection.Command.SHOW);
+        return res;
+    }
+    private List<Icon> renderBothImages(RawData rd, DisplayParameters dp, MeasurementStatus ms, boolean viewportOnly, PipelineMetrics metrics) {
+        if (!viewportOnly || (ms.isSubpixelPrecision && ms.measurementShown)) {
+            // precise marks are drawn over the zoomed image, so it must exist
+            return processBothImages(rd, dp, ms, ColorCorrection.Command.SHOW, metrics)
+                    .stream()
+                    .map(ImageIcon::new)
+                    .collect(Collectors.toList());
+        }
+        return Par.callOne(() ->
+        {
+            ParallelPair<BufferedImage> images = processBothImagesUnzoomed(rd, dp, ms, ColorCorrection.Command.SHOW, metrics);
+            if (ImageAndPath.isDummyImage(images.left) && ImageAndPath.isDummyImage(images.right)) {
+                return Arrays.asList(new ImageIcon(images.left), new ImageIcon(images.right));
+            }
+            double zL = dp.zoom * dp.zoomL;
+            double zR = dp.zoom * dp.zoomR;
+            int offXL = dp.offsetX + ms.left.centeringDX - ms.right.centeringDX;
+            int offYL = dp.offsetY + ms.left.centeringDY - ms.right.centeringDY;
+            return Arrays.asList(
+                    ZoomedImageIcon.of(images.left, zL, images.right, zR, offXL, offYL, dp.imageResamplingModeL),
+                    ZoomedImageIcon.of(images.right, zR, images.left, zL, -offXL, -offYL, dp.imageResamplingModeR)
+            );
+        }
+        );
+    }
+    /**
+     * Everything but zooming: the rotated images and, as a side effect, the measurement geometry in ms.
+     * Must be called via Par.
+     */
+    ParallelPair<BufferedImage> processBothImagesUnzoomed(RawData rd, DisplayParameters dp, MeasurementStatus ms, ColorCorrection.Command command, PipelineMetrics metrics) {
+        ParallelPair<GeometricWarp> warps = processBothImagesUnwarped(rd, dp, ms, command, false, metrics);
+        // the rotated images are memoized too: zoomed out renders use their mipmaps, see MipmapPyramid
+        return ParallelPair.<BufferedImage>creator().of(
+                () -> applyStage(stageCacheL, metrics.left, PipelineStageCache.Stage.ROTATE, "rotate", true, warps.left.source,
+                        Arrays.asList(warps.left.rotation, warps.left.fisheyeCorrection), img -> warps.left.rotate()),
+                () -> applyStage(stageCacheR, metrics.right, PipelineStageCache.Stage.ROTATE, "rotate", true, warps.right.source,
+                        Arrays.asList(warps.right.rotation, warps.right.fisheyeCorrection), img -> warps.right.rotate())
+        ).toParallelPair();
+    }
+    /**
+     * Everything before rotation and zooming: the images to be rotated and zoomed and how to do that,
+     * and, as a side effect, the measurement geometry in ms.
+     * If fuseFisheye, the fisheye correction is left to the warp when nothing is done to the corrected image
+     * before rotation (no color correction, no marks drawn over it).
+     * Must be called via Par.
+     */
+    ParallelPair<GeometricWarp> processBothImagesUnwarped(RawData rd, DisplayParameters dp, MeasurementStatus ms, ColorCorrection.Command command, boolean fuseFisheye, PipelineMetrics metrics) {
+        PipelineMetrics.Pane metricsL = metrics.left;
+        PipelineMetrics.Pane metricsR = metrics.right;
+        {
             final boolean PRECISE_MARKS = ms.isSubpixelPrecision;
 //        BufferedImage imgL = dp.debayerL.doAlgo(rd.left.image, () -> FileLocations.isBayered(rd.left.path), Debayer.debayering_methods);
 //        BufferedImage imgR = dp.debayerR.doAlgo(rd.right.image, () -> FileLocations.isBayered(rd.right.path), Debayer.debayering_methods);
+            // Only SHOW results are memoized: a range/stats request stops the color correction chain halfway
+            final boolean isShow = command == ColorCorrection.Command.SHOW;
+            final boolean deferFisheyeL = fuseFisheye && isShow && dp.lFisheyeCorrection.algo.notNothing()
+                    && !dp.lColorCorrection.notNothing() && !(!PRECISE_MARKS && ms.measurementShown);
+            final boolean deferFisheyeR = fuseFisheye && isShow && dp.rFisheyeCorrection.algo.notNothing()
+                    && !dp.rColorCorrection.notNothing() && !(!PRECISE_MARKS && ms.measurementShown);
             ParallelPair<BufferedImage> images = ParallelPair.<BufferedImage>creator().of(
-                    () -> dp.debayerL.doAlgo2(rd.left.image, rd.left.path),
-                    () -> dp.debayerR.doAlgo2(rd.right.image, rd.right.path)
+                    () -> applyStage(stageCacheL, metricsL, PipelineStageCache.Stage.DEBAYER, "debayer", true, rd.left.image,
+                            debayerParameters(dp.debayerL, rd.left),
+                            img -> debayer(dp.debayerL, img, rd.left.path)),
+                    () -> applyStage(stageCacheR, metricsR, PipelineStageCache.Stage.DEBAYER, "debayer", true, rd.right.image,
+                            debayerParameters(dp.debayerR, rd.right),
+                            img -> debayer(dp.debayerR, img, rd.right.path))
             )
-//        BufferedImage imgL = dp.debayerL.doAlgo2(rd.left.image, rd.left.path);
-//        BufferedImage imgR = dp.debayerR.doAlgo2(rd.right.image, rd.right.path);
-
-//        if (dp.preFilterL.notNothing()) {
-//            imgL = ColorBalancer.interpolateBrokenPixels(imgL);
-//        }
-//        if (dp.preFilterR.notNothing()) {
-//            imgR = ColorBalancer.interpolateBrokenPixels(imgR);
-//        }
-            .cUpdate(
-                    dp.preFilterL.notNothing(),
-                    imgL -> RgbColorBalancer.interpolateBrokenPixels(imgL),
-                    dp.preFilterR.notNothing(),
-                    imgR -> RgbColorBalancer.interpolateBrokenPixels(imgR)
+            .update(
+                    imgL -> applyStage(stageCacheL, metricsL, PipelineStageCache.Stage.PREFILTER, "prefilter", dp.preFilterL.notNothing(), imgL,
+                            dp.preFilterL, RgbColorBalancer::interpolateBrokenPixels),
+                    imgR -> applyStage(stageCacheR, metricsR, PipelineStageCache.Stage.PREFILTER, "prefilter", dp.preFilterR.notNothing(), imgR,
+                            dp.preFilterR, RgbColorBalancer::interpolateBrokenPixels)
             )
             // barrel distortion correction
-//        imgL = dp.lFisheyeCorrection.doFisheyeCorrection(imgL);
-//        imgR = dp.rFisheyeCorrection.doFisheyeCorrection(imgR);
-            .cUpdate(
-                    dp.lFisheyeCorrection.algo.notNothing(),
-                    imgL -> dp.lFisheyeCorrection.doFisheyeCorrection(imgL),
-                    dp.rFisheyeCorrection.algo.notNothing(),
-                    imgR -> dp.rFisheyeCorrection.doFisheyeCorrection(imgR)
+            .update(
+                    imgL -> applyStage(stageCacheL, metricsL, PipelineStageCache.Stage.FISHEYE, "fisheye", dp.lFisheyeCorrection.algo.notNothing() && !deferFisheyeL, imgL,
+                            dp.lFisheyeCorrection, dp.lFisheyeCorrection::doFisheyeCorrection),
+                    imgR -> applyStage(stageCacheR, metricsR, PipelineStageCache.Stage.FISHEYE, "fisheye", dp.rFisheyeCorrection.algo.notNothing() && !deferFisheyeR, imgR,
+                            dp.rFisheyeCorrection, dp.rFisheyeCorrection::doFisheyeCorrection)
             )
-//        imgL = dp.lColorCorrection.doColorCorrection(imgL, command);
-//        imgR = dp.rColorCorrection.doColorCorrection(imgR, command);
             .update(
-//                    dp.lColorCorrection.algos.stream().anyMatch(c -> c.notNothing()),
-                    imgL -> dp.lColorCorrection.doColorCorrection(imgL, command),
-//                    dp.rColorCorrection.algos.stream().anyMatch(c -> c.notNothing()),
-                    imgR -> dp.rColorCorrection.doColorCorrection(imgR, command)
+                    imgL -> isShow
+                            ? applyStage(stageCacheL, metricsL, PipelineStageCache.Stage.COLOR_CORRECTION, "color correction", true, imgL,
+                                    dp.lColorCorrection, img -> dp.lColorCorrection.doColorCorrection(img, command, metricsL))
+                            : metricsL.measure("color correction", imgL,
+                                    () -> dp.lColorCorrection.doColorCorrection(imgL, command, metricsL)),
+                    imgR -> isShow
+                            ? applyStage(stageCacheR, metricsR, PipelineStageCache.Stage.COLOR_CORRECTION, "color correction", true, imgR,
+                                    dp.rColorCorrection, img -> dp.rColorCorrection.doColorCorrection(img, command, metricsR))
+                            : metricsR.measure("color correction", imgR,
+                                    () -> dp.rColorCorrection.doColorCorrection(imgR, command, metricsR))
             )
 //        ms.left.setWHI(imgL, ms.stereoPairParameters.ifovL, "pane:L eye:R");
 //        ms.right.setWHI(imgR, ms.stereoPairParameters.ifovR, "pane:R eye:L");
@@ -2866,31 +3836,30 @@ class X3DViewer {
 //            }
             .cUpdate(
                     !PRECISE_MARKS && ms.measurementShown,
-                    imgL -> ms.left.drawMarks(imgL, ms.measurementPointMark),
+                    imgL -> metricsL.measure("marks", imgL, () -> ms.left.drawMarks(imgL, ms.measurementPointMark)),
                     !PRECISE_MARKS && ms.measurementShown,
-                    imgR -> ms.right.drawMarks(imgR, ms.measurementPointMark)
-            )
-
-            .update(
-                    imgL -> {
-                        AffineTransform transformL = rotationTransform(imgL, dp.angle + dp.angleL);
-                        ms.left.transform = transformL;
-                        return rotate(imgL, transformL);
-                    },
-                    imgR -> {
-                        AffineTransform transformR = rotationTransform(imgR, dp.angle + dp.angleR);
-                        ms.right.transform = transformR;
-                        return rotate(imgR, transformR);
-                    }
+                    imgR -> metricsR.measure("marks", imgR, () -> ms.right.drawMarks(imgR, ms.measurementPointMark))
             )
             .toParallelPair();
+            ParallelPair<GeometricWarp> warps = ParallelPair.<GeometricWarp>creator().of(
+                    () -> GeometricWarp.of(images.left, deferFisheyeL ? dp.lFisheyeCorrection : null, dp.angle + dp.angleL),
+                    () -> GeometricWarp.of(images.right, deferFisheyeR ? dp.rFisheyeCorrection : null, dp.angle + dp.angleR)
+            ).toParallelPair();
+            if (deferFisheyeL) {
+                ms.left.setWHI(warps.left.width, warps.left.height, ms.stereoPairParameters.ifovL, "pane:L eye:R");
+            }
+            if (deferFisheyeR) {
+                ms.right.setWHI(warps.right.width, warps.right.height, ms.stereoPairParameters.ifovR, "pane:R eye:L");
+            }
+            ms.left.transform = warps.left.rotation;
+            ms.right.transform = warps.right.rotation;
 //        BufferedImage rotatedL = rotate(imgL, transformL);
 //        BufferedImage rotatedR = rotate(imgR, transformR);
 //        System.out.println("----");
 //        double dw1 = (rotatedR.getWidth()*dp.zoomR - rotatedL.getWidth()*dp.zoomL) / 2;
 //        double dh1 = (rotatedR.getHeight()*dp.zoomR - rotatedL.getHeight()*dp.zoomL) / 2;
-            double dw1 = (images.right.getWidth() * dp.zoomR - images.left.getWidth() * dp.zoomL) / 2;
-            double dh1 = (images.right.getHeight() * dp.zoomR - images.left.getHeight() * dp.zoomL) / 2;
+            double dw1 = (warps.right.rotatedWidth * dp.zoomR - warps.left.rotatedWidth * dp.zoomL) / 2;
+            double dh1 = (warps.right.rotatedHeight * dp.zoomR - warps.left.rotatedHeight * dp.zoomL) / 2;
             int dwR = (int) (dw1 / dp.zoomR);
             int dwL = (int) (dw1 / dp.zoomL);
             int dhR = (int) (dh1 / dp.zoomR);
@@ -2899,61 +3868,288 @@ class X3DViewer {
             ms.left.centeringDY = max0(dhL);
             ms.right.centeringDX = max0(-dwR);
             ms.right.centeringDY = max0(-dhR);
-            double zL = dp.zoom * dp.zoomL;
-            double zR = dp.zoom * dp.zoomR;
-            int offXL = dp.offsetX + ms.left.centeringDX - ms.right.centeringDX;
-            int offYL = dp.offsetY + ms.left.centeringDY - ms.right.centeringDY;
-            if (!PRECISE_MARKS || !ms.measurementShown) {
-//            return Arrays.asList(
-//                    zoom(rotatedL, zL, rotatedR, zR, offXL, offYL, dp.imageResamplingModeL),
-//                    zoom(rotatedR, zR, rotatedL, zL, -offXL, -offYL, dp.imageResamplingModeR)
-//            );
-                return ParallelPair.<BufferedImage>creator().of(
-                        () -> zoom(images.left, zL, images.right, zR, offXL, offYL, dp.imageResamplingModeL),
-                        () -> zoom(images.right, zR, images.left, zL, -offXL, -offYL, dp.imageResamplingModeR)
-                ).toParallelPair().asList();
-
-            } else {
-//            return Arrays.asList(
-//                ms.left.drawMarks(
-//                    zoom(rotatedL, zL, rotatedR, zR, offXL, offYL, dp.imageResamplingModeL),
-//                    ms.measurementPointMark, transformL, zL, offXL, offYL
-//                ),
-//                ms.right.drawMarks(
-//                    zoom(rotatedR, zR, rotatedL, zL, -offXL, -offYL, dp.imageResamplingModeR),
-//                    ms.measurementPointMark, transformR, zR, -offXL, -offYL
-//                )
-//            );
-                return ParallelPair.<BufferedImage>creator().of(
-                        () -> ms.left.drawMarks(
-                                zoom(images.left, zL, images.right, zR, offXL, offYL, dp.imageResamplingModeL),
-                                ms.measurementPointMark, ms.left.transform, zL, offXL, offYL
-                        ),
-                        () -> ms.right.drawMarks(
-                                zoom(images.right, zR, images.left, zL, -offXL, -offYL, dp.imageResamplingModeR),
-                                ms.measurementPointMark, ms.right.transform, zR, -offXL, -offYL
-                        )
-                ).toParallelPair().asList();
-            }
+            return warps;
         }
-        );
+    }
+    /** A memoized stage whose timing is recorded, if the stage is on */
+    BufferedImage applyStage(
+            PipelineStageCache cache, PipelineMetrics.Pane metrics,
+            PipelineStageCache.Stage stage, String stageName, boolean isOn,
+            BufferedImage input, Object parameters, Function<BufferedImage, BufferedImage> func
+    ) {
+        // a rendering that nobody will see stops here
+        renderScheduler.abandonIfSuperseded();
+        if (!isOn) {
+            return cache.apply(stage, false, input, parameters, func);
+        }
+        BufferedImage memoized = cache.getCachedOutput(stage);
+        return metrics.measure(stageName, memoized, () -> cache.apply(stage, true, input, parameters, func));
+    }
+    static Object debayerParameters(DebayerMode debayerMode, ImageAndPath iap) {
+        return Arrays.asList(debayerMode, iap.path);
+    }
+    /** Demosaic if necessary, or take the result of demosaicing from the disk cache, if it is on */
+    BufferedImage debayer(DebayerMode debayerMode, BufferedImage img, String path) {
+        DemosaicDiskCache diskCache = demosaicDiskCache;
+        if (diskCache == null || !debayerMode.notNothingFor(path) || ImageAndPath.isDummyImage(img)) {
+            return debayerMode.doAlgo2(img, path);
+        }
+        return diskCache.apply(img, path, debayerMode, () -> debayerMode.doAlgo2(img, path));
     }
     public void updateViews(RawData rd, DisplayParameters dp, MeasurementStatus ms) {
+        updateViews(rd, dp, ms, () -> {});
+    }
+    /**
+     * Render in background, the UI is updated later, on the EDT.
+     * Only the latest request is shown; andThen runs on the EDT after the views have been updated,
+     * it does not run if the request has been superseded.
+     */
+    public void updateViews(RawData rd, DisplayParameters dp, MeasurementStatus ms, Runnable andThen) {
+        // dp and ms are changed in place by the UI, so we render snapshots
+        DisplayParameters dpSnapshot = dp.copy();
+        MeasurementStatus msSnapshot = ms.copy();
+        boolean viewportOnly = viewportRendering;
+        // a preview only when the images or what is done to them have changed, not for zooming and scrolling
+        List<Object> content = renderedContent(rd, dp);
+        int proxyLevel = content.equals(lastRenderedContent) ? 0 : proxyLevel(rd, msSnapshot);
+        lastRenderedContent = content;
+        renderScheduler.submit(
+                proxyLevel == 0 ? null : () -> renderProxy(rd, dpSnapshot, msSnapshot.copy(), viewportOnly, proxyLevel),
+                iconList -> {
+                    if (iconList != null) {
+                        showViews(rd, dp, ms, iconList);
+                    }
+                },
+                () -> renderBothImages(rd, dpSnapshot, msSnapshot, viewportOnly),
+                iconList -> {
+                    ms.left.setRenderingResultsFrom(msSnapshot.left);
+                    ms.right.setRenderingResultsFrom(msSnapshot.right);
+                    showViews(rd, dp, ms, iconList);
+                    andThen.run();
+                }
+        );
+    }
+    /**
+     * Only the preview rendering, while a control is being adjusted; the full resolution rendering
+     * is requested via updateViews() when the adjustment is over.
+     * The images are halved at least once, even if they are not large.
+     * Nothing is done if there can be no preview, see canPreview().
+     */
+    public void updatePreview(RawData rd, DisplayParameters dp, MeasurementStatus ms) {
+        DisplayParameters dpSnapshot = dp.copy();
+        MeasurementStatus msSnapshot = ms.copy();
+        boolean viewportOnly = viewportRendering;
+        if (!canPreview(rd, msSnapshot)) {
+            return;
+        }
+        int proxyLevel = Math.max(1, proxyLevel(rd, msSnapshot));
+        // so that the full resolution rendering of the same parameters does not start with one more preview
+        lastRenderedContent = renderedContent(rd, dp);
+        renderScheduler.submit(
+                () -> renderProxy(rd, dpSnapshot, msSnapshot, viewportOnly, proxyLevel),
+                iconList -> {
+                    if (iconList != null) {
+                        showViews(rd, dp, ms, iconList);
+                    }
+                }
+        );
+    }
+    static List<Object> renderedContent(RawData rd, DisplayParameters dp) {
+        return Arrays.asList(
+                rd.left.image, rd.right.image, dp.debayerL, dp.debayerR, dp.preFilterL, dp.preFilterR,
+                dp.lColorCorrection, dp.rColorCorrection, dp.lFisheyeCorrection, dp.rFisheyeCorrection
+        );
+    }
+    /** No preview if what is shown depends on the exact pixel coordinates (measurement marks) */
+    static boolean canPreview(RawData rd, MeasurementStatus ms) {
+        return !ms.measurementShown
+            && !ImageAndPath.isDummyImage(rd.left.image) && !ImageAndPath.isDummyImage(rd.right.image);
+    }
+    /**
+     * How many times the images are halved for the preview rendering, or 0 if there will be no preview:
+     * if the images are not large, or if there can be no preview, see canPreview().
+     */
+    static int proxyLevel(RawData rd, MeasurementStatus ms) {
+        if (!canPreview(rd, ms)) {
+            return 0;
+        }
+        long pixels = Math.max(
+                (long) rd.left.image.getWidth() * rd.left.image.getHeight(),
+                (long) rd.right.image.getWidth() * rd.right.image.getHeight()
+        );
+        int level = 0;
+        for (; pixels > PROXY_PIXELS; pixels /= 4) {
+            level++;
+        }
+        return level;
+    }
+    /**
+     * The preview: the images halved proxyLevel times are rendered, with the zoom multiplied by the same factor,
+     * so that the result has (almost) the same geometry as the full resolution rendering.
+     * Only the color correction and what follows it is done to the smaller images; what precedes it
+     * is taken from the stage caches, see proxySource().
+     * Returns null if there can be no preview: if a fisheye correction is on and the corrected image is not cached.
+     * Must be called in the rendering thread, because of the stage caches.
+     */
+    List<Icon> renderProxy(RawData rd, DisplayParameters dp, MeasurementStatus ms, boolean viewportOnly, int proxyLevel) {
+        int scale = 1 << proxyLevel;
+        BufferedImage sourceL = proxySource(stageCacheL, rd.left, dp.debayerL, dp.preFilterL, dp.lFisheyeCorrection);
+        BufferedImage sourceR = proxySource(stageCacheR, rd.right, dp.debayerR, dp.preFilterR, dp.rFisheyeCorrection);
+        if (sourceL == null || sourceR == null) {
+            return null;
+        }
+        // the same images give the same proxy images, so the proxy stage caches work too
+        RawData proxyRd = new RawData(
+                new ImageAndPath(proxyImage(stageCacheL, sourceL, proxyLevel), rd.left.path, rd.left.pathToLoad),
+                new ImageAndPath(proxyImage(stageCacheR, sourceR, proxyLevel), rd.right.path, rd.right.pathToLoad)
+        );
+        DisplayParameters proxyDp = dp.copy();
+        proxyDp.zoom *= scale;
+        proxyDp.offsetX = (int) Math.round((double) dp.offsetX / scale);
+        proxyDp.offsetY = (int) Math.round((double) dp.offsetY / scale);
+        proxyDp.debayerL = proxyDp.debayerR = DebayerMode.NEVER;
+        proxyDp.preFilterL = proxyDp.preFilterR = ColorCorrectionAlgo.DO_NOTHING;
+        proxyDp.lFisheyeCorrection = proxyDp.rFisheyeCorrection = FisheyeCorrection.defaultValue();
+        if (proxyRenderer == null) {
+            // a superseded preview is abandoned at the checkpoints of the proxy renderer too
+            proxyRenderer = new X3DViewer(renderScheduler);
+        }
+        proxyRenderer.fusedWarp = fusedWarp;
+        return proxyRenderer.renderBothImages(proxyRd, proxyDp, ms, viewportOnly);
+    }
+    /**
+     * The source halved proxyLevel times. Only the latest proxy image of the pane is kept, in its stage cache,
+     * not in MipmapPyramid: its levels would stay while the source is alive, and the source may be the raw image.
+     */
+    static BufferedImage proxyImage(PipelineStageCache cache, BufferedImage source, int proxyLevel) {
+        return cache.apply(PipelineStageCache.Stage.PROXY, true, source, proxyLevel, img -> {
+            for (int n = 0; n < proxyLevel; n++) {
+                img = MipmapPyramid.halve(img);
+            }
+            return img;
+        });
+    }
+    /**
+     * The image to be halved for the preview: the input of the color correction if it is cached
+     * for these parameters, otherwise the debayered image if it is cached, otherwise the raw image,
+     * with the Bayer mosaic to be averaged out; in the last two cases the broken pixel filter is not applied,
+     * and if a fisheye correction is on, null is returned: the correction is not done to the smaller images.
+     */
+    static BufferedImage proxySource(PipelineStageCache cache, ImageAndPath iap, DebayerMode debayerMode, ColorCorrectionAlgo preFilter, FisheyeCorrection fc) {
+        BufferedImage debayered = cache.getCachedOutput(PipelineStageCache.Stage.DEBAYER, iap.image, debayerParameters(debayerMode, iap));
+        BufferedImage img = debayered;
+        if (img != null && preFilter.notNothing()) {
+            img = cache.getCachedOutput(PipelineStageCache.Stage.PREFILTER, img, preFilter);
+        }
+        if (img != null && fc.algo.notNothing()) {
+            img = cache.getCachedOutput(PipelineStageCache.Stage.FISHEYE, img, fc);
+        }
+        if (img != null) {
+            return img;
+        }
+        if (fc.algo.notNothing()) {
+            return null;
+        }
+        return debayered != null ? debayered : iap.image;
+    }
+    /**
+     * For the viewport statistics: the statistics of the image of the pane at the chain position of the command,
+     * neither rotated nor zoomed, in the area that areaOf() returns for the size of that image.
+     * If the color correction up to the command position is per-pixel, only the area and a margin around it
+     * are color corrected, and the statistics are collected from that part, with the same result.
+     */
+    <T> T statsForArea(
+            RawData rd, DisplayParameters dp, ColorCorrection.Command command, boolean isRight,
+            Function<Dimension, Rectangle> areaOf, BiFunction<Rectangle, BufferedImage, T> stats
+    ) {
+        BufferedImage img = imageToColorCorrect(rd, dp, isRight);
+        Rectangle area = areaOf.apply(new Dimension(img.getWidth(), img.getHeight()));
+        ColorCorrection cc = dp.getColorCorrection(isRight);
+        Rectangle part = new Rectangle(area.x - STATS_MARGIN, area.y - STATS_MARGIN, area.width + 2 * STATS_MARGIN, area.height + 2 * STATS_MARGIN)
+                .intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+        if (!cc.isPerPixelUpTo(command) || part.isEmpty()) {
+            return stats.apply(area, cc.doColorCorrection(img, command));
+        }
+        BufferedImage corrected = cc.doColorCorrection(img.getSubimage(part.x, part.y, part.width, part.height), command);
+        return stats.apply(new Rectangle(area.x - part.x, area.y - part.y, area.width, area.height), corrected);
+    }
+    /**
+     * The image of the pane at the chain position of the command, neither rotated nor zoomed.
+     */
+    BufferedImage processImageForStats(RawData rd, DisplayParameters dp, ColorCorrection.Command command, boolean isRight) {
+        return dp.getColorCorrection(isRight).doColorCorrection(imageToColorCorrect(rd, dp, isRight), command);
+    }
+    /**
+     * The input of the color correction of the pane. What precedes the color correction is taken from the stage caches
+     * if it is there; nothing is memoized here, this is called not in the rendering thread.
+     */
+    private BufferedImage imageToColorCorrect(RawData rd, DisplayParameters dp, boolean isRight) {
+        PipelineStageCache cache = isRight ? stageCacheR : stageCacheL;
+        ImageAndPath iap = isRight ? rd.right : rd.left;
+        DebayerMode debayerMode = isRight ? dp.debayerR : dp.debayerL;
+        ColorCorrectionAlgo preFilter = isRight ? dp.preFilterR : dp.preFilterL;
+        FisheyeCorrection fc = dp.getFisheyeCorrection(isRight);
+        BufferedImage img = cachedOrComputed(cache, PipelineStageCache.Stage.DEBAYER, true, iap.image,
+                debayerParameters(debayerMode, iap), x -> debayer(debayerMode, x, iap.path));
+        img = cachedOrComputed(cache, PipelineStageCache.Stage.PREFILTER, preFilter.notNothing(), img,
+                preFilter, RgbColorBalancer::interpolateBrokenPixels);
+        return cachedOrComputed(cache, PipelineStageCache.Stage.FISHEYE, fc.algo.notNothing(), img,
+                fc, fc::doFisheyeCorrection);
+    }
+    private static BufferedImage cachedOrComputed(
+            PipelineStageCache cache, PipelineStageCache.Stage stage, boolean isOn,
+            BufferedImage input, Object parameters, Function<BufferedImage, BufferedImage> func
+    ) {
+        if (!isOn) {
+            return input;
+        }
+        BufferedImage cached = cache.getCachedOutput(stage, input, parameters);
+        return cached != null ? cached : func.apply(input);
+    }
+    /**
+     * The part of the image (neither rotated nor zoomed) visible in the viewport: the viewport rectangle
+     * is mapped back through zoom and rotation, the result is the bounding box of that, clipped to the image.
+     * @param offX, offY the offset of this pane, as passed to zoom()
+     */
+    static Rectangle viewportInImage(Rectangle viewport, int width, int height, AffineTransform rotation, double zoom, int offX, int offY) {
+        Rectangle image = new Rectangle(0, 0, width, height);
+        Dimension rotatedSize = ImageRotator.rotatedSize(width, height, rotation);
+        int zoomedWidth = zoomedSize(rotatedSize.width, zoom);
+        int zoomedHeight = zoomedSize(rotatedSize.height, zoom);
+        if (zoomedWidth == 0 || zoomedHeight == 0) {
+            return image;
+        }
+        double sx = (double) rotatedSize.width / zoomedWidth;
+        double sy = (double) rotatedSize.height / zoomedHeight;
+        double x0 = (viewport.x - Math.max(0, mult(offX, zoom))) * sx;
+        double y0 = (viewport.y - Math.max(0, mult(offY, zoom))) * sy;
+        double x1 = x0 + viewport.width * sx;
+        double y1 = y0 + viewport.height * sy;
+        double[] corners = {x0, y0, x1, y0, x0, y1, x1, y1};
+        try {
+            rotation.inverseTransform(corners, 0, corners, 0, 4);
+        } catch (NoninvertibleTransformException e) {
+            return image;
+        }
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int k = 0; k < 8; k += 2) {
+            minX = Math.min(minX, corners[k]);
+            maxX = Math.max(maxX, corners[k]);
+            minY = Math.min(minY, corners[k + 1]);
+            maxY = Math.max(maxY, corners[k + 1]);
+        }
+        int ix0 = (int) Math.floor(minX + 1e-9);
+        int iy0 = (int) Math.floor(minY + 1e-9);
+        int ix1 = (int) Math.ceil(maxX - 1e-9);
+        int iy1 = (int) Math.ceil(maxY - 1e-9);
+        Rectangle res = new Rectangle(ix0, iy0, ix1 - ix0, iy1 - iy0).intersection(image);
+        return res.isEmpty() ? new Rectangle() : res;
+    }
+    void showViews(RawData rd, DisplayParameters dp, MeasurementStatus ms, List<Icon> iconList) {
         {
             {
-                long start = System.nanoTime();
-                var bufferedImageList = processBothImages(rd, dp, ms, ColorCorrection.Command.SHOW);
-                long elapsed = System.nanoTime() - start;
-                System.out.println(Par.describe());
-                System.out.println(
-                        String.format("*** updateViews/processBothImages elapsed: %d.%09d",
-                        elapsed / 1_000_000_000,
-                        elapsed % 1_000_000_000
-                ));
-                ImageIcon iconL = new ImageIcon(bufferedImageList.get(0));
-                ImageIcon iconR = new ImageIcon(bufferedImageList.get(1));
-                lblL.setIcon(iconL);
-                lblR.setIcon(iconR);
+                lblL.setIcon(iconList.get(0));
+                lblR.setIcon(iconList.get(1));
             }
 
             lblL.setBorder(null);
@@ -4083,15 +5279,15 @@ class X3DViewer {
         if (ImageAndPath.isDummyImage(originalImage)) {
             return originalImage;
         }
-        BufferedImageOp operation = new AffineTransformOp(transform, AffineTransformOp.TYPE_BICUBIC);
-        return operation.filter(originalImage, null);
+        return ImageRotator.rotate(originalImage, transform, ImageResamplingMode.BICUBIC);
     }
     static AffineTransform rotationTransform(BufferedImage originalImage, double alphaDegrees) {
+        return rotationTransform(originalImage.getWidth(), originalImage.getHeight(), alphaDegrees);
+    }
+    static AffineTransform rotationTransform(int width, int height, double alphaDegrees) {
         double alpha = Math.toRadians(alphaDegrees);
         double sinA = Math.sin(alpha);
         double cosA = Math.cos(alpha);
-        int width = originalImage.getWidth();
-        int height = originalImage.getHeight();
         int newWidth = (int) Math.round(Math.abs(cosA*width) + Math.abs(sinA*height));
         int newHeight = (int) Math.round(Math.abs(cosA*height) + Math.abs(sinA*width));
 
@@ -4102,111 +5298,947 @@ class X3DViewer {
 
         return transform;
     }
+    /** The same as zoom() of the rotated images, in one resampling */
+    static BufferedImage warp(GeometricWarp warp, double zoomLevel, GeometricWarp otherWarp, double otherZoomLevel, int offX, int offY, ImageResamplingMode imageResamplingMode) {
+        if (ImageAndPath.isDummyImage(warp.source) && ImageAndPath.isDummyImage(otherWarp.source)) {
+            return warp.source;
+        }
+        return warp.render(ZoomedImageIcon.of(
+                warp.source, warp.rotatedWidth, warp.rotatedHeight, zoomLevel,
+                otherWarp.rotatedWidth, otherWarp.rotatedHeight, otherZoomLevel,
+                offX, offY, imageResamplingMode
+        ));
+    }
     static BufferedImage zoom(BufferedImage originalImage, double zoomLevel, BufferedImage otherImage, double otherZoomLevel, int offX, int offY, ImageResamplingMode imageResamplingMode) {
         if (ImageAndPath.isDummyImage(originalImage) && ImageAndPath.isDummyImage(otherImage)) {
             return originalImage;
         }
-        int newImageWidth = zoomedSize(originalImage.getWidth(), zoomLevel);
-        int newImageHeight = zoomedSize(originalImage.getHeight(), zoomLevel);
-        int otherImageWidth = zoomedSize(otherImage.getWidth(), otherZoomLevel);
-        int otherImageHeight = zoomedSize(otherImage.getHeight(), otherZoomLevel);
-        int thisCanvasWidth = Math.max(0, mult(offX, zoomLevel)) + newImageWidth;
-        int thisCanvasHeight = Math.max(0, mult(offY, zoomLevel)) + newImageHeight;
-        int otherCanvasWidth = Math.max(0, mult(-offX, otherZoomLevel)) + otherImageWidth;
-        int otherCanvasHeight = Math.max(0, mult(-offY, otherZoomLevel)) + otherImageHeight;
-        int canvasWidth = Math.max(thisCanvasWidth, otherCanvasWidth);
-        int canvasHeight = Math.max(thisCanvasHeight, otherCanvasHeight);
-        int xToDrawFrom = Math.max(0, mult(offX, zoomLevel));
-        int yToDrawFrom = Math.max(0, mult(offY, zoomLevel));
-//        int otherXToDrawFrom = mult(-offX, zoomLevel);
-//        int otherYToDrawFrom = mult(-offY, zoomLevel);
-        System.out.println("zoom resizedImage width*height: " + canvasWidth + "x" + canvasHeight);
-        BufferedImage resizedImage = new BufferedImage(canvasWidth, canvasHeight, originalImage.getType());
-        Graphics2D g = resizedImage.createGraphics();
-//        if (zoomLevel > 1.5) {
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, imageResamplingMode.getRenderingHint());
-//        }
-        g.drawImage(
-                originalImage,
-                xToDrawFrom, // x
-                yToDrawFrom, // y
-                newImageWidth,  // width
-                newImageHeight, // height
-                null
-        );
-        g.dispose();
-        System.out.println(
-                "zoom("+originalImage.getWidth()+"x"+originalImage.getHeight()+
-                ", zoomLevel="+zoomLevel+", otherImage:"+ otherImage.getWidth()+"x"+otherImage.getHeight()+
-                ", otherZoomLevel="+otherZoomLevel+", offX="+offX+", offY="+offY+ ", imageResamplingMode="+ imageResamplingMode+
-                ")\n" +
-                " newImageWidth=" + newImageWidth +
-                " newImageHeight=" + newImageHeight +
-                " otherImageWidth=" + otherImageWidth +
-                " otherImageHeight=" + otherImageHeight + "\n" +
-                " thisCanvasWidth=" + thisCanvasWidth +
-                " thisCanvasHeight=" + thisCanvasHeight +
-                " otherCanvasWidth=" + otherCanvasWidth +
-                " otherCanvasHeight=" + otherCanvasHeight +
-                " canvasWidth=" + canvasWidth +
-                " canvasHeight=" + canvasHeight + "\n" +
-                " xToDrawFrom=" + xToDrawFrom +
-                " yToDrawFrom=" + yToDrawFrom +
-                " newImageWidth=" + newImageWidth +
-                " newImageHeight=" + newImageHeight
-        );
-        return resizedImage;
+        return ZoomedImageIcon.of(originalImage, zoomLevel, otherImage, otherZoomLevel, offX, offY, imageResamplingMode)
+                .toBufferedImage();
     }
 
     static int zoomedSize(int orig, double zoom) {
         return (int) Math.round(orig * zoom);
     }
-    static int mult(int v, double zoom) {
-        return (int)(v*zoom);
+    static int mult(int v, double zoom) {
+        return (int)(v*zoom);
+    }
+    static int mult(double v, double zoom) {
+        return (int)(v*zoom);
+    }
+    static int max0(int x) {
+        return Math.max(0, x);
+    }
+    static double max0(double x) {
+        return Math.max(0., x);
+    }
+
+}
+
+class Spinners {
+    static JSpinner createJSpinner(Integer startValue, Integer min, Integer max) {
+        SpinnerNumberModel spinnerNumberModel = new SpinnerNumberModel(
+                startValue,
+                min,
+                max,
+                Integer.valueOf(1) // step
+        );
+        JSpinner jSpinner = new JSpinner(spinnerNumberModel);
+
+        JFormattedTextField jFormattedTextField = ((JSpinner.DefaultEditor)jSpinner.getEditor()).getTextField();
+        {
+            NumberFormat numberFormat = new DecimalFormat("#");
+            NumberFormatter numberFormatter = new NumberFormatter(numberFormat);
+            numberFormatter.setValueClass(Integer.class);
+            numberFormatter.setMinimum(0);
+            numberFormatter.setMaximum(Integer.MAX_VALUE);
+            numberFormatter.setAllowsInvalid(false);
+            DefaultFormatterFactory myFormatterFactory = new DefaultFormatterFactory(numberFormatter);
+            jFormattedTextField.setFormatterFactory(myFormatterFactory);
+        }
+        return jSpinner;
+    }
+}
+
+enum OneOrBothPanes {JUST_THIS, BOTH_PANES, SEE_CHECKBOX}
+
+/**
+ * A zoomed image that is never built: only the visible part (the clip) is drawn, at paint time.
+ * The geometry is the same as in X3DViewer.zoom().
+ */
+class ZoomedImageIcon implements Icon {
+    final BufferedImage image;
+    final ImageResamplingMode imageResamplingMode;
+    final int canvasWidth, canvasHeight;
+    final int xToDrawFrom, yToDrawFrom;
+    final int newImageWidth, newImageHeight;
+
+    private ZoomedImageIcon(BufferedImage image, ImageResamplingMode imageResamplingMode, int canvasWidth, int canvasHeight, int xToDrawFrom, int yToDrawFrom, int newImageWidth, int newImageHeight) {
+        this.image = image;
+        this.imageResamplingMode = imageResamplingMode;
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        this.xToDrawFrom = xToDrawFrom;
+        this.yToDrawFrom = yToDrawFrom;
+        this.newImageWidth = newImageWidth;
+        this.newImageHeight = newImageHeight;
+    }
+    static ZoomedImageIcon of(BufferedImage originalImage, double zoomLevel, BufferedImage otherImage, double otherZoomLevel, int offX, int offY, ImageResamplingMode imageResamplingMode) {
+        return of(originalImage, originalImage.getWidth(), originalImage.getHeight(), zoomLevel,
+                  otherImage.getWidth(), otherImage.getHeight(), otherZoomLevel,
+                  offX, offY, imageResamplingMode);
+    }
+    /** The same geometry for an image of the given size, which the originalImage may be not yet */
+    static ZoomedImageIcon of(BufferedImage originalImage, int width, int height, double zoomLevel, int otherWidth, int otherHeight, double otherZoomLevel, int offX, int offY, ImageResamplingMode imageResamplingMode) {
+        int newImageWidth = X3DViewer.zoomedSize(width, zoomLevel);
+        int newImageHeight = X3DViewer.zoomedSize(height, zoomLevel);
+        int otherImageWidth = X3DViewer.zoomedSize(otherWidth, otherZoomLevel);
+        int otherImageHeight = X3DViewer.zoomedSize(otherHeight, otherZoomLevel);
+        int xToDrawFrom = Math.max(0, X3DViewer.mult(offX, zoomLevel));
+        int yToDrawFrom = Math.max(0, X3DViewer.mult(offY, zoomLevel));
+        int thisCanvasWidth = xToDrawFrom + newImageWidth;
+        int thisCanvasHeight = yToDrawFrom + newImageHeight;
+        int otherCanvasWidth = Math.max(0, X3DViewer.mult(-offX, otherZoomLevel)) + otherImageWidth;
+        int otherCanvasHeight = Math.max(0, X3DViewer.mult(-offY, otherZoomLevel)) + otherImageHeight;
+        return new ZoomedImageIcon(
+                originalImage,
+                imageResamplingMode,
+                Math.max(thisCanvasWidth, otherCanvasWidth),
+                Math.max(thisCanvasHeight, otherCanvasHeight),
+                xToDrawFrom,
+                yToDrawFrom,
+                newImageWidth,
+                newImageHeight
+        );
+    }
+    @Override
+    public void paintIcon(Component c, Graphics g, int x, int y) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.translate(x, y);
+            g2.clipRect(0, 0, canvasWidth, canvasHeight);
+            Rectangle clip = g2.getClipBounds();
+            if (clip == null || clip.isEmpty()) {
+                return;
+            }
+            // only the visible part is resampled, and the black background of opaque images comes with it
+            g2.drawImage(ZoomResampler.render(this, clip), clip.x, clip.y, null);
+        } finally {
+            g2.dispose();
+        }
+    }
+    /** Build the whole zoomed image */
+    BufferedImage toBufferedImage() {
+        return ZoomResampler.render(this, new Rectangle(0, 0, canvasWidth, canvasHeight));
+    }
+    @Override
+    public int getIconWidth() {
+        return canvasWidth;
+    }
+    @Override
+    public int getIconHeight() {
+        return canvasHeight;
+    }
+}
+/**
+ * The zoom (scaling) done by ZoomedImageIcon: a rectangular area of the canvas is computed in row bands via Par.
+ * The kernels are separable, so the weights and source indices are computed once per column and once per row;
+ * each output row is made by a vertical pass over the source rows it needs and a horizontal pass over that.
+ * Colors are interpolated premultiplied by alpha, so that the transparent margins of rotated images
+ * do not darken the image edges.
+ * <p/>
+ * Nearest neighbor sampling picks the same pixels as Graphics2D.drawImage() does, except for rare pixels
+ * where the rounding errors of Graphics2D are different. The kernels are not widened when zooming out;
+ * instead, zooming out by 2x or more starts from a half, quarter, etc. resolution level of MipmapPyramid.
+ */
+class ZoomResampler {
+    /** Half of the number of the source pixels (per dimension) that contribute to an output pixel */
+    static int support(ImageResamplingMode mode) {
+        switch (mode) {
+            case NEAREST:
+                return 0;
+            case BILINEAR:
+                return 1;
+            case BICUBIC:
+                return 2;
+            case LANCZOS:
+            default:
+                return 3;
+        }
+    }
+    static double weight(ImageResamplingMode mode, double d) {
+        d = Math.abs(d);
+        switch (mode) {
+            case BILINEAR:
+                return d < 1 ? 1 - d : 0;
+            case BICUBIC:
+                return GeometricWarp.Sampler.cubicWeight(d);
+            case LANCZOS:
+                return d == 0 ? 1 : d < 3 ? 3 * Math.sin(Math.PI * d) * Math.sin(Math.PI * d / 3) / (Math.PI * Math.PI * d * d) : 0;
+            case NEAREST:
+            default:
+                return d < 0.5 ? 1 : 0;
+        }
+    }
+
+    /** For each output position, the (clamped) source indices and the weights of the source pixels there */
+    static class Weights {
+        final int taps;
+        final int[] index;
+        final float[] weight;
+        /** the range of the source indices used */
+        final int minIndex, maxIndex;
+
+        Weights(int taps, int[] index, float[] weight) {
+            this.taps = taps;
+            this.index = index;
+            this.weight = weight;
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            for (int i : index) {
+                min = Math.min(min, i);
+                max = Math.max(max, i);
+            }
+            this.minIndex = min;
+            this.maxIndex = max;
+        }
+        /**
+         * @param srcSize the source image width (height)
+         * @param dstSize the zoomed image width (height)
+         * @param origin where the zoomed image starts on the canvas
+         * @param from,to the range of the canvas columns (rows), within [origin, origin + dstSize)
+         */
+        static Weights of(ImageResamplingMode mode, int srcSize, int dstSize, int origin, int from, int to) {
+            double scale = (double) srcSize / dstSize;
+            int support = support(mode);
+            int taps = Math.max(1, 2 * support);
+            int n = to - from;
+            int[] index = new int[n * taps];
+            float[] weight = new float[n * taps];
+            // 32.32 fixed point, as Graphics2D does it: this decides the ties as Graphics2D does
+            long fixedScale = (long) (scale * (1L << 32));
+            long fixedHalf = (long) (0.5 * scale * (1L << 32));
+            for (int k = 0; k < n; k++) {
+                if (support == 0) {
+                    long c = fixedHalf + (from + k - origin) * fixedScale;
+                    index[k] = GeometricWarp.Sampler.clamp((int) (c >> 32), srcSize - 1);
+                    weight[k] = 1f;
+                    continue;
+                }
+                // the center of the output pixel, in the source coordinates
+                double c = (from + k + 0.5 - origin) * scale;
+                // in the pixel index space, where the pixel i is at the point i
+                double u = c - 0.5;
+                int first = (int) Math.floor(u) - support + 1;
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    sum += weight(mode, u - (first + t));
+                }
+                for (int t = 0; t < taps; t++) {
+                    index[k * taps + t] = GeometricWarp.Sampler.clamp(first + t, srcSize - 1);
+                    weight[k * taps + t] = (float) (weight(mode, u - (first + t)) / sum);
+                }
+            }
+            return new Weights(taps, index, weight);
+        }
+    }
+
+    /**
+     * Render the area of the icon's canvas. The result has the size of the area; like a new BufferedImage,
+     * it is transparent (if the icon image has alpha) or black where the zoomed image is not.
+     */
+    static BufferedImage render(ZoomedImageIcon icon, Rectangle area) {
+        boolean hasAlpha = icon.image.getColorModel().hasAlpha();
+        PixelBuffer dst = PixelBuffer.direct(new BufferedImage(area.width, area.height,
+                hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB));
+        Rectangle drawn = area.intersection(new Rectangle(icon.xToDrawFrom, icon.yToDrawFrom, icon.newImageWidth, icon.newImageHeight));
+        if (drawn.isEmpty()) {
+            return dst.image;
+        }
+        ImageResamplingMode mode = icon.imageResamplingMode;
+        // nearest neighbor means the pixels of the image itself
+        BufferedImage image = mode == ImageResamplingMode.NEAREST
+                ? icon.image
+                : MipmapPyramid.sourceFor(icon.image, icon.newImageWidth, icon.newImageHeight);
+        Weights columns = Weights.of(mode, image.getWidth(), icon.newImageWidth, icon.xToDrawFrom, drawn.x, drawn.x + drawn.width);
+        Weights rows = Weights.of(mode, image.getHeight(), icon.newImageHeight, icon.yToDrawFrom, drawn.y, drawn.y + drawn.height);
+        int dx = drawn.x - area.x;
+        int dy = drawn.y - area.y;
+        GrayBuffer gray = GrayBuffer.direct(image);
+        if (gray != null) {
+            renderGray(gray, dst, columns, rows, drawn.width, drawn.height, dx, dy);
+            return dst.image;
+        }
+        PixelBuffer src = PixelBuffer.of(image);
+        if (support(mode) == 0) {
+            Par.splitFor(0, drawn.height, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    int s = src.index(0, rows.index[j]);
+                    int d = dst.index(dx, dy + j);
+                    for (int i = 0; i < drawn.width; i++) {
+                        dst.pixels[d + i] = src.pixels[s + columns.index[i]] | src.alphaMask;
+                    }
+                }
+            });
+            return dst.image;
+        }
+        boolean premultiply = src.alphaMask == 0;
+        int c0 = columns.minIndex;
+        int nc = columns.maxIndex - c0 + 1;
+        int rowTaps = rows.taps, columnTaps = columns.taps;
+        int[] rowIndex = rows.index;
+        float[] rowWeight = rows.weight;
+        float[] columnWeight = columns.weight;
+        // offsets of the columns in the row of interleaved channels
+        int[] columnOffset = new int[columns.index.length];
+        for (int k = 0; k < columnOffset.length; k++) {
+            columnOffset[k] = (columns.index[k] - c0) * 4;
+        }
+        int[] srcPixels = src.pixels;
+        int[] dstPixels = dst.pixels;
+        int width = drawn.width;
+        Par.splitFor(0, drawn.height, (from, to) -> {
+            // the vertically interpolated row, 4 floats (r,g,b,a) per source column
+            float[] row = new float[nc * 4];
+            for (int j = from; j < to; j++) {
+                // vertical pass
+                Arrays.fill(row, 0f);
+                for (int t = 0; t < rowTaps; t++) {
+                    float w = rowWeight[j * rowTaps + t];
+                    if (w == 0f) {
+                        continue;
+                    }
+                    int s = src.index(c0, rowIndex[j * rowTaps + t]);
+                    if (premultiply) {
+                        for (int c = 0, q = 0; c < nc; c++, q += 4) {
+                            int p = srcPixels[s + c];
+                            if (p >>> 24 == 0) {
+                                continue;
+                            }
+                            float wa = w * (p >>> 24) * (1f / 255);
+                            row[q] += wa * ((p >> 16) & 0xff);
+                            row[q + 1] += wa * ((p >> 8) & 0xff);
+                            row[q + 2] += wa * (p & 0xff);
+                            row[q + 3] += wa;
+                        }
+                    } else {
+                        for (int c = 0, q = 0; c < nc; c++, q += 4) {
+                            int p = srcPixels[s + c];
+                            row[q] += w * ((p >> 16) & 0xff);
+                            row[q + 1] += w * ((p >> 8) & 0xff);
+                            row[q + 2] += w * (p & 0xff);
+                        }
+                    }
+                }
+                // horizontal pass
+                int d = dst.index(dx, dy + j);
+                for (int i = 0, k = 0; i < width; i++) {
+                    float rr = 0, gg = 0, bb = 0, aa = 0;
+                    for (int t = 0; t < columnTaps; t++, k++) {
+                        float w = columnWeight[k];
+                        int q = columnOffset[k];
+                        rr += w * row[q];
+                        gg += w * row[q + 1];
+                        bb += w * row[q + 2];
+                        aa += w * row[q + 3];
+                    }
+                    if (premultiply) {
+                        int alpha = toByte(aa * 255);
+                        if (alpha == 0) {
+                            dstPixels[d + i] = 0;
+                            continue;
+                        }
+                        if (alpha != 255) {
+                            float ia = 1 / aa;
+                            rr *= ia;
+                            gg *= ia;
+                            bb *= ia;
+                        }
+                        dstPixels[d + i] = alpha << 24 | toByte(rr) << 16 | toByte(gg) << 8 | toByte(bb);
+                    } else {
+                        dstPixels[d + i] = 0xff000000 | toByte(rr) << 16 | toByte(gg) << 8 | toByte(bb);
+                    }
+                }
+            }
+        });
+        return dst.image;
+    }
+    /**
+     * The same as render() does with an opaque RGB image of these gray colors,
+     * but one channel is interpolated instead of three
+     */
+    private static void renderGray(GrayBuffer src, PixelBuffer dst, Weights columns, Weights rows, int width, int height, int dx, int dy) {
+        if (columns.taps == 1 && rows.taps == 1) {
+            Par.splitFor(0, height, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    int s = src.index(0, rows.index[j]);
+                    int d = dst.index(dx, dy + j);
+                    for (int i = 0; i < width; i++) {
+                        dst.pixels[d + i] = GrayBuffer.rgb(0xff & src.pixels[s + columns.index[i]]);
+                    }
+                }
+            });
+            return;
+        }
+        int c0 = columns.minIndex;
+        int nc = columns.maxIndex - c0 + 1;
+        int rowTaps = rows.taps, columnTaps = columns.taps;
+        int[] columnOffset = new int[columns.index.length];
+        for (int k = 0; k < columnOffset.length; k++) {
+            columnOffset[k] = columns.index[k] - c0;
+        }
+        Par.splitFor(0, height, (from, to) -> {
+            // the vertically interpolated row, a float per source column
+            float[] row = new float[nc];
+            for (int j = from; j < to; j++) {
+                Arrays.fill(row, 0f);
+                for (int t = 0; t < rowTaps; t++) {
+                    float w = rows.weight[j * rowTaps + t];
+                    if (w == 0f) {
+                        continue;
+                    }
+                    int s = src.index(c0, rows.index[j * rowTaps + t]);
+                    for (int c = 0; c < nc; c++) {
+                        row[c] += w * (0xff & src.pixels[s + c]);
+                    }
+                }
+                int d = dst.index(dx, dy + j);
+                for (int i = 0, k = 0; i < width; i++) {
+                    float v = 0;
+                    for (int t = 0; t < columnTaps; t++, k++) {
+                        v += columns.weight[k] * row[columnOffset[k]];
+                    }
+                    dst.pixels[d + i] = GrayBuffer.rgb(toByte(v));
+                }
+            }
+        });
+    }
+    static int toByte(float v) {
+        int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : i > 255 ? 255 : i;
+    }
+}
+/**
+ * Half, quarter, etc. resolution versions of an image, for zooming out: each level is the previous one
+ * with 2x2 pixel blocks averaged, which does not alias as point sampling of the full resolution image does,
+ * and is cheaper to resample. The levels are made when first needed, and cached while the image is alive
+ * (for the rotated images, that is, while PipelineStageCache keeps them); they take up to 1/3 of the image memory.
+ */
+class MipmapPyramid {
+    private static final Map<BufferedImage, MipmapPyramid> cache = new WeakHashMap<>();
+
+    /**
+     * halves.get(n - 1) is the level n; the image itself, the level 0, is not kept here:
+     * a value that refers to its key would keep it in the WeakHashMap forever
+     */
+    private final List<BufferedImage> halves = new ArrayList<>();
+
+    private static synchronized MipmapPyramid of(BufferedImage image) {
+        return cache.computeIfAbsent(image, x -> new MipmapPyramid());
+    }
+    /** The image halved n times; the image itself for n = 0 */
+    static BufferedImage level(BufferedImage image, int n) {
+        return n == 0 ? image : of(image).halved(image, n);
+    }
+    /**
+     * The smallest level that is at least as large as the image zoomed to width x height,
+     * or the image itself if it is not zoomed out 2x or more (then nothing is cached).
+     */
+    static BufferedImage sourceFor(BufferedImage image, int width, int height) {
+        if (halfSize(image.getWidth()) < width || halfSize(image.getHeight()) < height) {
+            return image;
+        }
+        return of(image).levelFor(image, width, height);
+    }
+    static int halfSize(int size) {
+        return (size + 1) / 2;
+    }
+    private synchronized BufferedImage levelFor(BufferedImage image, int width, int height) {
+        for (int n = 0; ; n++) {
+            BufferedImage level = n == 0 ? image : halved(image, n);
+            if (halfSize(level.getWidth()) < width || halfSize(level.getHeight()) < height
+             || level.getWidth() == 1 && level.getHeight() == 1) {
+                return level;
+            }
+        }
+    }
+    /** the level n > 0 of this pyramid, which is the pyramid of the image */
+    private synchronized BufferedImage halved(BufferedImage image, int n) {
+        while (halves.size() < n) {
+            halves.add(halve(halves.isEmpty() ? image : halves.get(halves.size() - 1)));
+        }
+        return halves.get(n - 1);
+    }
+    static synchronized int cacheSize() {
+        return cache.size();
+    }
+    /** Average each 2x2 block; colors are weighted by alpha, so transparent pixels do not darken the result */
+    static BufferedImage halve(BufferedImage image) {
+        GrayBuffer gray = GrayBuffer.direct(image);
+        if (gray != null) {
+            return halveGray(gray);
+        }
+        PixelBuffer src = PixelBuffer.of(image);
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        int width = halfSize(src.width);
+        int height = halfSize(src.height);
+        PixelBuffer dst = PixelBuffer.direct(new BufferedImage(width, height,
+                hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB));
+        Par.splitFor(0, height, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                int y0 = 2 * j;
+                int y1 = Math.min(y0 + 1, src.height - 1);
+                for (int i = 0; i < width; i++) {
+                    int x0 = 2 * i;
+                    int x1 = Math.min(x0 + 1, src.width - 1);
+                    int p00 = src.get(x0, y0), p10 = src.get(x1, y0), p01 = src.get(x0, y1), p11 = src.get(x1, y1);
+                    int a00 = p00 >>> 24, a10 = p10 >>> 24, a01 = p01 >>> 24, a11 = p11 >>> 24;
+                    int a = a00 + a10 + a01 + a11;
+                    int res = 0;
+                    if (a == 4 * 255) {
+                        for (int shift = 0; shift <= 16; shift += 8) {
+                            int sum = ((p00 >> shift) & 0xff) + ((p10 >> shift) & 0xff) + ((p01 >> shift) & 0xff) + ((p11 >> shift) & 0xff);
+                            res |= ((sum + 2) >> 2) << shift;
+                        }
+                        res |= 0xff000000;
+                    } else if (a != 0) {
+                        for (int shift = 0; shift <= 16; shift += 8) {
+                            int sum = ((p00 >> shift) & 0xff) * a00 + ((p10 >> shift) & 0xff) * a10
+                                    + ((p01 >> shift) & 0xff) * a01 + ((p11 >> shift) & 0xff) * a11;
+                            res |= ((sum + a / 2) / a) << shift;
+                        }
+                        res |= ((a + 2) >> 2) << 24;
+                    }
+                    dst.set(i, j, res);
+                }
+            }
+        });
+        return dst.image;
+    }
+    /** Gray images are opaque, so this is the same average as for opaque RGB images */
+    static BufferedImage halveGray(GrayBuffer src) {
+        int width = halfSize(src.width);
+        int height = halfSize(src.height);
+        GrayBuffer dst = GrayBuffer.newGrayImage(width, height);
+        Par.splitFor(0, height, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                int y0 = 2 * j;
+                int y1 = Math.min(y0 + 1, src.height - 1);
+                int d = dst.index(0, j);
+                for (int i = 0; i < width; i++) {
+                    int x0 = 2 * i;
+                    int x1 = Math.min(x0 + 1, src.width - 1);
+                    int sum = src.get(x0, y0) + src.get(x1, y0) + src.get(x0, y1) + src.get(x1, y1);
+                    dst.pixels[d + i] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        });
+        return dst.image;
     }
-    static int mult(double v, double zoom) {
-        return (int)(v*zoom);
+}
+/**
+ * Fisheye correction, rotation and zoom as one resampling of the source image.
+ * The inverse mappings are composed: a pixel of the zoomed canvas is mapped to a point of the rotated image,
+ * that point to a point of the fisheye-corrected image, and that point to a point of the source image,
+ * where the source is sampled. No full-size intermediate images are built, and the image is interpolated once.
+ * Coordinates are in pixel index space, pixel (i,j) being at the point (i,j).
+ */
+class GeometricWarp {
+    final BufferedImage source;
+    /** null if this warp does not do the fisheye correction */
+    final FisheyeCorrection fisheyeCorrection;
+    final FisheyeRemapTable.Geometry fisheye;
+    /** the size before rotation, that is, after fisheye correction */
+    final int width, height;
+    final AffineTransform rotation;
+    /** the size of the rotated image, the same as X3DViewer.rotate() makes */
+    final int rotatedWidth, rotatedHeight;
+
+    private GeometricWarp(BufferedImage source, FisheyeCorrection fisheyeCorrection, FisheyeRemapTable.Geometry fisheye, int width, int height, AffineTransform rotation, int rotatedWidth, int rotatedHeight) {
+        this.source = source;
+        this.fisheyeCorrection = fisheyeCorrection;
+        this.fisheye = fisheye;
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.rotatedWidth = rotatedWidth;
+        this.rotatedHeight = rotatedHeight;
     }
-    static int max0(int x) {
-        return Math.max(0, x);
+    /**
+     * @param fc the fisheye correction to be done by this warp, or null if the source has been corrected already
+     */
+    static GeometricWarp of(BufferedImage source, FisheyeCorrection fc, double alphaDegrees) {
+        var fisheye = fc == null ? null : FisheyeRemapTable.Geometry.of(source.getWidth(), source.getHeight(), fc);
+        int width = fisheye == null ? source.getWidth() : fisheye.WIDTH;
+        int height = fisheye == null ? source.getHeight() : fisheye.HEIGHT;
+        AffineTransform rotation = X3DViewer.rotationTransform(width, height, alphaDegrees);
+        if (ImageAndPath.isDummyImage(source)) {
+            // X3DViewer.rotate() does not rotate dummy images
+            return new GeometricWarp(source, null, null, width, height, rotation, width, height);
+        }
+        Dimension rotatedSize = ImageRotator.rotatedSize(width, height, rotation);
+        return new GeometricWarp(source, fc, fisheye, width, height, rotation, rotatedSize.width, rotatedSize.height);
+    }
+    /** Fisheye correction (if any) and rotation, as separate resamplings */
+    BufferedImage rotate() {
+        BufferedImage img = fisheyeCorrection == null ? source : fisheyeCorrection.doFisheyeCorrection(source);
+        return X3DViewer.rotate(img, rotation);
     }
-    static double max0(double x) {
-        return Math.max(0., x);
+    /**
+     * Render the warped source at the place and with the size given by the icon geometry
+     * (the icon image is not used, only its geometry), on a transparent canvas,
+     * like zoom() of the image made by X3DViewer.rotate().
+     */
+    BufferedImage render(ZoomedImageIcon placement) {
+        if (ImageAndPath.isDummyImage(source)) {
+            return placement.toBufferedImage();
+        }
+        int canvasWidth = placement.canvasWidth;
+        int canvasHeight = placement.canvasHeight;
+        int x0 = placement.xToDrawFrom;
+        int y0 = placement.yToDrawFrom;
+        int x1 = Math.min(canvasWidth, x0 + placement.newImageWidth);
+        int y1 = Math.min(canvasHeight, y0 + placement.newImageHeight);
+        PixelBuffer dst = PixelBuffer.direct(new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB));
+        if (x1 <= x0 || y1 <= y0) {
+            return dst.image;
+        }
+        // canvas (X,Y) -> rotated image (u,v) = ((X + 0.5 - x0)*sx - 0.5, (Y + 0.5 - y0)*sy - 0.5)
+        double sx = (double) rotatedWidth / placement.newImageWidth;
+        double sy = (double) rotatedHeight / placement.newImageHeight;
+        // rotated image (u,v) -> image before rotation (s,t) = inverse rotation of (u + 0.5, v + 0.5), minus 0.5
+        AffineTransform inverse;
+        try {
+            inverse = rotation.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalStateException(e);
+        }
+        double m00 = inverse.getScaleX(), m01 = inverse.getShearX(), m02 = inverse.getTranslateX();
+        double m10 = inverse.getShearY(), m11 = inverse.getScaleY(), m12 = inverse.getTranslateY();
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        Supplier<Sampler> samplers = Sampler.factory(placement.imageResamplingMode, source);
+        var g = fisheye;
+        Par.splitFor(y0, y1, (from, to) -> {
+            Sampler sampler = samplers.get();
+            for (int Y = from; Y < to; Y++) {
+                double v = (Y + 0.5 - y0) * sy;
+                int d = dst.index(0, Y);
+                for (int X = x0; X < x1; X++) {
+                    double u = (X + 0.5 - x0) * sx;
+                    double s = m00 * u + m01 * v + m02 - 0.5;
+                    double t = m10 * u + m11 * v + m12 - 0.5;
+                    if (!(s > -0.5 && s < width - 0.5 && t > -0.5 && t < height - 0.5)) {
+                        continue;
+                    }
+                    double x = s, y = t;
+                    if (g != null) {
+                        double dx = s - g.XC;
+                        double dy = t - g.YC;
+                        double R = Math.sqrt(dx * dx + dy * dy);
+                        if (R == 0.) {
+                            x = g.xc;
+                            y = g.yc;
+                        } else {
+                            double rR = g.xf.applyAsDouble(R) / R;
+                            x = g.xc + dx * rR;
+                            y = g.yc + dy * rR;
+                            if (!Double.isFinite(x) || !Double.isFinite(y)) {
+                                continue;
+                            }
+                        }
+                    }
+                    if (x > -0.5 && x < srcWidth - 0.5 && y > -0.5 && y < srcHeight - 0.5) {
+                        dst.pixels[d + X] = sampler.sample(x, y);
+                    }
+                }
+            }
+        });
+        return dst.image;
     }
 
-}
-
-class Spinners {
-    static JSpinner createJSpinner(Integer startValue, Integer min, Integer max) {
-        SpinnerNumberModel spinnerNumberModel = new SpinnerNumberModel(
-                startValue,
-                min,
-                max,
-                Integer.valueOf(1) // step
-        );
-        JSpinner jSpinner = new JSpinner(spinnerNumberModel);
+    /**
+     * Interpolation of the pixel values at a point between the pixels.
+     * A sampler may have scratch arrays, so it is used by one thread, see factory().
+     */
+    interface Sampler {
+        int sample(double x, double y);
+
+        /**
+         * Makes samplers of the image, one per thread; the pixels are accessed (or copied) once.
+         * A gray image is sampled as it is, without making an RGB copy of it.
+         */
+        static Supplier<Sampler> factory(ImageResamplingMode mode, BufferedImage image) {
+            GrayBuffer gray = GrayBuffer.direct(image);
+            if (gray != null) {
+                return () -> of(mode, gray);
+            }
+            PixelBuffer src = PixelBuffer.of(image);
+            return () -> of(mode, src);
+        }
+        /** The same colors as for an RGB image of these gray colors: each channel is interpolated the same way */
+        static Sampler of(ImageResamplingMode mode, GrayBuffer src) {
+            switch (mode) {
+                case NEAREST:
+                    return (x, y) -> src.getRgb((int) Math.round(x), (int) Math.round(y));
+                case BILINEAR:
+                    return (x, y) -> GrayBuffer.rgb(bilinear(src, x, y));
+                case LANCZOS: {
+                    double[] wx = new double[2 * ZoomResampler.support(mode)];
+                    double[] wy = new double[wx.length];
+                    return (x, y) -> GrayBuffer.rgb(separable(src, x, y, mode, wx, wy));
+                }
+                case BICUBIC:
+                default:
+                    return (x, y) -> GrayBuffer.rgb(bicubic(src, x, y));
+            }
+        }
 
-        JFormattedTextField jFormattedTextField = ((JSpinner.DefaultEditor)jSpinner.getEditor()).getTextField();
-        {
-            NumberFormat numberFormat = new DecimalFormat("#");
-            NumberFormatter numberFormatter = new NumberFormatter(numberFormat);
-            numberFormatter.setValueClass(Integer.class);
-            numberFormatter.setMinimum(0);
-            numberFormatter.setMaximum(Integer.MAX_VALUE);
-            numberFormatter.setAllowsInvalid(false);
-            DefaultFormatterFactory myFormatterFactory = new DefaultFormatterFactory(numberFormatter);
-            jFormattedTextField.setFormatterFactory(myFormatterFactory);
+        static Sampler of(ImageResamplingMode mode, PixelBuffer src) {
+            switch (mode) {
+                case NEAREST:
+                    return (x, y) -> src.get((int) Math.round(x), (int) Math.round(y));
+                case BILINEAR:
+                    return (x, y) -> bilinear(src, x, y);
+                case LANCZOS: {
+                    double[] wx = new double[2 * ZoomResampler.support(mode)];
+                    double[] wy = new double[wx.length];
+                    return (x, y) -> separable(src, x, y, mode, wx, wy);
+                }
+                case BICUBIC:
+                default:
+                    return (x, y) -> bicubic(src, x, y);
+            }
+        }
+        /**
+         * interpolation with the kernel that ZoomResampler uses for this mode
+         * @param wx, wy scratch arrays for the weights, of length 2*support
+         */
+        static int separable(PixelBuffer src, double x, double y, ImageResamplingMode mode, double[] wx, double[] wy) {
+            int support = ZoomResampler.support(mode);
+            int xi = (int) Math.floor(x) - support + 1;
+            int yi = (int) Math.floor(y) - support + 1;
+            double sx = 0, sy = 0;
+            for (int k = 0; k < 2 * support; k++) {
+                sx += wx[k] = ZoomResampler.weight(mode, x - (xi + k));
+                sy += wy[k] = ZoomResampler.weight(mode, y - (yi + k));
+            }
+            double r = 0, g = 0, b = 0;
+            for (int m = 0; m < 2 * support; m++) {
+                int yy = clamp(yi + m, src.height - 1);
+                for (int k = 0; k < 2 * support; k++) {
+                    int p = src.get(clamp(xi + k, src.width - 1), yy);
+                    double w = wx[k] * wy[m];
+                    r += ((p >> 16) & 0xff) * w;
+                    g += ((p >> 8) & 0xff) * w;
+                    b += (p & 0xff) * w;
+                }
+            }
+            double s = sx * sy;
+            return 0xff000000 | toByte(r / s) << 16 | toByte(g / s) << 8 | toByte(b / s);
+        }
+        static int separable(GrayBuffer src, double x, double y, ImageResamplingMode mode, double[] wx, double[] wy) {
+            int support = ZoomResampler.support(mode);
+            int xi = (int) Math.floor(x) - support + 1;
+            int yi = (int) Math.floor(y) - support + 1;
+            double sx = 0, sy = 0;
+            for (int k = 0; k < 2 * support; k++) {
+                sx += wx[k] = ZoomResampler.weight(mode, x - (xi + k));
+                sy += wy[k] = ZoomResampler.weight(mode, y - (yi + k));
+            }
+            double v = 0;
+            for (int m = 0; m < 2 * support; m++) {
+                int yy = clamp(yi + m, src.height - 1);
+                for (int k = 0; k < 2 * support; k++) {
+                    v += src.get(clamp(xi + k, src.width - 1), yy) * (wx[k] * wy[m]);
+                }
+            }
+            return toByte(v / (sx * sy));
+        }
+        static int clamp(int v, int max) {
+            return v < 0 ? 0 : v > max ? max : v;
+        }
+        static int bilinear(PixelBuffer src, double x, double y) {
+            int xi = (int) Math.floor(x);
+            int yi = (int) Math.floor(y);
+            double fx = x - xi;
+            double fy = y - yi;
+            int xa = clamp(xi, src.width - 1), xb = clamp(xi + 1, src.width - 1);
+            int ya = clamp(yi, src.height - 1), yb = clamp(yi + 1, src.height - 1);
+            int p00 = src.get(xa, ya), p10 = src.get(xb, ya), p01 = src.get(xa, yb), p11 = src.get(xb, yb);
+            int res = 0xff000000;
+            for (int shift = 0; shift <= 16; shift += 8) {
+                double top = ((p00 >> shift) & 0xff) * (1 - fx) + ((p10 >> shift) & 0xff) * fx;
+                double bottom = ((p01 >> shift) & 0xff) * (1 - fx) + ((p11 >> shift) & 0xff) * fx;
+                res |= ((int) (top * (1 - fy) + bottom * fy + 0.5)) << shift;
+            }
+            return res;
+        }
+        static int bilinear(GrayBuffer src, double x, double y) {
+            int xi = (int) Math.floor(x);
+            int yi = (int) Math.floor(y);
+            double fx = x - xi;
+            double fy = y - yi;
+            int xa = clamp(xi, src.width - 1), xb = clamp(xi + 1, src.width - 1);
+            int ya = clamp(yi, src.height - 1), yb = clamp(yi + 1, src.height - 1);
+            double top = src.get(xa, ya) * (1 - fx) + src.get(xb, ya) * fx;
+            double bottom = src.get(xa, yb) * (1 - fx) + src.get(xb, yb) * fx;
+            return (int) (top * (1 - fy) + bottom * fy + 0.5);
+        }
+        /** cubic convolution with a = -0.5 */
+        static double cubicWeight(double d) {
+            d = Math.abs(d);
+            if (d <= 1) {
+                return (1.5 * d - 2.5) * d * d + 1;
+            } else if (d < 2) {
+                return ((-0.5 * d + 2.5) * d - 4) * d + 2;
+            }
+            return 0;
+        }
+        /** the 4 weights are in locals, not in arrays, because this is called for each pixel */
+        static int bicubic(PixelBuffer src, double x, double y) {
+            int xi = (int) Math.floor(x);
+            int yi = (int) Math.floor(y);
+            double wx0 = cubicWeight(x - (xi - 1)), wx1 = cubicWeight(x - xi), wx2 = cubicWeight(x - (xi + 1)), wx3 = cubicWeight(x - (xi + 2));
+            double wy0 = cubicWeight(y - (yi - 1)), wy1 = cubicWeight(y - yi), wy2 = cubicWeight(y - (yi + 1)), wy3 = cubicWeight(y - (yi + 2));
+            int x0 = clamp(xi - 1, src.width - 1), x1 = clamp(xi, src.width - 1);
+            int x2 = clamp(xi + 1, src.width - 1), x3 = clamp(xi + 2, src.width - 1);
+            double r = 0, g = 0, b = 0;
+            for (int m = 0; m < 4; m++) {
+                int yy = clamp(yi - 1 + m, src.height - 1);
+                double wy = m == 0 ? wy0 : m == 1 ? wy1 : m == 2 ? wy2 : wy3;
+                int p0 = src.get(x0, yy), p1 = src.get(x1, yy), p2 = src.get(x2, yy), p3 = src.get(x3, yy);
+                r += (((p0 >> 16) & 0xff) * wx0 + ((p1 >> 16) & 0xff) * wx1 + ((p2 >> 16) & 0xff) * wx2 + ((p3 >> 16) & 0xff) * wx3) * wy;
+                g += (((p0 >> 8) & 0xff) * wx0 + ((p1 >> 8) & 0xff) * wx1 + ((p2 >> 8) & 0xff) * wx2 + ((p3 >> 8) & 0xff) * wx3) * wy;
+                b += ((p0 & 0xff) * wx0 + (p1 & 0xff) * wx1 + (p2 & 0xff) * wx2 + (p3 & 0xff) * wx3) * wy;
+            }
+            return 0xff000000 | toByte(r) << 16 | toByte(g) << 8 | toByte(b);
+        }
+        static int bicubic(GrayBuffer src, double x, double y) {
+            int xi = (int) Math.floor(x);
+            int yi = (int) Math.floor(y);
+            double wx0 = cubicWeight(x - (xi - 1)), wx1 = cubicWeight(x - xi), wx2 = cubicWeight(x - (xi + 1)), wx3 = cubicWeight(x - (xi + 2));
+            double wy0 = cubicWeight(y - (yi - 1)), wy1 = cubicWeight(y - yi), wy2 = cubicWeight(y - (yi + 1)), wy3 = cubicWeight(y - (yi + 2));
+            int x0 = clamp(xi - 1, src.width - 1), x1 = clamp(xi, src.width - 1);
+            int x2 = clamp(xi + 1, src.width - 1), x3 = clamp(xi + 2, src.width - 1);
+            double v = 0;
+            for (int m = 0; m < 4; m++) {
+                int yy = clamp(yi - 1 + m, src.height - 1);
+                double wy = m == 0 ? wy0 : m == 1 ? wy1 : m == 2 ? wy2 : wy3;
+                v += (src.get(x0, yy) * wx0 + src.get(x1, yy) * wx1 + src.get(x2, yy) * wx2 + src.get(x3, yy) * wx3) * wy;
+            }
+            return toByte(v);
+        }
+        static int toByte(double v) {
+            int i = (int) (v + 0.5);
+            return i < 0 ? 0 : i > 255 ? 255 : i;
         }
-        return jSpinner;
     }
 }
-
-enum OneOrBothPanes {JUST_THIS, BOTH_PANES, SEE_CHECKBOX}
-
+/**
+ * Rotation of an image by an affine transform, a replacement for AffineTransformOp.filter(image, null)
+ * that makes an image of the same size and (for opaque images) the same TYPE_INT_ARGB type,
+ * transparent where no source pixel maps to, but computes the rows in parallel via Par.
+ * Rotations by multiples of 90° (including 0°) map pixels onto pixels and are done without interpolation.
+ */
+class ImageRotator {
+    /** The size of the image made by rotate(), the same as AffineTransformOp.createCompatibleDestImage() makes */
+    static Dimension rotatedSize(int width, int height, AffineTransform transform) {
+        float[] pts = {0, 0, width, 0, width, height, 0, height};
+        transform.transform(pts, 0, pts, 0, 4);
+        float maxX = Math.max(Math.max(pts[0], pts[2]), Math.max(pts[4], pts[6]));
+        float maxY = Math.max(Math.max(pts[1], pts[3]), Math.max(pts[5], pts[7]));
+        float minX = Math.min(Math.min(pts[0], pts[2]), Math.min(pts[4], pts[6]));
+        float minY = Math.min(Math.min(pts[1], pts[3]), Math.min(pts[5], pts[7]));
+        Rectangle bounds = new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY).getBounds();
+        return new Dimension(bounds.x + bounds.width, bounds.y + bounds.height);
+    }
+    static BufferedImage rotate(BufferedImage source, AffineTransform transform, ImageResamplingMode mode) {
+        Dimension size = rotatedSize(source.getWidth(), source.getHeight(), transform);
+        if (transform.isIdentity()
+         && source.getType() == BufferedImage.TYPE_INT_ARGB
+         && size.width == source.getWidth() && size.height == source.getHeight()
+        ) {
+            // nothing to do, and the type is already what we would make
+            return source;
+        }
+        // a pixel (X,Y) of the result is at the point (X+0.5, Y+0.5), its source is the inverse transform of that point
+        AffineTransform inverse;
+        try {
+            inverse = transform.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException(e);
+        }
+        double m00 = inverse.getScaleX(), m01 = inverse.getShearX();
+        double m10 = inverse.getShearY(), m11 = inverse.getScaleY();
+        double m02 = m00 * 0.5 + m01 * 0.5 + inverse.getTranslateX() - 0.5;
+        double m12 = m10 * 0.5 + m11 * 0.5 + inverse.getTranslateY() - 0.5;
+        // the result has transparent margins, so even a gray source makes an RGB image
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        PixelBuffer dst = PixelBuffer.direct(new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_ARGB));
+        if (isInteger(m00) && isInteger(m01) && isInteger(m10) && isInteger(m11) && isInteger(m02) && isInteger(m12)) {
+            GrayBuffer gray = GrayBuffer.direct(source);
+            PixelBuffer src = gray == null ? PixelBuffer.of(source) : null;
+            IntBinaryOperator pixel = gray != null ? gray::getRgb : src::get;
+            permute(srcWidth, srcHeight, pixel, dst, (int) m00, (int) m01, (int) Math.rint(m02), (int) m10, (int) m11, (int) Math.rint(m12));
+        } else {
+            Supplier<GeometricWarp.Sampler> samplers = GeometricWarp.Sampler.factory(mode, source);
+            Par.splitFor(0, dst.height, (from, to) -> {
+                GeometricWarp.Sampler sampler = samplers.get();
+                for (int Y = from; Y < to; Y++) {
+                    int d = dst.index(0, Y);
+                    for (int X = 0; X < dst.width; X++) {
+                        double x = m00 * X + m01 * Y + m02;
+                        double y = m10 * X + m11 * Y + m12;
+                        if (x > -0.5 && x < srcWidth - 0.5 && y > -0.5 && y < srcHeight - 0.5) {
+                            dst.pixels[d + X] = sampler.sample(x, y);
+                        }
+                    }
+                }
+            });
+        }
+        return dst.image;
+    }
+    /** true for exact integers and for what differs from an integer only by rounding errors */
+    static boolean isInteger(double v) {
+        return Math.abs(v - Math.rint(v)) < 1e-9;
+    }
+    /**
+     * The source pixel of (X,Y) is (a*X + b*Y + c, d*X + e*Y + f); pixels that have no source stay transparent
+     * @param pixel the color of the source pixel (x,y)
+     */
+    private static void permute(int srcWidth, int srcHeight, IntBinaryOperator pixel, PixelBuffer dst, int a, int b, int c, int d, int e, int f) {
+        Par.splitFor(0, dst.height, (from, to) -> {
+            for (int Y = from; Y < to; Y++) {
+                int k = dst.index(0, Y);
+                if (a == 1 && b == 0 && d == 0 && e == 1) {
+                    // the same row, shifted
+                    int y = Y + f;
+                    if (y >= 0 && y < srcHeight) {
+                        int x0 = Math.max(0, -c);
+                        int x1 = Math.min(dst.width, srcWidth - c);
+                        for (int X = x0; X < x1; X++) {
+                            dst.pixels[k + X] = pixel.applyAsInt(X + c, y);
+                        }
+                    }
+                    continue;
+                }
+                for (int X = 0; X < dst.width; X++) {
+                    int x = a * X + b * Y + c;
+                    int y = d * X + e * Y + f;
+                    if (x >= 0 && x < srcWidth && y >= 0 && y < srcHeight) {
+                        dst.pixels[k + X] = pixel.applyAsInt(x, y);
+                    }
+                }
+            }
+        });
+    }
+}
 enum ImageResamplingMode {
     NEAREST(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, "\"Nearest Neighbor\" value interpolation"),
     BILINEAR(RenderingHints.VALUE_INTERPOLATION_BILINEAR, "Bilinear value interpolation"),
-    BICUBIC(RenderingHints.VALUE_INTERPOLATION_BICUBIC, "Bicubic value interpolation");
+    BICUBIC(RenderingHints.VALUE_INTERPOLATION_BICUBIC, "Bicubic value interpolation"),
+    LANCZOS(RenderingHints.VALUE_INTERPOLATION_BICUBIC, "Lanczos (a=3) value interpolation, sharper than bicubic");
 
     final Object renderingHint;
     final String description;
@@ -5542,193 +7574,483 @@ class Pair<T> {
     }
 }
 
-class Debayer {
-    static BufferedImage debayer_dotted(BufferedImage orig) {
-        int HEIGHT = orig.getHeight();
-        int WIDTH = orig.getWidth();
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Par.splitFor(0, HEIGHT, (from, to) -> {
-            for (int j = from; j < to; j++) {
-                for (int i = 0; i < WIDTH; i++) {
-                    int type = (j & 1) * 2 + (i & 1); // RGGB
-                    int r = 0, g = 0, b = 0;
-                    switch (type) {
-                        case 0: { // R
-                            r = getC(orig, i, j);
-                        }
-                        break;
-                        case 1:
-                        case 2: { // G
-                            g = getC(orig, i, j);
-                        }
-                        break;
-                        case 3: { // B
-                            b = getC(orig, i, j);
+/**
+ * Direct access to the pixels of an image as an int[] array of ARGB values (as returned by getRGB).
+ * BufferedImage.getRGB()/setRGB() convert each pixel via the ColorModel, this is what we avoid here.
+ * <p/>
+ * For TYPE_INT_RGB and TYPE_INT_ARGB images, the array of the image's DataBufferInt is used directly,
+ * and writes go to the image. Pixels of other images are converted once into a new array
+ * (3-byte BGR and single-byte images have fast paths), such a buffer is read-only with respect to the image.
+ */
+class PixelBuffer {
+    final int width;
+    final int height;
+    final int[] pixels;
+    /** index of the pixel (0,0) in pixels[] */
+    final int offset;
+    final int scanlineStride;
+    /** ORed to what we read, so that for images without alpha we get the same as from getRGB() */
+    final int alphaMask;
+    /** the image that has this pixel array, or null if the array is a copy */
+    final BufferedImage image;
+
+    private PixelBuffer(int width, int height, int[] pixels, int offset, int scanlineStride, int alphaMask, BufferedImage image) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.offset = offset;
+        this.scanlineStride = scanlineStride;
+        this.alphaMask = alphaMask;
+        this.image = image;
+    }
+    /** Get the pixels for reading: either the image's own array or a copy */
+    static PixelBuffer of(BufferedImage image) {
+        PixelBuffer res = direct(image);
+        return res != null ? res : copyOf(image);
+    }
+    /** A new TYPE_INT_RGB image and direct access to its pixels */
+    static PixelBuffer newRgbImage(int width, int height) {
+        return direct(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+    }
+    /** Get the image's own pixel array, or null if the image does not store pixels as ARGB/RGB ints */
+    static PixelBuffer direct(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)
+         || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+        ) {
+            return null;
+        }
+        DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int offset = dataBuffer.getOffset()
+                   - raster.getSampleModelTranslateY() * stride
+                   - raster.getSampleModelTranslateX();
+        return new PixelBuffer(
+                image.getWidth(), image.getHeight(),
+                dataBuffer.getData(), offset, stride,
+                type == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0,
+                image
+        );
+    }
+    static PixelBuffer copyOf(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[width * height];
+        WritableRaster raster = image.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferByte
+         && raster.getDataBuffer().getNumBanks() == 1
+         && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+        ) {
+            var sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = sm.getScanlineStride();
+            int pixelStride = sm.getPixelStride();
+            int[] bandOffsets = sm.getBandOffsets();
+            int offset = raster.getDataBuffer().getOffset()
+                       - raster.getSampleModelTranslateY() * stride
+                       - raster.getSampleModelTranslateX() * pixelStride;
+            if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+                int ro = bandOffsets[0];
+                int go = bandOffsets[1];
+                int bo = bandOffsets[2];
+                Par.splitFor(0, height, (from, to) -> {
+                    for (int j = from; j < to; j++) {
+                        int k = offset + j * stride;
+                        int n = j * width;
+                        for (int i = 0; i < width; i++, k += pixelStride) {
+                            pixels[n + i] = 0xff000000
+                                          | (0xff & data[k + ro]) << 16
+                                          | (0xff & data[k + go]) << 8
+                                          | (0xff & data[k + bo]);
                         }
-                        break;
                     }
-                    res.setRGB(i, j, (r << 16) | (g << 8) | b);
+                });
+                return new PixelBuffer(width, height, pixels, 0, width, 0, null);
+            }
+            if (sm.getNumBands() == 1 && image.getColorModel().getPixelSize() == 8) {
+                // gray and indexed images: the color model maps each of the 256 values to some color
+                int[] lut = new int[256];
+                byte[] value = new byte[1];
+                for (int v = 0; v < 256; v++) {
+                    value[0] = (byte) v;
+                    lut[v] = image.getColorModel().getRGB(value);
                 }
+                int bo = bandOffsets[0];
+                Par.splitFor(0, height, (from, to) -> {
+                    for (int j = from; j < to; j++) {
+                        int k = offset + j * stride + bo;
+                        int n = j * width;
+                        for (int i = 0; i < width; i++, k += pixelStride) {
+                            pixels[n + i] = lut[0xff & data[k]];
+                        }
+                    }
+                });
+                return new PixelBuffer(width, height, pixels, 0, width, 0, null);
             }
-        });
-        return res;
+        }
+        Par.splitFor(0, height, (from, to) ->
+            image.getRGB(0, from, width, to - from, pixels, from * width, width)
+        );
+        return new PixelBuffer(width, height, pixels, 0, width, 0, null);
     }
-
-    static BufferedImage debayer_squares(BufferedImage orig) {
-        int HEIGHT = orig.getHeight();
-        int WIDTH = orig.getWidth();
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Par.splitFor(0, HEIGHT, (from, to) -> {
-            for (int j=from; j<to; j++) {
-                for (int i=0; i<WIDTH; i++) {
-                    int R = getC(orig, i&-2, j&-2);
-                    int Gr = getC(orig, i&-2, j|1);
-                    int Gb = getC(orig, i|1, j&-2);
-                    int B = getC(orig, i|1, j|1);
-                    // R Gr R Gr
-                    // Gb B Gb B
-                    // R Gr R Gr
-                    // Gb B Gb B
-                    int r = R;
-                    int g = Gb;
-                    int b = B;
-                    res.setRGB(i,j,(r<<16)|(g<<8)|b);
-                }
+    int index(int x, int y) {
+        return offset + y * scanlineStride + x;
+    }
+    int get(int x, int y) {
+        return pixels[offset + y * scanlineStride + x] | alphaMask;
+    }
+    /** As with setRGB(), for images without alpha the alpha byte is ignored */
+    void set(int x, int y, int argb) {
+        pixels[offset + y * scanlineStride + x] = argb;
+    }
+    /** Read the pixels [x, x+length) of the row y into row[0..length) */
+    int[] getRow(int x, int y, int length, int[] row) {
+        int k = index(x, y);
+        if (alphaMask == 0) {
+            System.arraycopy(pixels, k, row, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                row[i] = pixels[k + i] | alphaMask;
             }
-        });
-        return res;
+        }
+        return row;
+    }
+    /** Write row[0..length) to the pixels [x, x+length) of the row y */
+    void setRow(int x, int y, int length, int[] row) {
+        System.arraycopy(row, 0, pixels, index(x, y), length);
     }
+}
+/**
+ * Grayscale images with one byte per pixel, for the frames that have no color (most NAVCAM and HAZCAM ones).
+ * A gray image is a TYPE_BYTE_INDEXED image with the GRAY palette, where the value v is the color (v,v,v);
+ * so getRGB(), drawImage() and PixelBuffer.of() see the same colors as in an RGB image, and the code
+ * that knows nothing about gray images works with them as before. The stages that know about them
+ * read and write the bytes, and the result is expanded to RGB only where the colors may become different.
+ * (TYPE_BYTE_GRAY is not used as is: its color space is linear, and getRGB() makes the values lighter.)
+ */
+class GrayBuffer {
+    static final IndexColorModel GRAY;
+    static {
+        byte[] v = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            v[i] = (byte) i;
+        }
+        GRAY = new IndexColorModel(8, 256, v, v, v);
+    }
+    final int width;
+    final int height;
+    final byte[] pixels;
+    /** index of the pixel (0,0) in pixels[] */
+    final int offset;
+    final int scanlineStride;
+    final BufferedImage image;
 
-    static BufferedImage debayer_closest_match_square(BufferedImage orig) {
-        int HEIGHT = orig.getHeight();
-        int WIDTH = orig.getWidth();
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Par.splitFor(0, HEIGHT, (from, to) -> {
+    private GrayBuffer(int width, int height, byte[] pixels, int offset, int scanlineStride, BufferedImage image) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.offset = offset;
+        this.scanlineStride = scanlineStride;
+        this.image = image;
+    }
+    /** A new gray image and direct access to its pixels */
+    static GrayBuffer newGrayImage(int width, int height) {
+        return direct(new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, GRAY));
+    }
+    static boolean isGray(BufferedImage image) {
+        return image.getColorModel() == GRAY;
+    }
+    /** Get the image's own pixel array, or null if the image is not a gray one */
+    static GrayBuffer direct(BufferedImage image) {
+        if (!isGray(image)) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+         || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+         || ((PixelInterleavedSampleModel) raster.getSampleModel()).getPixelStride() != 1
+        ) {
+            return null;
+        }
+        var sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+        int stride = sm.getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset() + sm.getBandOffsets()[0]
+                   - raster.getSampleModelTranslateY() * stride
+                   - raster.getSampleModelTranslateX();
+        return new GrayBuffer(
+                image.getWidth(), image.getHeight(),
+                ((DataBufferByte) raster.getDataBuffer()).getData(), offset, stride,
+                image
+        );
+    }
+    /**
+     * The same picture as a gray image if all its pixels are opaque shades of gray, otherwise the image itself.
+     * 8-bit gray and indexed images are checked by their color model, the others by their pixels;
+     * for a color image, the scan usually stops at the first pixels.
+     */
+    static BufferedImage compactIfGray(BufferedImage image) {
+        if (image == null || isGray(image) || image.getColorModel().hasAlpha()) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        if (raster.getNumBands() == 1 && image.getColorModel().getPixelSize() == 8) {
+            // the color model maps each of the 256 values to some color, and all of them must be gray
+            byte[] lut = new byte[256];
+            byte[] value = new byte[1];
+            for (int v = 0; v < 256; v++) {
+                value[0] = (byte) v;
+                int rgb = image.getColorModel().getRGB(value);
+                if (!isGray(rgb)) {
+                    return image;
+                }
+                lut[v] = (byte) rgb;
+            }
+            GrayBuffer dst = newGrayImage(width, height);
+            Par.splitFor(0, height, (from, to) -> {
+                int[] row = new int[width];
+                for (int j = from; j < to; j++) {
+                    raster.getSamples(0, j, width, 1, 0, row);
+                    int d = dst.index(0, j);
+                    for (int i = 0; i < width; i++) {
+                        dst.pixels[d + i] = lut[row[i]];
+                    }
+                }
+            });
+            return dst.image;
+        }
+        // the first row says no for most color images, before anything is allocated for the whole image
+        if (!isGray(image.getRGB(0, 0, width, 1, null, 0, width))) {
+            return image;
+        }
+        PixelBuffer src = PixelBuffer.of(image);
+        GrayBuffer dst = newGrayImage(width, height);
+        boolean gray = Par.splitFor(0, height, (from, to) -> {
             for (int j = from; j < to; j++) {
-                for (int i = 0; i < WIDTH; i++) {
-                    int type = (j & 1) * 2 + (i & 1); // RGGB
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    int r, g, b;
-                    switch (type) {
-                        case 0: { // R
-                            r = getC(orig, i, j);
-                            Direction dirG = findClosestMatchDist2(orig, i, j, Direction.E, Direction.S, Direction.W, Direction.N);
-                            g = getC(orig, dirG.x1(i), dirG.y1(j));
-                            Direction dirB = findClosestMatchDist2(orig, i, j, Direction.SE, Direction.SW, Direction.NW, Direction.NE);
-                            b = getC(orig, dirB.x1(i), dirB.y1(j));
-                        }
-                        break;
-                        case 1: { // Gr
-                            Direction dirR = findClosestMatchDist2(orig, i, j, Direction.W, Direction.E);
-                            r = getC(orig, dirR.x1(i), dirR.y1(j));
-                            g = getC(orig, i, j);
-                            Direction dirB = findClosestMatchDist2(orig, i, j, Direction.S, Direction.N);
-                            b = getC(orig, dirB.x1(i), dirB.y1(j));
-                        }
-                        break;
-                        case 2: { // Gb
-                            Direction dirR = findClosestMatchDist2(orig, i, j, Direction.N, Direction.S);
-                            r = getC(orig, dirR.x1(i), dirR.y1(j));
-                            g = getC(orig, i, j);
-                            Direction dirB = findClosestMatchDist2(orig, i, j, Direction.E, Direction.W);
-                            b = getC(orig, dirB.x1(i), dirB.y1(j));
-                        }
-                        break;
-                        case 3: { // B
-                            Direction dirR = findClosestMatchDist2(orig, i, j, Direction.NW, Direction.SW, Direction.SE, Direction.NE);
-                            r = getC(orig, dirR.x1(i), dirR.y1(j));
-                            Direction dirG = findClosestMatchDist2(orig, i, j, Direction.W, Direction.N, Direction.E, Direction.S);
-                            g = getC(orig, dirG.x1(i), dirG.y1(j));
-                            b = getC(orig, i, j);
-                        }
-                        break;
-                        default: // stupid Java, this is impossible! type is 0..3!
-                            r = g = b = 0;
+                int s = src.index(0, j);
+                int d = dst.index(0, j);
+                for (int i = 0; i < width; i++) {
+                    int rgb = src.pixels[s + i];
+                    if (!isGray(rgb)) {
+                        return false;
                     }
-                    res.setRGB(i, j, (r << 16) | (g << 8) | b);
+                    dst.pixels[d + i] = (byte) rgb;
                 }
             }
-        });
-        return res;
+            return true;
+        }, stream -> stream.allMatch(x -> x));
+        return gray ? dst.image : image;
     }
-    static BufferedImage debayer_closest_match_WNSE_clockwise(BufferedImage orig) {
+    static boolean isGray(int rgb) {
+        return ((rgb >> 8) & 0xffff) == (rgb & 0xffff);
+    }
+    static boolean isGray(int[] rgbs) {
+        for (int rgb : rgbs) {
+            if (!isGray(rgb)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    int index(int x, int y) {
+        return offset + y * scanlineStride + x;
+    }
+    /** The gray value, 0..255 */
+    int get(int x, int y) {
+        return 0xff & pixels[offset + y * scanlineStride + x];
+    }
+    /** The color, as PixelBuffer.get() would read it */
+    int getRgb(int x, int y) {
+        return rgb(0xff & pixels[offset + y * scanlineStride + x]);
+    }
+    /** Read the colors of the pixels [x, x+length) of the row y into row[0..length) */
+    int[] getRgbRow(int x, int y, int length, int[] row) {
+        int k = index(x, y);
+        for (int i = 0; i < length; i++) {
+            row[i] = rgb(0xff & pixels[k + i]);
+        }
+        return row;
+    }
+    static int rgb(int value) {
+        return 0xff000000 | value * 0x010101;
+    }
+}
+
+class Debayer {
+    static BufferedImage debayer_dotted(BufferedImage orig) {
         int HEIGHT = orig.getHeight();
         int WIDTH = orig.getWidth();
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        PixelBuffer src = PixelBuffer.of(orig);
+        PixelBuffer dst = PixelBuffer.newRgbImage(WIDTH, HEIGHT);
         Par.splitFor(0, HEIGHT, (from, to) -> {
             for (int j = from; j < to; j++) {
                 for (int i = 0; i < WIDTH; i++) {
                     int type = (j & 1) * 2 + (i & 1); // RGGB
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    int r, g, b;
+                    int r = 0, g = 0, b = 0;
                     switch (type) {
                         case 0: { // R
-                            r = getC(orig, i, j);
-                            Direction dirG = findClosestMatchDist2(orig, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
-                            g = getC(orig, dirG.x1(i), dirG.y1(j));
-                            Direction dirB = findClosestMatchDist2(orig, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
-                            b = getC(orig, dirB.x1(i), dirB.y1(j));
-                        }
-                        break;
-                        case 1: { // Gr
-                            Direction dirR = findClosestMatchDist2(orig, i, j, Direction.W, Direction.E);
-                            r = getC(orig, dirR.x1(i), dirR.y1(j));
-                            g = getC(orig, i, j);
-                            Direction dirB = findClosestMatchDist2(orig, i, j, Direction.N, Direction.S);
-                            b = getC(orig, dirB.x1(i), dirB.y1(j));
+                            r = getC(src, i, j);
                         }
                         break;
-                        case 2: { // Gb
-                            Direction dirR = findClosestMatchDist2(orig, i, j, Direction.N, Direction.S);
-                            r = getC(orig, dirR.x1(i), dirR.y1(j));
-                            g = getC(orig, i, j);
-                            Direction dirB = findClosestMatchDist2(orig, i, j, Direction.W, Direction.E);
-                            b = getC(orig, dirB.x1(i), dirB.y1(j));
+                        case 1:
+                        case 2: { // G
+                            g = getC(src, i, j);
                         }
                         break;
                         case 3: { // B
-                            Direction dirR = findClosestMatchDist2(orig, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
-                            r = getC(orig, dirR.x1(i), dirR.y1(j));
-                            Direction dirG = findClosestMatchDist2(orig, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
-                            g = getC(orig, dirG.x1(i), dirG.y1(j));
-                            b = getC(orig, i, j);
+                            b = getC(src, i, j);
                         }
                         break;
-                        default: // stupid Java, this is impossible! type is 0..3!
-                            r = g = b = 0;
                     }
-                    res.setRGB(i, j, (r << 16) | (g << 8) | b);
+                    dst.set(i, j, (r << 16) | (g << 8) | b);
                 }
             }
         });
-        return res;
+        return dst.image;
+    }
+
+    static BufferedImage debayer_squares(BufferedImage orig) {
+        int HEIGHT = orig.getHeight();
+        int WIDTH = orig.getWidth();
+        PixelBuffer src = PixelBuffer.of(orig);
+        PixelBuffer dst = PixelBuffer.newRgbImage(WIDTH, HEIGHT);
+        Par.splitFor(0, HEIGHT, (from, to) -> {
+            for (int j=from; j<to; j++) {
+                for (int i=0; i<WIDTH; i++) {
+                    int R = getC(src, i&-2, j&-2);
+                    int Gr = getC(src, i&-2, j|1);
+                    int Gb = getC(src, i|1, j&-2);
+                    int B = getC(src, i|1, j|1);
+                    // R Gr R Gr
+                    // Gb B Gb B
+                    // R Gr R Gr
+                    // Gb B Gb B
+                    int r = R;
+                    int g = Gb;
+                    int b = B;
+                    dst.set(i,j, (r<<16)|(g<<8)|b);
+                }
+            }
+        });
+        return dst.image;
     }
-    static Direction findClosestMatchDist2(BufferedImage bi, int i, int j, Direction... directions) {
-        int c0 = getC(bi, i, j);
-        int diff = Integer.MAX_VALUE;
-        Direction bestDirection = null;
-        for (Direction d : directions) {
-            int c = getC(bi, d.x2(i), d.y2(j));
-            if (c==c0) {
-                return d;
+
+    static BufferedImage debayer_closest_match_square(BufferedImage orig) {
+        return closestMatch(orig, CLOSEST_MATCH_SQUARE);
+    }
+    static BufferedImage debayer_closest_match_WNSE_clockwise(BufferedImage orig) {
+        return closestMatch(orig, CLOSEST_MATCH_WNSE_CLOCKWISE);
+    }
+    /**
+     * Where to look for the closest match, in the order of preference: for R, the directions for G and for B,
+     * then for Gr the directions for R and B, for Gb R and B, and for B R and G.
+     */
+    static final Direction[][] CLOSEST_MATCH_SQUARE = {
+            {Direction.E, Direction.S, Direction.W, Direction.N}, {Direction.SE, Direction.SW, Direction.NW, Direction.NE},
+            {Direction.W, Direction.E}, {Direction.S, Direction.N},
+            {Direction.N, Direction.S}, {Direction.E, Direction.W},
+            {Direction.NW, Direction.SW, Direction.SE, Direction.NE}, {Direction.W, Direction.N, Direction.E, Direction.S},
+    };
+    static final Direction[][] CLOSEST_MATCH_WNSE_CLOCKWISE = {
+            {Direction.W, Direction.N, Direction.S, Direction.E}, {Direction.NW, Direction.SW, Direction.NE, Direction.SE},
+            {Direction.W, Direction.E}, {Direction.N, Direction.S},
+            {Direction.N, Direction.S}, {Direction.W, Direction.E},
+            {Direction.NW, Direction.SW, Direction.NE, Direction.SE}, {Direction.W, Direction.N, Direction.S, Direction.E},
+    };
+    /** the closest match compares the pixels 2 steps away */
+    static final int PAD = 2;
+    /**
+     * For each pixel, the neighbor in the direction where the pixel 2 steps away is the closest to it.
+     * The mosaic is first copied to a byte plane with a border of zeros (as getC() returns 0 outside of the image),
+     * and the directions are offsets in the plane.
+     * The bytes of a gray mosaic are copied as they are, of a color one the red channel is taken.
+     */
+    static BufferedImage closestMatch(BufferedImage orig, Direction[][] directions) {
+        int width = orig.getWidth();
+        int height = orig.getHeight();
+        int stride = width + 2*PAD;
+        byte[] plane = new byte[stride * (height + 2*PAD)];
+        GrayBuffer gray = GrayBuffer.direct(orig);
+        PixelBuffer src = gray == null ? PixelBuffer.of(orig) : null;
+        Par.splitFor(0, height, (from, to) -> {
+            int[] row = new int[width];
+            for (int j = from; j < to; j++) {
+                int k = (j + PAD) * stride + PAD;
+                if (gray != null) {
+                    System.arraycopy(gray.pixels, gray.index(0, j), plane, k, width);
+                    continue;
+                }
+                src.getRow(0, j, width, row);
+                for (int i = 0; i < width; i++) {
+                    plane[k + i] = (byte) (row[i] >> 16);
+                }
             }
-            int newDiff = Math.abs(c - c0);
-            if (newDiff < diff) {
-                diff = newDiff;
-                bestDirection = d;
+        });
+        int[][] d = new int[directions.length][];
+        for (int n = 0; n < directions.length; n++) {
+            d[n] = new int[directions[n].length];
+            for (int m = 0; m < directions[n].length; m++) {
+                d[n][m] = directions[n][m].dy * stride + directions[n][m].dx;
             }
         }
-        return bestDirection;
+        PixelBuffer dst = PixelBuffer.newRgbImage(width, height);
+        Par.splitFor(0, height, (from, to) -> {
+            int[] row = new int[width];
+            for (int j = from; j < to; j++) {
+                int k0 = (j + PAD) * stride + PAD;
+                // R Gr R Gr R Gr
+                // Gb B Gb B Gb B
+                // the pixel after the last one is in the padding, and is not used
+                if ((j & 1) == 0) {
+                    int[] dG = d[0], dB = d[1], dR1 = d[2], dB1 = d[3];
+                    for (int i = 0, k = k0; i < width; i += 2, k += 2) {
+                        int c = plane[k] & 0xff;
+                        row[i] = c << 16 | closest4(plane, k, c, dG) << 8 | closest4(plane, k, c, dB);
+                        int c1 = plane[k+1] & 0xff;
+                        if (i + 1 < width) {
+                            row[i+1] = closest2(plane, k+1, c1, dR1) << 16 | c1 << 8 | closest2(plane, k+1, c1, dB1);
+                        }
+                    }
+                } else {
+                    int[] dR = d[4], dB = d[5], dR1 = d[6], dG1 = d[7];
+                    for (int i = 0, k = k0; i < width; i += 2, k += 2) {
+                        int c = plane[k] & 0xff;
+                        row[i] = closest2(plane, k, c, dR) << 16 | c << 8 | closest2(plane, k, c, dB);
+                        int c1 = plane[k+1] & 0xff;
+                        if (i + 1 < width) {
+                            row[i+1] = closest4(plane, k+1, c1, dR1) << 16 | closest4(plane, k+1, c1, dG1) << 8 | c1;
+                        }
+                    }
+                }
+                dst.setRow(0, j, width, row);
+            }
+        });
+        return dst.image;
+    }
+    /**
+     * The pixel next to k in the direction where the pixel 2 steps away is the closest to c;
+     * if there are several such directions, the first one
+     */
+    private static int closest2(byte[] p, int k, int c, int[] d) {
+        int d0 = d[0], d1 = d[1];
+        int diff0 = Math.abs((p[k + 2*d0] & 0xff) - c);
+        int diff1 = Math.abs((p[k + 2*d1] & 0xff) - c);
+        return p[k + (diff1 < diff0 ? d1 : d0)] & 0xff;
+    }
+    private static int closest4(byte[] p, int k, int c, int[] d) {
+        int d0 = d[0], d1 = d[1], d2 = d[2], d3 = d[3];
+        // the difference in the high bits, the direction index in the low bits: the minimum is the first best one
+        int m0 = Math.abs((p[k + 2*d0] & 0xff) - c) << 2;
+        int m1 = Math.abs((p[k + 2*d1] & 0xff) - c) << 2 | 1;
+        int m2 = Math.abs((p[k + 2*d2] & 0xff) - c) << 2 | 2;
+        int m3 = Math.abs((p[k + 2*d3] & 0xff) - c) << 2 | 3;
+        int best = Math.min(Math.min(m0, m1), Math.min(m2, m3)) & 3;
+        return p[k + d[best]] & 0xff;
     }
     enum Direction {
         N(0,1),E(1,0),S(0,-1),W(-1,0),
@@ -5740,7 +8062,7 @@ class Debayer {
         int x2(int x0) { return x0+2*dx; }
         int y2(int y0) { return y0+2*dy; }
     }
-    static int averageDist1(BufferedImage bi, int i, int j, Direction... directions) {
+    static int averageDist1(PixelBuffer bi, int i, int j, Direction... directions) {
         int sum = 0;
         for (Direction dir : directions) {
             sum += getC(bi, dir.x1(i), dir.y1(j));
@@ -5750,7 +8072,8 @@ class Debayer {
     static BufferedImage debayer_avg(BufferedImage orig) {
         int HEIGHT = orig.getHeight();
         int WIDTH = orig.getWidth();
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        PixelBuffer src = PixelBuffer.of(orig);
+        PixelBuffer dst = PixelBuffer.newRgbImage(WIDTH, HEIGHT);
         Par.splitFor(0, HEIGHT, (from, to) -> {
             for (int j = from; j < to; j++) {
                 for (int i = 0; i < WIDTH; i++) {
@@ -5764,42 +8087,42 @@ class Debayer {
                     int r, g, b;
                     switch (type) {
                         case 0: { // R
-                            r = getC(orig, i, j);
-                            g = averageDist1(orig, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
-                            b = averageDist1(orig, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
+                            r = getC(src, i, j);
+                            g = averageDist1(src, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
+                            b = averageDist1(src, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
                         }
                         break;
                         case 1: { // Gr
-                            r = averageDist1(orig, i, j, Direction.W, Direction.E);
-                            g = getC(orig, i, j);
-                            b = averageDist1(orig, i, j, Direction.N, Direction.S);
+                            r = averageDist1(src, i, j, Direction.W, Direction.E);
+                            g = getC(src, i, j);
+                            b = averageDist1(src, i, j, Direction.N, Direction.S);
                         }
                         break;
                         case 2: { // Gb
-                            r = averageDist1(orig, i, j, Direction.N, Direction.S);
-                            g = getC(orig, i, j);
-                            b = averageDist1(orig, i, j, Direction.W, Direction.E);
+                            r = averageDist1(src, i, j, Direction.N, Direction.S);
+                            g = getC(src, i, j);
+                            b = averageDist1(src, i, j, Direction.W, Direction.E);
                         }
                         break;
                         case 3: { // B
-                            r = averageDist1(orig, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
-                            g = averageDist1(orig, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
-                            b = getC(orig, i, j);
+                            r = averageDist1(src, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
+                            g = averageDist1(src, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
+                            b = getC(src, i, j);
                         }
                         break;
                         default: // stupid Java, this is impossible! type is 0..3!
                             r = g = b = 0;
                     }
-                    res.setRGB(i, j, (r << 16) | (g << 8) | b);
+                    dst.set(i, j, (r << 16) | (g << 8) | b);
                 }
             }
         });
-        return res;
+        return dst.image;
     }
-    static int getC(BufferedImage bi, int x, int y) {
+    static int getC(PixelBuffer bi, int x, int y) {
         int res = 0;
-        if (x >= 0 && y >= 0 && x < bi.getWidth() && y < bi.getHeight()) {
-            res = r(bi.getRGB(x,y));
+        if (x >= 0 && y >= 0 && x < bi.width && y < bi.height) {
+            res = r(bi.get(x,y));
         }
         return res;
     }
@@ -7569,6 +9892,247 @@ class FisheyeCorrection {
                 ", sizeChange=" + sizeChange +
                 "}@"+Integer.toHexString(hashCode());
     }
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FisheyeCorrection that = (FisheyeCorrection) o;
+        // parameterString() prints the coefficients with full precision
+        return Double.compare(that.sizeChange, sizeChange) == 0 &&
+                algo == that.algo &&
+                distortionCenterLocation.getH() == that.distortionCenterLocation.getH() &&
+                distortionCenterLocation.getV() == that.distortionCenterLocation.getV() &&
+                func.parameterString().equals(that.func.parameterString());
+    }
+    @Override
+    public int hashCode() {
+        return Objects.hash(algo, sizeChange, distortionCenterLocation.getH(), distortionCenterLocation.getV(), func.parameterString());
+    }
+}
+/**
+ * The nearest-neighbor fisheye correction as a table: for each pixel of the corrected image,
+ * the pixel of the original image that goes there.
+ * The mapping depends only on the image size and the FisheyeCorrection, so it is calculated once
+ * (no hypot/atan2/cos/sin per pixel on each render) and kept in a small LRU cache;
+ * correcting another image of the same size with the same parameters is just a gather.
+ * A table too big to be cached would be used only once, so for big images there is no table,
+ * and the source pixels are calculated row by row while the image is corrected.
+ */
+class FisheyeRemapTable {
+    static final int MAX_CACHED_TABLES = 4;
+    /** tables of bigger images are not cached; 32M entries is 128 MB */
+    static final long MAX_CACHED_ENTRIES = 32L << 20;
+    private static final LinkedHashMap<List<Object>, FisheyeRemapTable> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedEntries;
+
+    /** the size of the original image */
+    final int width, height;
+    /** the size of the corrected image */
+    final int WIDTH, HEIGHT;
+    final Geometry geometry;
+    /**
+     * y*width+x of the original pixel for the corrected pixel (i,j) at j*WIDTH+i, or -1 if there is none;
+     * null if the image is too big for the table to be cached
+     */
+    final int[] sourceIndex;
+
+    private FisheyeRemapTable(Geometry geometry, int[] sourceIndex) {
+        this.width = geometry.width;
+        this.height = geometry.height;
+        this.WIDTH = geometry.WIDTH;
+        this.HEIGHT = geometry.HEIGHT;
+        this.geometry = geometry;
+        this.sourceIndex = sourceIndex;
+    }
+    static FisheyeRemapTable of(int width, int height, FisheyeCorrection fc) {
+        List<Object> key = Arrays.asList(width, height, fc);
+        synchronized (cache) {
+            FisheyeRemapTable res = cache.get(key);
+            if (res != null) {
+                return res;
+            }
+        }
+        Geometry g = Geometry.of(width, height, fc);
+        if ((long) g.WIDTH * g.HEIGHT > MAX_CACHED_ENTRIES) {
+            return new FisheyeRemapTable(g, null);
+        }
+        FisheyeRemapTable res = calculate(g);
+        synchronized (cache) {
+            if (!cache.containsKey(key)) {
+                cache.put(key, res);
+                cachedEntries += res.sourceIndex.length;
+                Iterator<FisheyeRemapTable> eldestFirst = cache.values().iterator();
+                while (cache.size() > MAX_CACHED_TABLES || cachedEntries > MAX_CACHED_ENTRIES) {
+                    cachedEntries -= eldestFirst.next().sourceIndex.length;
+                    eldestFirst.remove();
+                }
+            }
+        }
+        return res;
+    }
+    static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            cachedEntries = 0;
+        }
+    }
+    static int cacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    /** Where the distortion center is, before (xc, yc) and after (XC, YC) the correction, and the size after it */
+    static class Geometry {
+        final int width, height;
+        final int WIDTH, HEIGHT;
+        final int xc, yc;
+        final int XC, YC;
+        /** the distance from the distortion center in the original image as a function of the distance in the corrected one */
+        final DoubleUnaryOperator xf;
+
+        private Geometry(int width, int height, int WIDTH, int HEIGHT, int xc, int yc, int XC, int YC, DoubleUnaryOperator xf) {
+            this.width = width;
+            this.height = height;
+            this.WIDTH = WIDTH;
+            this.HEIGHT = HEIGHT;
+            this.xc = xc;
+            this.yc = yc;
+            this.XC = XC;
+            this.YC = YC;
+            this.xf = xf;
+        }
+        static Geometry of(int width, int height, FisheyeCorrection fc) {
+            var k = fc.sizeChange;
+
+            int WIDTH = fc.distortionCenterLocation.getWidthAfter(width, height, k);
+            int HEIGHT = fc.distortionCenterLocation.getHeightAfter(width, height, k);
+
+            DoubleUnaryOperator xf = fc.func.asFunctionMulX();
+
+            int xc = fc.distortionCenterLocation.getPoleXBefore(width, height);
+            int yc = fc.distortionCenterLocation.getPoleYBefore(width, height);
+            int XC, YC;
+            if (between(xc, 0, width) && between(yc, 0, height)) {
+                XC = (int) Math.round(k*xc);
+                YC = (int) Math.round(k*yc);
+            } else {
+                int nx = fc.distortionCenterLocation.getNearestToPoleXBefore(width, height);
+                int ny = fc.distortionCenterLocation.getNearestToPoleYBefore(width, height);
+                double nr = Math.hypot(nx-xc, ny-yc);
+                double rFar = Math.max(Math.max(
+                        Math.hypot(width - xc, height - yc),
+                        Math.hypot(width - xc, yc)
+                ), Math.max(
+                        Math.hypot(xc, height - yc),
+                        Math.hypot(xc, yc)
+                ));
+                double NR = HumanVisibleMathFunctionBase.findRootWhenSafe(
+                        R -> xf.applyAsDouble(R) - nr,
+                        0,
+                        k * rFar
+                );
+                XC = (int) Math.round(k*nx + (xc-nx)*NR/nr);
+                YC = (int) Math.round(k*ny + (yc-ny)*NR/nr);
+            }
+            return new Geometry(width, height, WIDTH, HEIGHT, xc, yc, XC, YC, xf);
+        }
+    }
+    /** The mapping without a table, for tests; of() does the same for images whose table would not be cached */
+    static FisheyeRemapTable withoutTable(int width, int height, FisheyeCorrection fc) {
+        return new FisheyeRemapTable(Geometry.of(width, height, fc), null);
+    }
+    private static FisheyeRemapTable calculate(Geometry g) {
+        int[] sourceIndex = new int[g.WIDTH * g.HEIGHT];
+        Par.splitFor(0, g.HEIGHT, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                calculateRow(g, j, sourceIndex, j * g.WIDTH);
+            }
+        });
+        return new FisheyeRemapTable(g, sourceIndex);
+    }
+    /** The indexes of the original pixels for the row j of the corrected image, to sourceIndex[n..n+WIDTH) */
+    private static void calculateRow(Geometry g, int j, int[] sourceIndex, int n) {
+        int width = g.width;
+        int height = g.height;
+        int xc = g.xc, yc = g.yc;
+        int XC = g.XC, YC = g.YC;
+        DoubleUnaryOperator xf = g.xf;
+        for (int i = 0; i < g.WIDTH; i++) {
+            int index = -1;
+            double R = Math.hypot(i - XC, j - YC);
+            double theta = Math.atan2(j - YC, i - XC);
+            double r = xf.applyAsDouble(R);
+            double xx = r * Math.cos(theta);
+            double yy = r * Math.sin(theta);
+            if (Double.isFinite(xx) && Double.isFinite(yy)) { // false if NaN
+                int x = (int) Math.round(xc + xx);
+                int y = (int) Math.round(yc + yy);
+                if (x >= 0 && x < width && y >= 0 && y < height) {
+                    index = y * width + x;
+                }
+            }
+            sourceIndex[n + i] = index;
+        }
+    }
+    /** The indexes of the original pixels for the row j, either in the table or calculated to row[] */
+    private int[] sourceRow(int j, int[] row) {
+        if (sourceIndex != null) {
+            return sourceIndex;
+        }
+        calculateRow(geometry, j, row, 0);
+        return row;
+    }
+    private static boolean between(int value, int lower, int upper) {
+        return lower <= value && value < upper;
+    }
+    BufferedImage apply(BufferedImage orig) {
+        GrayBuffer gray = GrayBuffer.direct(orig);
+        if (gray != null) {
+            return applyToGray(gray);
+        }
+        PixelBuffer src = PixelBuffer.of(orig);
+        PixelBuffer dst = PixelBuffer.newRgbImage(WIDTH, HEIGHT);
+        boolean packed = src.offset == 0 && src.scanlineStride == width;
+        Par.splitFor(0, HEIGHT, (from, to) -> {
+            int[] row = sourceIndex == null ? new int[WIDTH] : null;
+            for (int j = from; j < to; j++) {
+                int[] indexes = sourceRow(j, row);
+                int n = sourceIndex == null ? 0 : j * WIDTH;
+                int d = dst.index(0, j);
+                for (int i = 0; i < WIDTH; i++) {
+                    int index = indexes[n + i];
+                    if (index >= 0) {
+                        dst.pixels[d + i] = packed
+                                ? src.pixels[index] | src.alphaMask
+                                : src.get(index % width, index / width);
+                    }
+                }
+            }
+        });
+        return dst.image;
+    }
+    /** The pixels that have no source are black, as in the RGB image */
+    private BufferedImage applyToGray(GrayBuffer src) {
+        GrayBuffer dst = GrayBuffer.newGrayImage(WIDTH, HEIGHT);
+        boolean packed = src.offset == 0 && src.scanlineStride == width;
+        Par.splitFor(0, HEIGHT, (from, to) -> {
+            int[] row = sourceIndex == null ? new int[WIDTH] : null;
+            for (int j = from; j < to; j++) {
+                int[] indexes = sourceRow(j, row);
+                int n = sourceIndex == null ? 0 : j * WIDTH;
+                int d = dst.index(0, j);
+                for (int i = 0; i < WIDTH; i++) {
+                    int index = indexes[n + i];
+                    if (index >= 0) {
+                        dst.pixels[d + i] = packed
+                                ? src.pixels[index]
+                                : src.pixels[src.index(index % width, index / width)];
+                    }
+                }
+            }
+        });
+        return dst.image;
+    }
 }
 enum FisheyeCorrectionAlgo implements ImageEffect {
     NONE {
@@ -7738,64 +10302,7 @@ enum FisheyeCorrectionAlgo implements ImageEffect {
     ;
 
     private static BufferedImage doFisheyeCorrectionNearestNeighbor(BufferedImage orig, FisheyeCorrection fc) {
-        var k = fc.sizeChange;
-
-        int width = orig.getWidth();
-        int height = orig.getHeight();
-        int WIDTH = fc.distortionCenterLocation.getWidthAfter(width, height, k);
-        int HEIGHT = fc.distortionCenterLocation.getHeightAfter(width, height, k);
-
-        DoubleUnaryOperator xf = fc.func.asFunctionMulX();
-
-        int xc = fc.distortionCenterLocation.getPoleXBefore(width, height);
-        int yc = fc.distortionCenterLocation.getPoleYBefore(width, height);
-        int XC, YC;
-        if (between(xc, 0, width) && between(yc, 0, height)) {
-            XC = (int) Math.round(k*xc);
-            YC = (int) Math.round(k*yc);
-        } else {
-            int nx = fc.distortionCenterLocation.getNearestToPoleXBefore(width, height);
-            int ny = fc.distortionCenterLocation.getNearestToPoleYBefore(width, height);
-            double nr = Math.hypot(nx-xc, ny-yc);
-            double rFar = Math.max(Math.max(
-                    Math.hypot(width - xc, height - yc),
-                    Math.hypot(width - xc, yc)
-            ), Math.max(
-                    Math.hypot(xc, height - yc),
-                    Math.hypot(xc, yc)
-            ));
-            double NR = HumanVisibleMathFunctionBase.findRootWhenSafe(
-                    R -> xf.applyAsDouble(R) - nr,
-                    0,
-                    k * rFar
-            );
-            XC = (int) Math.round(k*nx + (xc-nx)*NR/nr);
-            YC = (int) Math.round(k*ny + (yc-ny)*NR/nr);
-        }
-
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Par.splitFor(0, HEIGHT, (from, to) -> {
-            for (int j = from; j < to; j++) {
-                for (int i = 0; i < WIDTH; i++) {
-                    double R = Math.hypot(i - XC, j - YC);
-                    double theta = Math.atan2(j - YC, i - XC);
-                    double r = xf.applyAsDouble(R);
-                    double xx = r * Math.cos(theta);
-                    double yy = r * Math.sin(theta);
-                    if (Double.isFinite(xx) && Double.isFinite(yy)) { // false if NaN
-                        int x = (int) Math.round(xc + xx);
-                        int y = (int) Math.round(yc + yy);
-                        if (x >= 0 && x < width && y >= 0 && y < height) {
-                            res.setRGB(i, j, orig.getRGB(x, y));
-                        }
-                    }
-                }
-            }
-        });
-        return res;
-    }
-    private static boolean between(int value, int lower, int upper) {
-        return lower <= value && value < upper;
+        return FisheyeRemapTable.of(orig.getWidth(), orig.getHeight(), fc).apply(orig);
     }
     BufferedImage doFisheyeCorrection(BufferedImage orig, FisheyeCorrection fc) {
         return doFisheyeCorrectionNearestNeighbor(orig, fc);
@@ -8054,6 +10561,11 @@ class ColorCorrection {
 
     public enum Command{SHOW, GET_RANGE_RGB, GET_RANGE_HSV, GET_RANGES_FOR_STATS}
 
+    /** false if doColorCorrection() for SHOW returns the image as is */
+    public boolean notNothing() {
+        return algos.stream().anyMatch(ColorCorrectionAlgo::notNothing);
+    }
+
     public ColorCorrection copyWith(List<ColorCorrectionAlgo> algos) {
         return new ColorCorrection(algos, this.customStretchRgbParameters, this.customStretchHsvParameters);
     }
@@ -8106,150 +10618,356 @@ class ColorCorrection {
         return res;
     }
     BufferedImage doColorCorrection(BufferedImage image, Command command) {
+        return doColorCorrection(image, command, PipelineMetrics.Pane.NONE);
+    }
+    BufferedImage doColorCorrection(BufferedImage image, Command command, PipelineMetrics.Pane metrics) {
         BufferedImage res = image;
+        // consecutive per-pixel algos are fused and applied in one pass
+        List<Supplier<IntUnaryOperator>> pixelOps = new ArrayList<>();
+        List<String> pixelOpNames = new ArrayList<>();
         loop:
         for (ColorCorrectionAlgo algo : algos) {
-            switch (algo) {
-                default:
-                case DO_NOTHING:
-                    break;
-                case STRETCH_CONTRAST_RGB_RGB:
-                    res = RgbColorBalancer.stretchColorsRgb(res, true, false);
-                    break;
+            if (isCommandPosition(algo, command)) {
+                break loop;
+            }
+            Supplier<IntUnaryOperator> pixelOp = PointwiseColorPipeline.pixelOperator(algo, this);
+            if (pixelOp != null) {
+                if (pixelOp != PointwiseColorPipeline.NO_OP) {
+                    pixelOps.add(pixelOp);
+                    pixelOpNames.add(algo.name());
+                }
+                continue;
+            }
+            res = applyPixelOps(res, pixelOps, pixelOpNames, metrics);
+            BufferedImage input = res;
+            res = metrics.measure("color: " + algo.name(), input, () -> doNonPixelAlgo(algo, input));
+        }
+        res = applyPixelOps(res, pixelOps, pixelOpNames, metrics);
+        return res;
+    }
+    /** The chain is processed up to this algo for this command */
+    private static boolean isCommandPosition(ColorCorrectionAlgo algo, Command command) {
+        return (algo == ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB3 && command == Command.GET_RANGE_RGB)
+            || (algo == ColorCorrectionAlgo.STRETCH_CONTRAST_HSV_CUSTOM && command == Command.GET_RANGE_HSV)
+            || (algo == ColorCorrectionAlgo.GET_STATS && command == Command.GET_RANGES_FOR_STATS);
+    }
+    /** If all the algos up to the command position are per-pixel, a part of the image may be processed alone */
+    boolean isPerPixelUpTo(Command command) {
+        for (ColorCorrectionAlgo algo : algos) {
+            if (isCommandPosition(algo, command)) {
+                break;
+            }
+            if (PointwiseColorPipeline.pixelOperator(algo, this) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+    private static BufferedImage applyPixelOps(
+            BufferedImage image,
+            List<Supplier<IntUnaryOperator>> pixelOps, List<String> pixelOpNames,
+            PipelineMetrics.Pane metrics
+    ) {
+        if (pixelOps.isEmpty()) {
+            return image;
+        }
+        BufferedImage res = metrics.measure(
+                "color: " + String.join("+", pixelOpNames),
+                image,
+                () -> applyPixelOpsOrSkipFailed(image, pixelOps)
+        );
+        pixelOps.clear();
+        pixelOpNames.clear();
+        return res;
+    }
+    /**
+     * If the fused pass fails, the operators are applied one by one, and the one that fails is skipped,
+     * like GammaColorBalancer.balanceColors() returns its input when something goes wrong.
+     */
+    static BufferedImage applyPixelOpsOrSkipFailed(BufferedImage image, List<Supplier<IntUnaryOperator>> pixelOps) {
+        try {
+            return PointwiseColorPipeline.apply(image, pixelOps);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        BufferedImage res = image;
+        for (Supplier<IntUnaryOperator> pixelOp : pixelOps) {
+            try {
+                res = PointwiseColorPipeline.apply(res, pixelOp);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return res;
+    }
+    private static BufferedImage doNonPixelAlgo(ColorCorrectionAlgo algo, BufferedImage image) {
+        BufferedImage res = image;
+        switch (algo) {
+            default:
+                break;
+            case STRETCH_CONTRAST_RGB_RGB:
+                res = RgbColorBalancer.stretchColorsRgb(res, true, false);
+                break;
 //                case STRETCH_CONTRAST_RGB_RGB_I:
 //                    res = ColorBalancer.stretchColorsRgb(res, true, true);
 //                    break;
-                case STRETCH_CONTRAST_RGB_V:
-                    res = RgbColorBalancer.stretchColorsRgb(res, false, false);
-                    break;
+            case STRETCH_CONTRAST_RGB_V:
+                res = RgbColorBalancer.stretchColorsRgb(res, false, false);
+                break;
 //                case STRETCH_CONTRAST_RGB_V_I:
 //                    res = ColorBalancer.stretchColorsRgb(res, false, true);
 //                    break;
-                case STRETCH_CONTRAST_RGB_RGB3:
-                    if (command == Command.GET_RANGE_RGB) {
-                        break loop;
-                    } else {
-                        res = RgbColorBalancer.stretchColorsRgb(res, customStretchRgbParameters);
-                    }
-                    break;
-                case STRETCH_CONTRAST_HSV_CUSTOM:
-                    if (command == Command.GET_RANGE_HSV) {
-                        break loop;
-                    } else {
-                        res = HsvColorBalancer.stretchColorsHsv(res, customStretchHsvParameters);
-                    }
-                    break;
-                case GET_STATS:
-                    if (command == Command.GET_RANGES_FOR_STATS) {
-                        break loop;
-                    }
-                    // else do nothing
-                    break;
-                case STRETCH_CONTRAST_HSV_S:
-                    res = HsvColorBalancer.balanceColorsSimple(res, -1, true, false);
-                    break;
-                case STRETCH_CONTRAST_HSV_V:
-                    res = HsvColorBalancer.balanceColorsSimple(res, -1, false, true);
-                    break;
-                case STRETCH_CONTRAST_HSV_SV:
-                    res = HsvColorBalancer.balanceColorsSimple(res, -1, true, true);
-                    break;
-                case STRETCH_CONTRAST_HSV_H000:
-                    res = HsvColorBalancer.balanceColorsSimple(res, 0, false, false);
-                    break;
-                case STRETCH_CONTRAST_HSV_H060:
-                    res = HsvColorBalancer.balanceColorsSimple(res, 60, false, false);
-                    break;
-                case STRETCH_CONTRAST_HSV_H120:
-                    res = HsvColorBalancer.balanceColorsSimple(res, 120, false, false);
-                    break;
-                case STRETCH_CONTRAST_HSV_H180:
-                    res = HsvColorBalancer.balanceColorsSimple(res, 180, false, false);
-                    break;
-                case STRETCH_CONTRAST_HSV_H240:
-                    res = HsvColorBalancer.balanceColorsSimple(res, 240, false, false);
-                    break;
-                case STRETCH_CONTRAST_HSV_H300:
-                    res = HsvColorBalancer.balanceColorsSimple(res, 300, false, false);
-                    break;
-                case ROTATE_H_HSV_H015:
-                    res = HsvColorBalancer.rotateColorsSimple(res, 15);
-                    break;
-                case ROTATE_H_HSV_H030:
-                    res = HsvColorBalancer.rotateColorsSimple(res, 30);
-                    break;
-                case ROTATE_H_HSV_H060:
-                    res = HsvColorBalancer.rotateColorsSimple(res, 60);
-                    break;
-                case ROTATE_H_HSV_H120:
-                    res = HsvColorBalancer.rotateColorsSimple(res, 120);
-                    break;
-                case ROTATE_H_HSV_H240:
-                    res = HsvColorBalancer.rotateColorsSimple(res, 240);
-                    break;
-                case INTERPOLATE_BROKEN_PIXELS:
-                    res = RgbColorBalancer.interpolateBrokenPixels(res);
-                    break;
-                case GAMMA_DECODE_2_4:
-                    res = GammaColorBalancer.balanceColors(res, 2.4);
-                    break;
-                case GAMMA_DECODE_2_2:
-                    res = GammaColorBalancer.balanceColors(res, 2.2);
-                    break;
-                case GAMMA_DECODE_2_0:
-                    res = GammaColorBalancer.balanceColors(res, 2.0);
-                    break;
-                case GAMMA_DECODE_1_8:
-                    res = GammaColorBalancer.balanceColors(res, 1.8);
-                    break;
-                case GAMMA_DECODE_1_6:
-                    res = GammaColorBalancer.balanceColors(res, 1.6);
-                    break;
-                case GAMMA_DECODE_1_4:
-                    res = GammaColorBalancer.balanceColors(res, 1.4);
-                    break;
-                case GAMMA_DECODE_1_2:
-                    res = GammaColorBalancer.balanceColors(res, 1.2);
-                    break;
-                case GAMMA_ENCODE_2_4:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 2.4);
-                    break;
-                case GAMMA_ENCODE_2_2:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 2.2);
-                    break;
-                case GAMMA_ENCODE_2_0:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 2.0);
-                    break;
-                case GAMMA_ENCODE_1_8:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 1.8);
-                    break;
-                case GAMMA_ENCODE_1_6:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 1.6);
-                    break;
-                case GAMMA_ENCODE_1_4:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 1.4);
-                    break;
-                case GAMMA_ENCODE_1_2:
-                    res = GammaColorBalancer.balanceColors(res, 1 / 1.2);
-                    break;
-                case FILTER_RED:
-                    res = CyanRedColorFilter.filterRed(res);
-                    break ;
-                case FILTER_BLUE:
-                    res = CyanRedColorFilter.filterBlue(res);
-                    break ;
-                case FILTER_RED_COLOR:
-                    res = CyanRedColorFilter.filterRedColor(res);
-                    break ;
-                case FILTER_BLUE_GREEN_COLOR:
-                    res = CyanRedColorFilter.filterBlueGreenColor(res);
-                    break ;
-                case UNGLARE1:
-                    res = BilinearDeglareWhite.unglare(res);
+            case STRETCH_CONTRAST_HSV_S:
+                res = HsvColorBalancer.balanceColorsSimple(res, -1, true, false);
+                break;
+            case STRETCH_CONTRAST_HSV_V:
+                res = HsvColorBalancer.balanceColorsSimple(res, -1, false, true);
+                break;
+            case STRETCH_CONTRAST_HSV_SV:
+                res = HsvColorBalancer.balanceColorsSimple(res, -1, true, true);
+                break;
+            case STRETCH_CONTRAST_HSV_H000:
+                res = HsvColorBalancer.balanceColorsSimple(res, 0, false, false);
+                break;
+            case STRETCH_CONTRAST_HSV_H060:
+                res = HsvColorBalancer.balanceColorsSimple(res, 60, false, false);
+                break;
+            case STRETCH_CONTRAST_HSV_H120:
+                res = HsvColorBalancer.balanceColorsSimple(res, 120, false, false);
+                break;
+            case STRETCH_CONTRAST_HSV_H180:
+                res = HsvColorBalancer.balanceColorsSimple(res, 180, false, false);
+                break;
+            case STRETCH_CONTRAST_HSV_H240:
+                res = HsvColorBalancer.balanceColorsSimple(res, 240, false, false);
+                break;
+            case STRETCH_CONTRAST_HSV_H300:
+                res = HsvColorBalancer.balanceColorsSimple(res, 300, false, false);
+                break;
+            case INTERPOLATE_BROKEN_PIXELS:
+                res = RgbColorBalancer.interpolateBrokenPixels(res);
+                break;
+            case UNGLARE1:
+                res = BilinearDeglareWhite.unglare(res);
+        }
+        return res;
+    }
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ColorCorrection that = (ColorCorrection) o;
+        return algos.equals(that.algos) &&
+                Objects.equals(customStretchRgbParameters, that.customStretchRgbParameters) &&
+                Objects.equals(customStretchHsvParameters, that.customStretchHsvParameters);
+    }
+    @Override
+    public int hashCode() {
+        return Objects.hash(algos, customStretchRgbParameters, customStretchHsvParameters);
+    }
+}
+
+/**
+ * The per-pixel part of ColorCorrection: algos that do not need image-wide statistics
+ * are turned into pixel operators, and a sequence of such operators is applied in a single pass
+ * with a single allocation. Algos that analyze the image are barriers between such sequences.
+ */
+class PointwiseColorPipeline {
+    /** The algo does not change pixels */
+    static final Supplier<IntUnaryOperator> NO_OP = IntUnaryOperator::identity;
+
+    /**
+     * Returns a factory of pixel operators (an operator instance may have state and is used by one thread),
+     * or NO_OP, or null if the algo is not a per-pixel one.
+     */
+    static Supplier<IntUnaryOperator> pixelOperator(ColorCorrectionAlgo algo, ColorCorrection cc) {
+        switch (algo) {
+            case DO_NOTHING:
+            case GET_STATS:
+                return NO_OP;
+            case STRETCH_CONTRAST_RGB_RGB3:
+                return RgbColorBalancer.stretchColorsRgbOperator(cc.customStretchRgbParameters);
+            case STRETCH_CONTRAST_HSV_CUSTOM:
+                return HsvColorBalancer.stretchColorsHsvOperator(cc.customStretchHsvParameters);
+            case ROTATE_H_HSV_H015:
+                return HsvColorBalancer.rotateColorsSimpleOperator(15);
+            case ROTATE_H_HSV_H030:
+                return HsvColorBalancer.rotateColorsSimpleOperator(30);
+            case ROTATE_H_HSV_H060:
+                return HsvColorBalancer.rotateColorsSimpleOperator(60);
+            case ROTATE_H_HSV_H120:
+                return HsvColorBalancer.rotateColorsSimpleOperator(120);
+            case ROTATE_H_HSV_H240:
+                return HsvColorBalancer.rotateColorsSimpleOperator(240);
+            case GAMMA_DECODE_2_4:
+                return GammaColorBalancer.gammaOperator(2.4);
+            case GAMMA_DECODE_2_2:
+                return GammaColorBalancer.gammaOperator(2.2);
+            case GAMMA_DECODE_2_0:
+                return GammaColorBalancer.gammaOperator(2.0);
+            case GAMMA_DECODE_1_8:
+                return GammaColorBalancer.gammaOperator(1.8);
+            case GAMMA_DECODE_1_6:
+                return GammaColorBalancer.gammaOperator(1.6);
+            case GAMMA_DECODE_1_4:
+                return GammaColorBalancer.gammaOperator(1.4);
+            case GAMMA_DECODE_1_2:
+                return GammaColorBalancer.gammaOperator(1.2);
+            case GAMMA_ENCODE_2_4:
+                return GammaColorBalancer.gammaOperator(1 / 2.4);
+            case GAMMA_ENCODE_2_2:
+                return GammaColorBalancer.gammaOperator(1 / 2.2);
+            case GAMMA_ENCODE_2_0:
+                return GammaColorBalancer.gammaOperator(1 / 2.0);
+            case GAMMA_ENCODE_1_8:
+                return GammaColorBalancer.gammaOperator(1 / 1.8);
+            case GAMMA_ENCODE_1_6:
+                return GammaColorBalancer.gammaOperator(1 / 1.6);
+            case GAMMA_ENCODE_1_4:
+                return GammaColorBalancer.gammaOperator(1 / 1.4);
+            case GAMMA_ENCODE_1_2:
+                return GammaColorBalancer.gammaOperator(1 / 1.2);
+            case FILTER_RED:
+                return () -> CyanRedColorFilter.RED_AS_WHITE;
+            case FILTER_BLUE:
+                return () -> CyanRedColorFilter.BLUE_AS_WHITE;
+            case FILTER_RED_COLOR:
+                return CyanRedColorFilter.ONLY_RED;
+            case FILTER_BLUE_GREEN_COLOR:
+                return CyanRedColorFilter.ONLY_BLUE_GREEN;
+            default:
+                return null;
+        }
+    }
+    static BufferedImage apply(BufferedImage src, Supplier<IntUnaryOperator> pixelOp) {
+        return apply(src, Collections.singletonList(pixelOp));
+    }
+    /**
+     * Apply the operators one after another to each pixel; the result is a new TYPE_INT_RGB image,
+     * or a new gray image if the image is gray and the operators are one tone curve that keeps it gray.
+     * Consecutive per-channel tone curves are applied as one, see fuseChannelLuts().
+     */
+    static BufferedImage apply(BufferedImage src, List<Supplier<IntUnaryOperator>> allPixelOps) {
+        if (allPixelOps.isEmpty() || ImageAndPath.isDummyImage(src)) {
+            return src;
+        }
+        List<Supplier<IntUnaryOperator>> pixelOps = fuseChannelLuts(allPixelOps);
+        GrayBuffer gray = GrayBuffer.direct(src);
+        if (gray != null
+         && pixelOps.size() == 1
+         && pixelOps.get(0) instanceof ChannelLut
+         && ((ChannelLut) pixelOps.get(0)).isSameForAllChannels()
+        ) {
+            return applyToGray(gray, ((ChannelLut) pixelOps.get(0)).b);
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int n = pixelOps.size();
+        PixelBuffer srcPixels = PixelBuffer.of(src);
+        PixelBuffer dstPixels = PixelBuffer.newRgbImage(width, height);
+        Par.splitFor(0, height, (from, to) -> {
+            IntUnaryOperator[] ops = new IntUnaryOperator[n];
+            for (int k = 0; k < n; k++) {
+                ops[k] = pixelOps.get(k).get();
+            }
+            int[] row = new int[width];
+            for (int j = from; j < to; j++) {
+                srcPixels.getRow(0, j, width, row);
+                for (int i = 0; i < width; i++) {
+                    int color = row[i];
+                    for (int k = 0; k < n; k++) {
+                        color = ops[k].applyAsInt(color);
+                    }
+                    row[i] = color;
+                }
+                dstPixels.setRow(0, j, width, row);
             }
+        });
+        return dstPixels.image;
+    }
+    private static BufferedImage applyToGray(GrayBuffer src, int[] table) {
+        byte[] lut = new byte[256];
+        for (int v = 0; v < 256; v++) {
+            lut[v] = (byte) table[v];
+        }
+        GrayBuffer dst = GrayBuffer.newGrayImage(src.width, src.height);
+        Par.splitFor(0, src.height, (from, to) -> {
+            for (int j = from; j < to; j++) {
+                int s = src.index(0, j);
+                int d = dst.index(0, j);
+                for (int i = 0; i < src.width; i++) {
+                    dst.pixels[d + i] = lut[0xff & src.pixels[s + i]];
+                }
+            }
+        });
+        return dst.image;
+    }
+    /** Each run of consecutive ChannelLut operators is replaced with their composition */
+    static List<Supplier<IntUnaryOperator>> fuseChannelLuts(List<Supplier<IntUnaryOperator>> pixelOps) {
+        List<Supplier<IntUnaryOperator>> res = new ArrayList<>();
+        for (Supplier<IntUnaryOperator> op : pixelOps) {
+            int last = res.size() - 1;
+            if (op instanceof ChannelLut && last >= 0 && res.get(last) instanceof ChannelLut) {
+                res.set(last, ((ChannelLut) res.get(last)).followedBy((ChannelLut) op));
+            } else {
+                res.add(op);
+            }
+        }
+        return res;
+    }
+}
+/**
+ * A per-channel tone curve: R, G and B are mapped by 256-entry tables, each channel by its own.
+ * Curves are composable, so a chain of them (say, a stretch followed by gamma) is one table lookup per channel.
+ * A curve has no per-thread state, so it is its own pixel operator factory.
+ */
+class ChannelLut implements IntUnaryOperator, Supplier<IntUnaryOperator> {
+    final int[] r, g, b;
+    private final int[] rShifted, gShifted;
+
+    private ChannelLut(int[] r, int[] g, int[] b) {
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        rShifted = new int[256];
+        gShifted = new int[256];
+        for (int v = 0; v < 256; v++) {
+            rShifted[v] = r[v] << 16;
+            gShifted[v] = g[v] << 8;
+        }
+    }
+    /** The same curve for all channels */
+    static ChannelLut of(IntUnaryOperator f) {
+        int[] table = table(f);
+        return new ChannelLut(table, table, table);
+    }
+    /** The functions are called once per channel value, and their results must be in 0..255 */
+    static ChannelLut of(IntUnaryOperator fr, IntUnaryOperator fg, IntUnaryOperator fb) {
+        return new ChannelLut(table(fr), table(fg), table(fb));
+    }
+    private static int[] table(IntUnaryOperator f) {
+        int[] res = new int[256];
+        for (int v = 0; v < 256; v++) {
+            res[v] = 0xff & f.applyAsInt(v);
         }
         return res;
     }
+    /** This curve, then the other one */
+    ChannelLut followedBy(ChannelLut next) {
+        return of(v -> next.r[r[v]], v -> next.g[g[v]], v -> next.b[b[v]]);
+    }
+    @Override
+    public int applyAsInt(int color) {
+        return rShifted[0xff & (color >> 16)] | gShifted[0xff & (color >> 8)] | b[0xff & color];
+    }
+    /** true if the curve maps gray to gray */
+    boolean isSameForAllChannels() {
+        return Arrays.equals(r, g) && Arrays.equals(g, b);
+    }
+    @Override
+    public IntUnaryOperator get() {
+        return this;
+    }
 }
 
 interface ImageEffect {
@@ -8577,6 +11295,9 @@ class HsvRangeAndFlagsChooser extends JPanel {
     final JCheckBox cbSSaturation;
     final JCheckBox cbVSaturation;
     final JButton buttonSet;
+    /** while the controls are being adjusted, previews are shown; the parameters are set when the adjustment is over */
+    final javax.swing.Timer previewTimer;
+    final javax.swing.Timer adjustmentOverTimer;
     final GraphPopupMenu popupMenu;
 
     final Color normalButtonColor;
@@ -8590,6 +11311,12 @@ class HsvRangeAndFlagsChooser extends JPanel {
         this.uiEventListener = uiEventListener;
         this.isRight = isRight;
         this.proposed = CustomStretchHsvParameters.newFullRange();
+        previewTimer = new javax.swing.Timer(UiDefault.PREVIEW_DELAY_MS, e ->
+                uiEventListener.previewCustomStretchHsvParameters(proposed.copy(), isRight)
+        );
+        previewTimer.setRepeats(false);
+        adjustmentOverTimer = new javax.swing.Timer(UiDefault.ADJUSTMENT_OVER_DELAY_MS, e -> actionSetCustomStretchHsvParameters());
+        adjustmentOverTimer.setRepeats(false);
 //        this.proposed.stretchS = this.proposed.stretchV = true;
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
         {
@@ -8871,11 +11598,16 @@ class HsvRangeAndFlagsChooser extends JPanel {
 //        System.out.println(" usedNow="+usedNow);
 //        System.out.println("proposed="+proposed);
 //        System.out.println(" from_ui="+uiEventListener.getCurrentCustomStretchRgbParameters(isRight));
+        var isHsvcUsed = uiEventListener
+                .getDisplayParameters()
+                .getColorCorrection(isRight).getAlgos()
+                .contains(ColorCorrectionAlgo.STRETCH_CONTRAST_HSV_CUSTOM);
+        // if the change is visible, it is shown; if it is reverted, what is used now is shown again
+        if (isHsvcUsed && (isChanged || adjustmentOverTimer.isRunning())) {
+            previewTimer.restart();
+            adjustmentOverTimer.restart();
+        }
         {
-            var isHsvcUsed = uiEventListener
-                    .getDisplayParameters()
-                    .getColorCorrection(isRight).getAlgos()
-                    .contains(ColorCorrectionAlgo.STRETCH_CONTRAST_HSV_CUSTOM);
             var isTrivial = (proposed.hsvRange.isFullRange() || proposed.hsvRange.isEmpty())
                     && proposed.hTargetRange.isFullRange0to1();
             boolean hili = !(isHsvcUsed | isTrivial);
@@ -8974,6 +11706,8 @@ class HsvRangeAndFlagsChooser extends JPanel {
         copyAndUseProposedFrom(old);
     }
     private void actionSetCustomStretchHsvParameters() {
+        previewTimer.stop();
+        adjustmentOverTimer.stop();
         uiEventListener.setCustomStretchHsvParameters(proposed.copy(), isRight);
         usedNow = proposed.copy();
         whenUpdated();
@@ -9006,6 +11740,9 @@ class RgbRangeAndFlagsChooser extends JPanel {
     final JCheckBox cbSaturation;
     final JCheckBox cbSaturateToBlack;
     final JButton buttonSet;
+    /** while the controls are being adjusted, previews are shown; the parameters are set when the adjustment is over */
+    final javax.swing.Timer previewTimer;
+    final javax.swing.Timer adjustmentOverTimer;
     final GraphPopupMenu popupMenu;
 
     final Color normalButtonColor;
@@ -9033,6 +11770,12 @@ class RgbRangeAndFlagsChooser extends JPanel {
         this.uiEventListener = uiEventListener;
         this.isRight = isRight;
         this.proposed = CustomStretchRgbParameters.newFullRange();
+        previewTimer = new javax.swing.Timer(UiDefault.PREVIEW_DELAY_MS, e ->
+                uiEventListener.previewCustomStretchRgbParameters(proposed.copy(), isRight)
+        );
+        previewTimer.setRepeats(false);
+        adjustmentOverTimer = new javax.swing.Timer(UiDefault.ADJUSTMENT_OVER_DELAY_MS, e -> actionSetCustomStretchRgbParameters());
+        adjustmentOverTimer.setRepeats(false);
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
         {
             ImageIcon emptyIcon = MySwing.getEmptyGraphIcon(STATS_WIDTH, STATS_HEIGHT);
@@ -9233,6 +11976,11 @@ class RgbRangeAndFlagsChooser extends JPanel {
         lblPleaseSelectSrgb3.setText(hili ? pleaseSelectSrgb3Hili : pleaseSelectSrgb3Norm);
         lblPleaseSelectSrgb3.setBackground(hili ? highlightedBackgroundColor : normalBackgroundColor);
         lblPleaseSelectSrgb3.setOpaque(hili);
+        // if the change is visible, it is shown; if it is reverted, what is used now is shown again
+        if (isSrgb3Used && (isChanged || adjustmentOverTimer.isRunning())) {
+            previewTimer.restart();
+            adjustmentOverTimer.restart();
+        }
     }
     public void notifyOfUpdates() {
         usedNow = uiEventListener.getCurrentCustomStretchRgbParameters(isRight).copy();
@@ -9292,6 +12040,8 @@ class RgbRangeAndFlagsChooser extends JPanel {
         copyAndUseProposedFrom(old);
     }
     private void actionSetCustomStretchRgbParameters() {
+        previewTimer.stop();
+        adjustmentOverTimer.stop();
         uiEventListener.setCustomStretchRgbParameters(proposed.copy(), isRight);
         usedNow = proposed.copy();
         whenUpdated();
@@ -9535,6 +12285,159 @@ class ColorCorrectionPane extends JPanel {
     }
 } // ColorCorrectionPane
 
+/**
+ * Which pixels look broken (hot or dead): a pixel is broken if some channel is out of the range
+ * of its 4 diagonal neighbors at the distance d, or of its 4 horizontal and vertical neighbors,
+ * by more than TOLERANCE. The pixels closer than d to the image border are never broken.
+ * The mask is calculated in one pass over the image, and since the same image is often
+ * both mended and analyzed for the color range, it is cached while the image is alive
+ * (like MipmapPyramid, this assumes that images are not modified after they are made).
+ */
+class BrokenPixelMask {
+    static final int TOLERANCE = 10;
+    private static final Map<BufferedImage, BrokenPixelMask> cache = new WeakHashMap<>();
+
+    final int width;
+    final int height;
+    final int distance;
+    /** bits per row; each row starts at a new long, so that the threads calculating the rows write different longs */
+    private final int stride;
+    /** out of the range of the diagonal neighbors */
+    private final BitSet diag;
+    /** within the range of the diagonal neighbors, but out of the range of the horizontal and vertical ones */
+    private final BitSet horVer;
+
+    private BrokenPixelMask(int width, int height, int distance, int stride, BitSet diag, BitSet horVer) {
+        this.width = width;
+        this.height = height;
+        this.distance = distance;
+        this.stride = stride;
+        this.diag = diag;
+        this.horVer = horVer;
+    }
+    static BrokenPixelMask of(BufferedImage image, int distance) {
+        GrayBuffer gray = GrayBuffer.direct(image);
+        return gray != null
+             ? of(image, distance, () -> calculate(gray, distance))
+             : of(image, PixelBuffer.of(image), distance);
+    }
+    /** @param pixels the pixels of the image, if the caller already has them */
+    static BrokenPixelMask of(BufferedImage image, PixelBuffer pixels, int distance) {
+        return of(image, distance, () -> calculate(pixels, distance));
+    }
+    private static BrokenPixelMask of(BufferedImage image, int distance, Supplier<BrokenPixelMask> calculation) {
+        BrokenPixelMask res = cached(image, distance);
+        if (res == null) {
+            // not under the lock: the calculation takes time, and it is better to calculate twice than to wait
+            res = calculation.get();
+            remember(image, res);
+        }
+        return res;
+    }
+    private static synchronized BrokenPixelMask cached(BufferedImage image, int distance) {
+        BrokenPixelMask res = cache.get(image);
+        return res != null && res.distance == distance ? res : null;
+    }
+    private static synchronized void remember(BufferedImage image, BrokenPixelMask mask) {
+        cache.put(image, mask);
+    }
+    static synchronized void clearCache() {
+        cache.clear();
+    }
+    static BrokenPixelMask calculate(PixelBuffer pixels, int d) {
+        return calculate(pixels.width, pixels.height, (row, y) -> pixels.getRow(0, y, pixels.width, row), false, d);
+    }
+    /** The same as for the RGB image of these gray colors, but one channel is checked instead of three */
+    static BrokenPixelMask calculate(GrayBuffer pixels, int d) {
+        return calculate(pixels.width, pixels.height, (row, y) -> {
+            int k = pixels.index(0, y);
+            for (int i = 0; i < pixels.width; i++) {
+                row[i] = 0xff & pixels.pixels[k + i];
+            }
+        }, true, d);
+    }
+    /**
+     * @param rows reads the row y into the array: the colors, or if gray, the gray values
+     */
+    private static BrokenPixelMask calculate(int width, int height, ObjIntConsumer<int[]> rows, boolean gray, int d) {
+        int longsPerRow = (width + 63) / 64;
+        long[] diagBits = new long[longsPerRow * height];
+        long[] horVerBits = new long[longsPerRow * height];
+        if (width > 2*d && height > 2*d) {
+            int size = 2*d + 1;
+            Par.splitFor(d, height - d, (from, to) -> {
+                // the rows j-d..j+d, the row y is in window[y % size]
+                int[][] window = new int[size][width];
+                for (int y = from - d; y < from + d; y++) {
+                    rows.accept(window[y % size], y);
+                }
+                for (int j = from; j < to; j++) {
+                    rows.accept(window[(j + d) % size], j + d);
+                    int[] above = window[(j - d) % size];
+                    int[] row = window[j % size];
+                    int[] below = window[(j + d) % size];
+                    int base = j * longsPerRow;
+                    for (int i = d; i < width - d; i++) {
+                        int color = row[i];
+                        if (gray
+                                ? !looksNotBrokenGray(color, above[i-d], above[i+d], below[i-d], below[i+d])
+                                : !looksNotBroken(color, above[i-d], above[i+d], below[i-d], below[i+d])
+                        ) {
+                            diagBits[base + (i >> 6)] |= 1L << i;
+                        } else if (gray
+                                ? !looksNotBrokenGray(color, row[i-d], row[i+d], above[i], below[i])
+                                : !looksNotBroken(color, row[i-d], row[i+d], above[i], below[i])
+                        ) {
+                            horVerBits[base + (i >> 6)] |= 1L << i;
+                        }
+                    }
+                }
+            });
+        }
+        return new BrokenPixelMask(width, height, d, longsPerRow * 64, BitSet.valueOf(diagBits), BitSet.valueOf(horVerBits));
+    }
+    /** The same as RgbColorBalancer.pixelLooksNotBroken() with the range of the 4 colors c1..c4 */
+    static boolean looksNotBroken(int color, int c1, int c2, int c3, int c4) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int c = 0xff & (color >> shift);
+            int v1 = 0xff & (c1 >> shift);
+            int v2 = 0xff & (c2 >> shift);
+            int v3 = 0xff & (c3 >> shift);
+            int v4 = 0xff & (c4 >> shift);
+            if (c < Math.min(Math.min(v1, v2), Math.min(v3, v4)) - TOLERANCE
+             || c > Math.max(Math.max(v1, v2), Math.max(v3, v4)) + TOLERANCE
+            ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    /** looksNotBroken() for a single channel */
+    static boolean looksNotBrokenGray(int v, int v1, int v2, int v3, int v4) {
+        return v >= Math.min(Math.min(v1, v2), Math.min(v3, v4)) - TOLERANCE
+            && v <= Math.max(Math.max(v1, v2), Math.max(v3, v4)) + TOLERANCE;
+    }
+    boolean isBroken(int i, int j) {
+        if (i < 0 || i >= width || j < 0 || j >= height) {
+            return false;
+        }
+        int k = j * stride + i;
+        return diag.get(k) || horVer.get(k);
+    }
+    /** The x of the next pixel in the row j, starting from i, that is out of the range of its diagonal neighbors, or -1 */
+    int nextBrokenDiag(int i, int j) {
+        return nextInRow(diag, i, j);
+    }
+    /** The x of the next pixel in the row j, starting from i, that is broken, but not out of the range of its diagonal neighbors, or -1 */
+    int nextBrokenHorVer(int i, int j) {
+        return nextInRow(horVer, i, j);
+    }
+    private int nextInRow(BitSet bits, int i, int j) {
+        int k = bits.nextSetBit(j * stride + i);
+        return k >= 0 && k < j * stride + width ? k - j * stride : -1;
+    }
+}
+
 class RgbColorBalancer {
     static RgbRange getRgbRangeWithStatsFromImage(Rectangle rectangle, BufferedImage src, boolean ignoreBroken, int d) {
         int iStart = (int) rectangle.getX();
@@ -9568,17 +12471,15 @@ class RgbColorBalancer {
         }
         int finalIStart = iStart;
         int finalIFinal = iFinal;
+        PixelBuffer pixels = PixelBuffer.of(src);
+        BrokenPixelMask broken = ignoreBroken ? BrokenPixelMask.of(src, pixels, d + d / 2) : null;
         RgbRange res = Par.splitFor(jStart, jFinal, (from, to) -> {
             RgbRange cr = newRgbRange.get();
-            RgbRange around = RgbRange.newEmptyRange();
-            int dd = d + d / 2;
             for (int j = from; j < to; j++) {
                 for (int i = finalIStart; i < finalIFinal; i++) {
-                    int color = src.getRGB(i, j);
+                    int color = pixels.get(i, j);
                     if (ignoreBroken) {
-                        if (pixelLooksNotBroken(color, setToMinMaxRgbDiag(around, src, i, j, dd))
-                         && pixelLooksNotBroken(color, setToMinMaxRgbHorVer(around, src, i, j, dd))
-                        ) {
+                        if (!broken.isBroken(i, j)) {
                             if ((color&0xff_ff_ff)==0xff_ff_ff) {
                                 System.out.println("not broken 255: (" + i + "," + j + ")");
                             }
@@ -9602,20 +12503,20 @@ class RgbColorBalancer {
     static boolean pixelLooksNotBroken(int rgb, RgbRange rgbs) {
         return rgbs.almostContains(rgb, 10); // 20?
     }
-    static RgbRange setToMinMaxRgbDiag(RgbRange rgbs, BufferedImage src, int i, int j, int d) {
+    static RgbRange setToMinMaxRgbDiag(RgbRange rgbs, PixelBuffer src, int i, int j, int d) {
         rgbs.setEmpty();
-        rgbs.update(src.getRGB(i-d, j-d));
-        rgbs.update(src.getRGB(i+d, j-d));
-        rgbs.update(src.getRGB(i-d, j+d));
-        rgbs.update(src.getRGB(i+d, j+d));
+        rgbs.update(src.get(i-d, j-d));
+        rgbs.update(src.get(i+d, j-d));
+        rgbs.update(src.get(i-d, j+d));
+        rgbs.update(src.get(i+d, j+d));
         return rgbs;
     }
-    static RgbRange setToMinMaxRgbHorVer(RgbRange rgbs, BufferedImage src, int i, int j, int d) {
+    static RgbRange setToMinMaxRgbHorVer(RgbRange rgbs, PixelBuffer src, int i, int j, int d) {
         rgbs.setEmpty();
-        rgbs.update(src.getRGB(i-d, j));
-        rgbs.update(src.getRGB(i+d, j));
-        rgbs.update(src.getRGB(i, j-d));
-        rgbs.update(src.getRGB(i, j+d));
+        rgbs.update(src.get(i-d, j));
+        rgbs.update(src.get(i+d, j));
+        rgbs.update(src.get(i, j-d));
+        rgbs.update(src.get(i, j+d));
         return rgbs;
     }
 //    static void setToMinMaxRgbAround(ColorRange rgbs, BufferedImage src, int i, int j, int d) {
@@ -9629,55 +12530,68 @@ class RgbColorBalancer {
 //        rgbs.update(src.getRGB(i, j+d));
 //        rgbs.update(src.getRGB(i+d, j+d));
 //    }
-    public static BufferedImage interpolateBrokenPixels(BufferedImage src) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-        var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        // copy the upper and lower borders (see the step); no need for Par.splitFor here
-        for (int j = 0; j < height; j += height-1) {
-            for (int i = 0; i < width; i++) {
-                res.setRGB(i, j, src.getRGB(i, j));
-            }
-        }
-        // copy the left and right borders (see the step); no need for Par.splitFor here
-        for (int j = 1; j < height-1; j++) {
-            for (int i = 0; i < width; i += width-1) {
-                res.setRGB(i, j, src.getRGB(i, j));
+    public static BufferedImage interpolateBrokenPixels(BufferedImage image) {
+        GrayBuffer gray = GrayBuffer.direct(image);
+        if (gray != null) {
+            return interpolateBrokenGrayPixels(gray);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer src = PixelBuffer.of(image);
+        PixelBuffer res = PixelBuffer.newRgbImage(width, height);
+        BrokenPixelMask broken = BrokenPixelMask.of(image, src, 1);
+        // the rows are copied as they are, and then the broken pixels are replaced
+        // (the border pixels are never broken)
+        Par.splitFor(0, height, (from, to) -> {
+            int[] row = new int[width];
+            for (int j = from; j < to; j++) {
+                src.getRow(0, j, width, row);
+                for (int i = broken.nextBrokenDiag(0, j); i >= 0; i = broken.nextBrokenDiag(i + 1, j)) {
+                    row[i] = mendRgbDiag(src, j, i);
+                }
+                for (int i = broken.nextBrokenHorVer(0, j); i >= 0; i = broken.nextBrokenHorVer(i + 1, j)) {
+                    row[i] = mendRgbHorVer(src, j, i);
+                }
+                res.setRow(0, j, width, row);
             }
-        }
-
-        Par.splitFor(1, height-1, (from, to) -> {
-            RgbRange around = RgbRange.newEmptyRange();
+        });
+        return res.image;
+    }
+    /** The same as for the RGB image with these gray colors, but the result is a gray image */
+    private static BufferedImage interpolateBrokenGrayPixels(GrayBuffer src) {
+        int width = src.width;
+        int height = src.height;
+        GrayBuffer res = GrayBuffer.newGrayImage(width, height);
+        BrokenPixelMask broken = BrokenPixelMask.of(src.image, 1);
+        Par.splitFor(0, height, (from, to) -> {
             for (int j = from; j < to; j++) {
-                for (int i = 1; i < width - 1; i++) {
-                    int color = src.getRGB(i, j);
-                    if (!pixelLooksNotBroken(color, setToMinMaxRgbDiag(around, src, i, j, 1))) {
-                        res.setRGB(i, j, mendRgbDiag(src, j, i));
-                    } else if (!pixelLooksNotBroken(color, setToMinMaxRgbHorVer(around, src, i, j, 1))) {
-                        res.setRGB(i, j, mendRgbHorVer(src, j, i));
-                    } else {
-                        res.setRGB(i, j, color);
-                    }
+                int d = res.index(0, j);
+                System.arraycopy(src.pixels, src.index(0, j), res.pixels, d, width);
+                for (int i = broken.nextBrokenDiag(0, j); i >= 0; i = broken.nextBrokenDiag(i + 1, j)) {
+                    res.pixels[d + i] = (byte) ((src.get(i-1, j-1) + src.get(i+1, j-1) + src.get(i-1, j+1) + src.get(i+1, j+1)) >> 2);
+                }
+                for (int i = broken.nextBrokenHorVer(0, j); i >= 0; i = broken.nextBrokenHorVer(i + 1, j)) {
+                    res.pixels[d + i] = (byte) ((src.get(i-1, j) + src.get(i+1, j) + src.get(i, j-1) + src.get(i, j+1)) >> 2);
                 }
             }
         });
-        return res;
+        return res.image;
     }
-    private static int mendRgbDiag(BufferedImage src, int j, int i) {
-        int c1 = src.getRGB(i-1, j-1);
-        int c2 = src.getRGB(i+1, j-1);
-        int c3 = src.getRGB(i-1, j+1);
-        int c4 = src.getRGB(i+1, j+1);
+    private static int mendRgbDiag(PixelBuffer src, int j, int i) {
+        int c1 = src.get(i-1, j-1);
+        int c2 = src.get(i+1, j-1);
+        int c3 = src.get(i-1, j+1);
+        int c4 = src.get(i+1, j+1);
         int r = (((c1&0xff0000) + (c2&0xff0000) + (c3&0xff0000) + (c4&0xff0000)) >> 2) & 0xff0000;
         int g = (((c1&0xff00) + (c2&0xff00) + (c3&0xff00) + (c4&0xff00)) >> 2) & 0xff00;
         int b = (((c1&0xff) + (c2&0xff) + (c3&0xff) + (c4&0xff)) >> 2) & 0xff;
         return r|g|b;
     }
-    private static int mendRgbHorVer(BufferedImage src, int j, int i) {
-        int c1 = src.getRGB(i-1, j);
-        int c2 = src.getRGB(i+1, j);
-        int c3 = src.getRGB(i, j-1);
-        int c4 = src.getRGB(i, j+1);
+    private static int mendRgbHorVer(PixelBuffer src, int j, int i) {
+        int c1 = src.get(i-1, j);
+        int c2 = src.get(i+1, j);
+        int c3 = src.get(i, j-1);
+        int c4 = src.get(i, j+1);
         int r = (((c1&0xff0000) + (c2&0xff0000) + (c3&0xff0000) + (c4&0xff0000)) >> 2) & 0xff0000;
         int g = (((c1&0xff00) + (c2&0xff00) + (c3&0xff00) + (c4&0xff00)) >> 2) & 0xff00;
         int b = (((c1&0xff) + (c2&0xff) + (c3&0xff) + (c4&0xff)) >> 2) & 0xff;
@@ -9704,28 +12618,34 @@ class RgbColorBalancer {
         if (ImageAndPath.isDummyImage(src)) {
             return src;
         }
+        return PointwiseColorPipeline.apply(src, stretchColorsRgbOperator(customStretchRgbParameters));
+    }
+    static Supplier<IntUnaryOperator> stretchColorsRgbOperator(CustomStretchRgbParameters customStretchRgbParameters) {
         if (customStretchRgbParameters.rgbRange.isEmpty()
          || customStretchRgbParameters.rgbRange.isFullRange()
         ) {
             System.out.println("stretchColorsRgb: full or empty range");
-            return src;
+            return PointwiseColorPipeline.NO_OP;
         }
         boolean perChannel = customStretchRgbParameters.isPerChannel;
         RgbRange cr = customStretchRgbParameters.rgbRange;
         boolean saturate = customStretchRgbParameters.isSaturated;
         boolean saturateToBlack = customStretchRgbParameters.isBlackSaturated;
         try {
-            return stretchColorsUsingRgbRange(cr, src, perChannel, saturate, saturateToBlack);
+            return stretchColorsUsingRgbRangeOperator(cr, perChannel, saturate, saturateToBlack);
         } catch (ArithmeticException e) {
             e.printStackTrace();
-            return src;
+            return PointwiseColorPipeline.NO_OP;
         }
     }
 
     static BufferedImage stretchColorsUsingRgbRange(RgbRange cr, BufferedImage src,
                                                     boolean perChannel, boolean saturate, boolean saturateToBlack) {
-        int width = src.getWidth();
-        int height = src.getHeight();
+        return PointwiseColorPipeline.apply(src, stretchColorsUsingRgbRangeOperator(cr, perChannel, saturate, saturateToBlack));
+    }
+    /** @throws ArithmeticException if the range is empty in some channel */
+    static ChannelLut stretchColorsUsingRgbRangeOperator(RgbRange cr,
+                                                    boolean perChannel, boolean saturate, boolean saturateToBlack) {
         int minR = cr.minR, minG = cr.minG, minB = cr.minB, maxR = cr.maxR, maxG = cr.maxG, maxB = cr.maxB;
         int minV = Math.min(minR, Math.min(minG, minB));
         int maxV = Math.max(maxR, Math.max(maxG, maxB));
@@ -9746,8 +12666,9 @@ class RgbColorBalancer {
             minR = minG = minB = minV;
             dr = dg = db = dv;
         }
-
-        var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (dr == 0 || dg == 0 || db == 0) {
+            throw new ArithmeticException("/ by zero");
+        }
 
         int finalMinR = minR;
         int finalMinG = minG;
@@ -9756,58 +12677,134 @@ class RgbColorBalancer {
         int finalDg = dg;
         int finalDb = db;
         if (saturate && !saturateToBlack) {
-            Par.splitFor(0, height, (from, to) -> {
-                for (int j = from; j < to; j++) {
-                    for (int i = 0; i < width; i++) {
-                        int color = src.getRGB(i, j);
-                        int r = 0xff & (color >> 16);
-                        int g = 0xff & (color >> 8);
-                        int b = 0xff & (color);
-                        int r1 = Math.max(0, Math.min(255, (r - finalMinR) * 255 / finalDr));
-                        int g1 = Math.max(0, Math.min(255, (g - finalMinG) * 255 / finalDg));
-                        int b1 = Math.max(0, Math.min(255, (b - finalMinB) * 255 / finalDb));
-                        int color1 = (r1 << 16) | (g1 << 8) | (b1);
-                        res.setRGB(i, j, color1);
-                    }
-                }
-            });
+            return ChannelLut.of(
+                    r -> Math.max(0, Math.min(255, (r - finalMinR) * 255 / finalDr)),
+                    g -> Math.max(0, Math.min(255, (g - finalMinG) * 255 / finalDg)),
+                    b -> Math.max(0, Math.min(255, (b - finalMinB) * 255 / finalDb))
+            );
         } else if (saturateToBlack) {
-            Par.splitFor(0, height, (from, to) -> {
-                for (int j = from; j < to; j++) {
-                    for (int i = 0; i < width; i++) {
-                        int color = src.getRGB(i, j);
-                        int r = 0xff & (color >> 16);
-                        int g = 0xff & (color >> 8);
-                        int b = 0xff & (color);
-                        int r1 = 0xff & Math.max(0, Math.min(256, (r - finalMinR) * 255 / finalDr));
-                        int g1 = 0xff & Math.max(0, Math.min(256, (g - finalMinG) * 255 / finalDg));
-                        int b1 = 0xff & Math.max(0, Math.min(256, (b - finalMinB) * 255 / finalDb));
-                        int color1 = (r1 << 16) | (g1 << 8) | (b1);
-                        res.setRGB(i, j, color1);
-                    }
-                }
-            });
+            return ChannelLut.of(
+                    r -> 0xff & Math.max(0, Math.min(256, (r - finalMinR) * 255 / finalDr)),
+                    g -> 0xff & Math.max(0, Math.min(256, (g - finalMinG) * 255 / finalDg)),
+                    b -> 0xff & Math.max(0, Math.min(256, (b - finalMinB) * 255 / finalDb))
+            );
         } else {
-            Par.splitFor(0, height, (from, to) -> {
-                for (int j = from; j < to; j++) {
-                    for (int i = 0; i < width; i++) {
-                        int color = src.getRGB(i, j);
-                        int r = 0xff & (color >> 16);
-                        int g = 0xff & (color >> 8);
-                        int b = 0xff & (color);
-                        int r1 = 0xff & (r - finalMinR) * 255 / finalDr;
-                        int g1 = 0xff & (g - finalMinG) * 255 / finalDg;
-                        int b1 = 0xff & (b - finalMinB) * 255 / finalDb;
-                        int color1 = (r1 << 16) | (g1 << 8) | (b1);
-                        res.setRGB(i, j, color1);
-                    }
-                }
-            });
+            return ChannelLut.of(
+                    r -> 0xff & (r - finalMinR) * 255 / finalDr,
+                    g -> 0xff & (g - finalMinG) * 255 / finalDg,
+                    b -> 0xff & (b - finalMinB) * 255 / finalDb
+            );
         }
-        return res;
     }
 }
 
+/**
+ * RGB to HSV and back, with the same results as Color.RGBtoHSB() and Color.HSBtoRGB():
+ * the float arithmetic is the same, but the divisions of one 8-bit value by another
+ * come from a table (computed with the same division), and no arrays are allocated.
+ */
+class HsvConverter {
+    /** QUOTIENT[(n << 8) | d] == (float) n / (float) d */
+    private static final float[] QUOTIENT = new float[256 * 256];
+    static {
+        for (int n = 0; n < 256; n++) {
+            for (int d = 1; d < 256; d++) {
+                QUOTIENT[(n << 8) | d] = ((float) n) / ((float) d);
+            }
+        }
+    }
+    static float quotient(int n, int d) {
+        return QUOTIENT[(n << 8) | d];
+    }
+    static float value(int cmax) {
+        return ((float) cmax) / 255.0f;
+    }
+    static float saturation(int cmax, int cmin) {
+        return cmax == 0 ? 0.f : QUOTIENT[((cmax - cmin) << 8) | cmax];
+    }
+    static float hue(int r, int g, int b, int cmax, int cmin) {
+        if (cmax == cmin) {
+            return 0.f;
+        }
+        int delta = cmax - cmin;
+        float redc = QUOTIENT[((cmax - r) << 8) | delta];
+        float greenc = QUOTIENT[((cmax - g) << 8) | delta];
+        float bluec = QUOTIENT[((cmax - b) << 8) | delta];
+        float hue;
+        if (r == cmax) {
+            hue = bluec - greenc;
+        } else if (g == cmax) {
+            hue = 2.0f + redc - bluec;
+        } else {
+            hue = 4.0f + greenc - redc;
+        }
+        hue = hue / 6.0f;
+        if (hue < 0) {
+            hue = hue + 1.0f;
+        }
+        return hue;
+    }
+    /** Like Color.RGBtoHSB(), for a packed RGB color; hsv[0] is H, hsv[1] is S, hsv[2] is V */
+    static float[] rgbToHsv(int rgb, float[] hsv) {
+        int r = 0xff & (rgb >> 16);
+        int g = 0xff & (rgb >> 8);
+        int b = 0xff & rgb;
+        int cmax = Math.max(r, Math.max(g, b));
+        int cmin = Math.min(r, Math.min(g, b));
+        hsv[0] = hue(r, g, b, cmax, cmin);
+        hsv[1] = saturation(cmax, cmin);
+        hsv[2] = value(cmax);
+        return hsv;
+    }
+    /** The same as Color.HSBtoRGB(), including the alpha of 0xff */
+    static int hsvToRgb(float hue, float saturation, float value) {
+        int r = 0, g = 0, b = 0;
+        if (saturation == 0) {
+            r = g = b = (int) (value * 255.0f + 0.5f);
+        } else {
+            // h >= 0, so (int) h is floor(h); and hue is usually in [0, 1)
+            float h = (hue >= 0.f && hue < 1.f ? hue : hue - (float) Math.floor(hue)) * 6.0f;
+            int sector = (int) h;
+            float f = h - sector;
+            float p = value * (1.0f - saturation);
+            float q = value * (1.0f - saturation * f);
+            float t = value * (1.0f - (saturation * (1.0f - f)));
+            switch (sector) {
+                case 0:
+                    r = (int) (value * 255.0f + 0.5f);
+                    g = (int) (t * 255.0f + 0.5f);
+                    b = (int) (p * 255.0f + 0.5f);
+                    break;
+                case 1:
+                    r = (int) (q * 255.0f + 0.5f);
+                    g = (int) (value * 255.0f + 0.5f);
+                    b = (int) (p * 255.0f + 0.5f);
+                    break;
+                case 2:
+                    r = (int) (p * 255.0f + 0.5f);
+                    g = (int) (value * 255.0f + 0.5f);
+                    b = (int) (t * 255.0f + 0.5f);
+                    break;
+                case 3:
+                    r = (int) (p * 255.0f + 0.5f);
+                    g = (int) (q * 255.0f + 0.5f);
+                    b = (int) (value * 255.0f + 0.5f);
+                    break;
+                case 4:
+                    r = (int) (t * 255.0f + 0.5f);
+                    g = (int) (p * 255.0f + 0.5f);
+                    b = (int) (value * 255.0f + 0.5f);
+                    break;
+                case 5:
+                    r = (int) (value * 255.0f + 0.5f);
+                    g = (int) (p * 255.0f + 0.5f);
+                    b = (int) (q * 255.0f + 0.5f);
+                    break;
+            }
+        }
+        return 0xff000000 | (r << 16) | (g << 8) | (b << 0);
+    }
+}
 class HsvColorBalancer {
     static HsvRange getHsvRangeWithStatsFromImage(Rectangle rectangle, BufferedImage src, boolean ignoreBroken, int d, double hLower) {
         int iStart = (int) rectangle.getX();
@@ -9842,26 +12839,24 @@ class HsvColorBalancer {
         System.out.println("====getHsvRangeFromImage hLower="+hLower);
         int finalIStart = iStart;
         int finalIFinal = iFinal;
+        PixelBuffer pixels = PixelBuffer.of(src);
+        BrokenPixelMask broken = ignoreBroken ? BrokenPixelMask.of(src, pixels, d + d / 2) : null;
         HsvRange res = Par.splitFor(jStart, jFinal, (from, to) -> {
                     HsvRange hr = newHsvRange.get();
-                    RgbRange around = RgbRange.newEmptyRange();
                     float[] hsv = {0.f, 0.f, 0.f};
-                    int dd = d + d / 2;
                     for (int j = from; j < to; j++) {
                         for (int i = finalIStart; i < finalIFinal; i++) {
-                            int color = src.getRGB(i, j);
+                            int color = pixels.get(i, j);
                             if (ignoreBroken) {
                                 // TODO: hsv analog for broken pixel detection?
-                                if (RgbColorBalancer.pixelLooksNotBroken(color, RgbColorBalancer.setToMinMaxRgbDiag(around, src, i, j, dd))
-                                 && RgbColorBalancer.pixelLooksNotBroken(color, RgbColorBalancer.setToMinMaxRgbHorVer(around, src, i, j, dd))
-                                ) {
+                                if (!broken.isBroken(i, j)) {
                                     if ((color&0xff_ff_ff)==0xff_ff_ff) {
                                         System.out.println("not broken 255: (" + i + "," + j + ")");
                                     }
-                                    hr.update(Color.RGBtoHSB(0xff & (color >> 16), 0xff & (color >> 8), 0xff & (color), hsv));
+                                    hr.update(HsvConverter.rgbToHsv(color, hsv));
                                 }
                             } else {
-                                hr.update(Color.RGBtoHSB(0xff & (color >> 16), 0xff & (color >> 8), 0xff & (color), hsv));
+                                hr.update(HsvConverter.rgbToHsv(color, hsv));
                             }
                         }
                     }
@@ -9900,29 +12895,30 @@ class HsvColorBalancer {
         if (ImageAndPath.isDummyImage(src)) {
             return src;
         }
-        try {
-            HsvRange h = HsvRange.newFullRange();
-            HTargetRange tr = HTargetRange.newFullRangeFrom(hLowerDeg/360.);
-            return stretchColorsUsingHsvRange(
-                    h, tr, src,
-                    true, false, false,
-                    false, false, false
-            );
-        } catch (ArithmeticException e) {
-            e.printStackTrace();
-            return src;
-        }
+        return PointwiseColorPipeline.apply(src, rotateColorsSimpleOperator(hLowerDeg));
+    }
+    static Supplier<IntUnaryOperator> rotateColorsSimpleOperator(int hLowerDeg) {
+        HsvRange h = HsvRange.newFullRange();
+        HTargetRange tr = HTargetRange.newFullRangeFrom(hLowerDeg/360.);
+        return stretchColorsUsingHsvRangeOperator(
+                h, tr,
+                true, false, false,
+                false, false, false
+        );
     }
     // TODO all copied
     public static BufferedImage stretchColorsHsv(BufferedImage src, CustomStretchHsvParameters customStretchHsvParameters) {
         if (ImageAndPath.isDummyImage(src)) {
             return src;
         }
+        return PointwiseColorPipeline.apply(src, stretchColorsHsvOperator(customStretchHsvParameters));
+    }
+    static Supplier<IntUnaryOperator> stretchColorsHsvOperator(CustomStretchHsvParameters customStretchHsvParameters) {
         if (customStretchHsvParameters.hsvRange.isEmpty()
         || (customStretchHsvParameters.hsvRange.isFullRange() && customStretchHsvParameters.hTargetRange.isFullRange0to1())
         ) {
             System.out.println("stretchColorsRgb: full or empty range");
-            return src;
+            return PointwiseColorPipeline.NO_OP;
         }
         HsvRange cr = customStretchHsvParameters.hsvRange;
         HTargetRange tr = customStretchHsvParameters.hTargetRange;
@@ -9932,16 +12928,11 @@ class HsvColorBalancer {
         boolean saturateH = customStretchHsvParameters.saturatedH;
         boolean saturateS = customStretchHsvParameters.saturatedS;
         boolean saturateV = customStretchHsvParameters.saturatedV;
-        try {
-            return stretchColorsUsingHsvRange(
-                    cr, tr, src,
-                    stretchH, stretchS, stretchV,
-                    saturateH, saturateS, saturateV
-            );
-        } catch (ArithmeticException e) {
-            e.printStackTrace();
-            return src;
-        }
+        return stretchColorsUsingHsvRangeOperator(
+                cr, tr,
+                stretchH, stretchS, stretchV,
+                saturateH, saturateS, saturateV
+        );
     }
 
     static BufferedImage stretchColorsUsingHsvRange(
@@ -9949,8 +12940,20 @@ class HsvColorBalancer {
             boolean stretchH, boolean stretchS, boolean stretchV,
             boolean saturateH, boolean saturateS, boolean saturateV
     ) {
-        int width = src.getWidth();
-        int height = src.getHeight();
+        return PointwiseColorPipeline.apply(
+                src,
+                stretchColorsUsingHsvRangeOperator(
+                        cr, tr,
+                        stretchH, stretchS, stretchV,
+                        saturateH, saturateS, saturateV
+                )
+        );
+    }
+    static Supplier<IntUnaryOperator> stretchColorsUsingHsvRangeOperator(
+            HsvRange cr, HTargetRange tr,
+            boolean stretchH, boolean stretchS, boolean stretchV,
+            boolean saturateH, boolean saturateS, boolean saturateV
+    ) {
         double minH = cr.minH, minS = cr.minS, minV = cr.minV;//, maxH = cr.maxH, maxS = cr.maxS, maxV = cr.maxV;
 
         System.out.println("\n\n\n\n---------------\nstretchColorsUsingHsvRange"); // TODO: remove
@@ -9960,40 +12963,62 @@ class HsvColorBalancer {
                 + ") saturate(" + MyStrings.flagsList("H S V", saturateH, saturateS, saturateV) + ")"
         );
         double mh = (tr.maxH - tr.minH) / (cr.maxH - cr.minH);
-        DoubleUnaryOperator transformH = !stretchH ? DoubleUnaryOperator.identity()
-                                       : !saturateH ? h -> MyMath.frac((h - minH)*mh + tr.minH)
-                                       : h -> MyMath.saturate(tr.minH, tr.maxH, (h - minH)*mh + tr.minH);
-
         double ms = 1. / (cr.maxS - cr.minS);
-        DoubleUnaryOperator transformS = !stretchS ? DoubleUnaryOperator.identity()
-                                       : !saturateS ? s -> MyMath.frac((s - minS)*ms)
-                                       : s -> MyMath.saturate01((s - minS)*ms);
-
         double mv = 1. / (cr.maxV - cr.minV);
-        DoubleUnaryOperator transformV = !stretchV ? DoubleUnaryOperator.identity()
-                                       : !saturateV ? v -> MyMath.frac((v - minV)*mv)
-                                       : v -> MyMath.saturate01((v - minV)*mv);
-
-        var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-        Par.splitFor(0, height, (from, to) -> {
-            float[] hsv = { 0.f, 0.f, 0.f };
-            for (int j = from; j < to; j++) {
-                for (int i = 0; i < width; i++) {
-                    int color = src.getRGB(i, j);
-                    hsv = Color.RGBtoHSB(0xff & (color >> 16), 0xff & (color >> 8), 0xff & (color), hsv);
-                    // s ∈ [0, 1], v ∈ [0, 1]; h ∈ [0, 1] and what is >1 is ignored
-                    // ds ∈ [0, 1], dv ∈ [0, 1]
-                    // no need to multiply by 1.0f
-                    float h1 = stretchH ? (float) transformH.applyAsDouble(hsv[0]) : hsv[0];
-                    float s1 = stretchS ? (float) transformS.applyAsDouble(hsv[1]) : hsv[1];
-                    float v1 = stretchV ? (float) transformV.applyAsDouble(hsv[2]) : hsv[2];
-                    int color1 = Color.HSBtoRGB(h1, s1, v1);
-                    res.setRGB(i, j, color1);
+        // V depends only on the max of R, G, B, and S only on the max and the min,
+        // so the transformed V and S are taken from tables; only H is transformed per pixel
+        float[] vTable = new float[256];
+        for (int cmax = 0; cmax < 256; cmax++) {
+            float v = HsvConverter.value(cmax);
+            vTable[cmax] = !stretchV ? v
+                         : !saturateV ? (float) MyMath.frac((v - minV)*mv)
+                         : (float) MyMath.saturate01((v - minV)*mv);
+        }
+        float[] sTable = new float[256 * 256];
+        for (int cmax = 0; cmax < 256; cmax++) {
+            for (int cmin = 0; cmin <= cmax; cmin++) {
+                float s = HsvConverter.saturation(cmax, cmin);
+                sTable[(cmax << 8) | cmin] = !stretchS ? s
+                                           : !saturateS ? (float) MyMath.frac((s - minS)*ms)
+                                           : (float) MyMath.saturate01((s - minS)*ms);
+            }
+        }
+        double trMinH = tr.minH, trMaxH = tr.maxH;
+        return () -> {
+            // the same colors are met again and again, especially in neighboring pixels
+            int[] memoKeys = new int[HSV_MEMO_SIZE];
+            int[] memoValues = new int[HSV_MEMO_SIZE];
+            Arrays.fill(memoKeys, -1);
+            return color -> {
+                int key = color & 0xffffff;
+                int slot = (key * 0x9E3779B1) >>> (32 - HSV_MEMO_BITS);
+                if (memoKeys[slot] == key) {
+                    return memoValues[slot];
                 }
-            }
-        });
-        return res;
+                int res = stretchHsv(key, sTable, vTable, stretchH, saturateH, minH, mh, trMinH, trMaxH);
+                memoKeys[slot] = key;
+                memoValues[slot] = res;
+                return res;
+            };
+        };
+    }
+    static final int HSV_MEMO_BITS = 12;
+    static final int HSV_MEMO_SIZE = 1 << HSV_MEMO_BITS;
+    private static int stretchHsv(
+            int color, float[] sTable, float[] vTable,
+            boolean stretchH, boolean saturateH, double minH, double mh, double trMinH, double trMaxH
+    ) {
+        int r = 0xff & (color >> 16);
+        int g = 0xff & (color >> 8);
+        int b = 0xff & color;
+        int cmax = Math.max(r, Math.max(g, b));
+        int cmin = Math.min(r, Math.min(g, b));
+        // s ∈ [0, 1], v ∈ [0, 1]; h ∈ [0, 1] and what is >1 is ignored
+        float h = HsvConverter.hue(r, g, b, cmax, cmin);
+        float h1 = !stretchH ? h
+                 : !saturateH ? (float) MyMath.frac((h - minH)*mh + trMinH)
+                 : (float) MyMath.saturate(trMinH, trMaxH, (h - minH)*mh + trMinH);
+        return HsvConverter.hsvToRgb(h1, sTable[(cmax << 8) | cmin], vTable[cmax]);
     }
 }
 
@@ -10003,31 +13028,15 @@ class GammaColorBalancer {
             return src;
         }
         try {
-            int width = src.getWidth();
-            int height = src.getHeight();
-            var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            Par.splitFor(0, height, (from, to) -> {
-                for (int j = from; j < to; j++) {
-                    for (int i = 0; i < width; i++) {
-                        int color = src.getRGB(i, j);
-
-                        int r = 0xff & (color >> 16);
-                        int g = 0xff & (color >> 8);
-                        int b = 0xff & (color);
-                        int r1 = gamma(gamma, r);
-                        int g1 = gamma(gamma, g);
-                        int b1 = gamma(gamma, b);
-                        int color1 = (r1 << 16) | (g1 << 8) | (b1);
-                        res.setRGB(i, j, color1);
-                    }
-                }
-            });
-            return res;
+            return PointwiseColorPipeline.apply(src, gammaOperator(gamma));
         } catch (RuntimeException e) {
             e.printStackTrace();
             return src;
         }
     }
+    static ChannelLut gammaOperator(double gamma) {
+        return ChannelLut.of(v -> gamma(gamma, v));
+    }
     static int gamma(double gamma, int colorValue) {
         double res = Math.pow((colorValue / 255.), gamma) * 255.;
         return (int) Math.round(res);
@@ -10035,82 +13044,97 @@ class GammaColorBalancer {
 }
 
 class CyanRedColorFilter {
+    static final IntUnaryOperator RED_AS_WHITE =
+            color -> (color & 0xff0000) | (color>>8 & 0x00ff00) | (color>>16 & 0x0000ff);
+    static final IntUnaryOperator BLUE_AS_WHITE =
+            color -> (color<<16 & 0xff0000) | (color<<8 & 0x00ff00) | (color & 0x0000ff);
+    static final ChannelLut ONLY_RED =
+            ChannelLut.of(IntUnaryOperator.identity(), g -> 0, b -> 0);
+    static final ChannelLut ONLY_BLUE_GREEN =
+            ChannelLut.of(r -> 0, IntUnaryOperator.identity(), IntUnaryOperator.identity());
+
     static BufferedImage filterColor(BufferedImage src, IntUnaryOperator changeColor) {
         if (ImageAndPath.isDummyImage(src)) {
             return src;
         }
         try {
-            int width = src.getWidth();
-            int height = src.getHeight();
-            var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            Par.splitFor(0, height, (from, to) -> {
-                for (int j = from; j < to; j++) {
-                    for (int i = 0; i < width; i++) {
-                        int color = src.getRGB(i, j);
-                        res.setRGB(i, j, changeColor.applyAsInt(color));
-                    }
-                }
-            });
-            return res;
+            return PointwiseColorPipeline.apply(src, () -> changeColor);
         } catch (ArithmeticException e) {
             e.printStackTrace();
             return src;
         }
     }
     public static BufferedImage filterRed(BufferedImage src) {
-        return filterColor(src,
-                color ->
-                        (color & 0xff0000) | (color>>8 & 0x00ff00) | (color>>16 & 0x0000ff)
-                );
+        return filterColor(src, RED_AS_WHITE);
     }
     public static BufferedImage filterBlue(BufferedImage src) {
-        return filterColor(src,
-                color ->
-                        (color<<16 & 0xff0000) | (color<<8 & 0x00ff00) | (color & 0x0000ff)
-                );
+        return filterColor(src, BLUE_AS_WHITE);
     }
     public static BufferedImage filterRedColor(BufferedImage src) {
-        return filterColor(src,
-                color -> color & 0xff0000
-                );
+        return filterColor(src, ONLY_RED);
     }
     public static BufferedImage filterBlueGreenColor(BufferedImage src) {
-        return filterColor(src,
-                color -> color & 0x00ffff
-                );
+        return filterColor(src, ONLY_BLUE_GREEN);
     }
 }
 
 class BilinearDeglareWhite {
     final static int NX = 32, NY=32;
+    /**
+     * The min and max of the pixel values are gathered in NX×NY blocks, then, in each pixel,
+     * the colors are stretched to the bilinear interpolation of the min and max of the blocks around.
+     * Both passes over the image are done in parallel, and the results are the same as of
+     * the straightforward implementation via StretchedArray2d and InterpolatingArray2d.
+     */
     public static BufferedImage unglare(BufferedImage src) {
         try {
             int width = src.getWidth();
             int height = src.getHeight();
             int dx = (width+NX-1)/NX;
             int dy = (height+NY-1)/NY;
+            PixelBuffer pixels = PixelBuffer.of(src);
 
             var aminv = new ByteArray2d(NX,NY);
             var amaxv = new ByteArray2d(NX,NY);
-            aminv.setAll(255);
-
             {
-                var smaxv = new StretchedArray2d(amaxv, dx, dy);
-                var sminv = new StretchedArray2d(aminv, dx, dy);
-                for (int j = 0; j < height; j++) {
-                    for (int i = 0; i < width; i++) {
-                        int color = src.getRGB(i, j);
-                        int r = 0xff & (color >> 16);
-                        int g = 0xff & (color >> 8);
-                        int b = 0xff & (color);
-                        int v = Math.min(Math.min(r,g),b);
-                        int vv = Math.max(Math.max(r,g),b);
-                        if (v < sminv.get(i, j)) { sminv.set(i,j,r); }
-                        if (vv > smaxv.get(i, j)) { smaxv.set(i,j,vv); }
+                int[] mins = new int[NX*NY];
+                int[] maxs = new int[NX*NY];
+                // A row of blocks is done by one thread, so the pixels of each block are visited in the same order
+                // as in a sequential scan: the min gathering depends on that, because it stores r rather than the min.
+                Par.splitFor(0, NY, (from, to) -> {
+                    int[] row = new int[width];
+                    for (int bj = from; bj < to; bj++) {
+                        int base = bj*NX;
+                        Arrays.fill(mins, base, base + NX, 255);
+                        for (int j = bj*dy, jEnd = Math.min(height, j + dy); j < jEnd; j++) {
+                            pixels.getRow(0, j, width, row);
+                            for (int bi = 0, i = 0; i < width; bi++) {
+                                int minv = mins[base + bi];
+                                int maxv = maxs[base + bi];
+                                for (int iEnd = Math.min(width, i + dx); i < iEnd; i++) {
+                                    int color = row[i];
+                                    int r = 0xff & (color >> 16);
+                                    int g = 0xff & (color >> 8);
+                                    int b = 0xff & (color);
+                                    int v = Math.min(Math.min(r,g),b);
+                                    int vv = Math.max(Math.max(r,g),b);
+                                    if (v < minv) { minv = r; }
+                                    if (vv > maxv) { maxv = vv; }
+                                }
+                                mins[base + bi] = minv;
+                                maxs[base + bi] = maxv;
+                            }
+                        }
+                    }
+                });
+                for (int j=0; j<NY; j++) {
+                    for (int i=0; i<NX; i++) {
+                        aminv.set(i, j, mins[j*NX + i]);
+                        amaxv.set(i, j, maxs[j*NX + i]);
                     }
                 }
-                sminv.copyBoundaries();
-                smaxv.copyBoundaries();
+                aminv.copyBoundaries();
+                amaxv.copyBoundaries();
             }
 
             var bminv = new ByteArray2d(NX,NY);
@@ -10124,31 +13148,61 @@ class BilinearDeglareWhite {
             bminv.copyBoundaries();
             bmaxv.copyBoundaries();
 
-            var iminv = new InterpolatingArray2d(bminv, dx, dy);
-            var imaxv = new InterpolatingArray2d(bmaxv, dx, dy);
-
-            var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int j=0; j<height; j++) {
-                for (int i=0; i<width; i++) {
-                    int color = src.getRGB(i, j);
-                    int r = 0xff & (color >> 16);
-                    int g = 0xff & (color >> 8);
-                    int b = 0xff & (color);
-                    int minV = iminv.get(i,j);
-                    int maxV = imaxv.get(i,j);
-                    int r1 = (r - minV) * 255 / Math.max(40, maxV-minV);
-                    int g1 = (g - minV) * 255 / Math.max(40, maxV-minV);
-                    int b1 = (b - minV) * 255 / Math.max(40, maxV-minV);
-                    int color1 = (r1 << 16) | (g1 << 8) | (b1);
-                    res.setRGB(i, j, color1);
-                }
+            // the same arithmetic as in InterpolatingArray2d, but what depends only on x is computed once per column,
+            // and what depends only on the row of blocks is computed once per that row
+            int dx2 = dx/2, dy2 = dy/2;
+            int[] ia = new int[width];
+            int[] xx = new int[width];
+            for (int x = 0; x < width; x++) {
+                ia[x] = Math.floorDiv(x-dx2, dx);
+                xx[x] = x - (dx*ia[x]+dx2);
             }
-            return res;
+            PixelBuffer res = PixelBuffer.newRgbImage(width, height);
+            Par.splitFor(0, height, (from, to) -> {
+                int[] row = new int[width];
+                double[] faMin = new double[width], fzMin = new double[width];
+                double[] faMax = new double[width], fzMax = new double[width];
+                int jaDone = Integer.MIN_VALUE;
+                for (int j = from; j < to; j++) {
+                    int ja = Math.floorDiv(j-dy2, dy);
+                    int yy = j - (dy*ja+dy2);
+                    if (ja != jaDone) {
+                        interpolateInRow(bminv, ja, ia, xx, dx, faMin, fzMin);
+                        interpolateInRow(bmaxv, ja, ia, xx, dx, faMax, fzMax);
+                        jaDone = ja;
+                    }
+                    pixels.getRow(0, j, width, row);
+                    for (int i = 0; i < width; i++) {
+                        int color = row[i];
+                        int r = 0xff & (color >> 16);
+                        int g = 0xff & (color >> 8);
+                        int b = 0xff & (color);
+                        int minV = (int) ((faMin[i]*(dy-yy) + fzMin[i]*yy) / dy);
+                        int maxV = (int) ((faMax[i]*(dy-yy) + fzMax[i]*yy) / dy);
+                        int d = Math.max(40, maxV-minV);
+                        int r1 = (r - minV) * 255 / d;
+                        int g1 = (g - minV) * 255 / d;
+                        int b1 = (b - minV) * 255 / d;
+                        row[i] = 0xffffff & ((r1 << 16) | (g1 << 8) | (b1));
+                    }
+                    res.setRow(0, j, width, row);
+                }
+            });
+            return res.image;
         } catch (ArithmeticException e) {
             e.printStackTrace();
             return src;
         }
     }
+    /** Interpolation along x in the block rows ja and ja+1, as in InterpolatingArray2d.bilinear4() */
+    private static void interpolateInRow(ROArray2d blocks, int ja, int[] ia, int[] xx, int dx, double[] fa, double[] fz) {
+        for (int x = 0; x < ia.length; x++) {
+            double faa = blocks.get(ia[x],ja), fza = blocks.get(ia[x]+1,ja),
+                   faz = blocks.get(ia[x],ja+1), fzz = blocks.get(ia[x]+1,ja+1);
+            fa[x] = ( faa*(dx-xx[x]) + fza*xx[x] ) / dx;
+            fz[x] = ( faz*(dx-xx[x]) + fzz*xx[x] ) / dx;
+        }
+    }
     //====
     interface ROArray2d {
         int get(int x, int y);
@@ -13470,6 +16524,10 @@ class SettingsPanel extends JPanel {
     JCheckBox saveGifCheckbox;
     JCheckBox saveRightLeftCheckbox;
     JCheckBox customCrosshairCursorCheckbox;
+    JCheckBox viewportRenderingCheckbox;
+    JCheckBox fusedWarpCheckbox;
+    JCheckBox demosaicDiskCacheCheckbox;
+    JSpinner decodedImageCacheSpinner;
     enum GeometryIndicatorPosition {
         NONE(-1),
         TOP_LEFT(0),    TOP_CENTER(1),    TOP_RIGHT(2),
@@ -13611,9 +16669,10 @@ class SettingsPanel extends JPanel {
                             "Yes, use the JVM flag <b>-XX:ActiveProcessorCount=4</b> (replace 4 with your number of choice) to override the " +
                             "<br/>number of CPUs visible to the JVM (Java Virtual Machine)." +
                             "<h2>How do I measure time?</h2>\n" +
-                            "If you start this program from the terminal (the command line box), you can find a line like " +
-                            "<br/><tt>*** updateViews/processBothImages elapsed: 0.181538552</tt>" +
-                            "<br/> in the output. This is the amount of time, in seconds, spent processing both images." +
+                            "The <b>\"Processing time\"</b> box below shows the time spent in each processing stage " +
+                            "<br/>of the latest rendering, for the left and right images, and the total time. " +
+                            "<br/>Press <b>\"Refresh\"</b> after the images have been re-rendered, and <b>\"Copy as JSON\"</b> " +
+                            "<br/>to copy the same data to the clipboard in a machine-readable form." +
                             "</html>");
             JButton butHelp = new JButton("Help");
             butHelp.setToolTipText("Read about the parallelization parameters");
@@ -13649,12 +16708,35 @@ class SettingsPanel extends JPanel {
                 System.out.println(Par.describe());
             });
 
+            var row6 = new JPanel();
+            row6.setLayout(new BoxLayout(row6, BoxLayout.Y_AXIS));
+            row6.add(new JLabel("Processing time of the latest rendering:"));
+            JTextArea metricsText = new JTextArea(10, 80);
+            metricsText.setEditable(false);
+            metricsText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, metricsText.getFont().getSize()));
+            row6.add(new JScrollPane(metricsText));
+            var row6buttons = new JPanel();
+            JButton butRefreshMetrics = new JButton("Refresh");
+            butRefreshMetrics.setToolTipText("Show the time of the latest rendering");
+            row6buttons.add(butRefreshMetrics);
+            JButton butCopyMetrics = new JButton("Copy as JSON");
+            butCopyMetrics.setToolTipText("Copy the processing time of the latest rendering to the clipboard, in JSON format");
+            row6buttons.add(butCopyMetrics);
+            row6.add(row6buttons);
+            this.add(row6);
+
+            butRefreshMetrics.addActionListener(e -> metricsText.setText(uiEventListener.getPipelineMetrics().toText()));
+            butCopyMetrics.addActionListener(e ->
+                    Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(uiEventListener.getPipelineMetrics().toJson()), null)
+            );
+
             this.addAncestorListener(new AncestorListener() {
                 @Override
                 public void ancestorAdded(AncestorEvent ancestorEvent) {
                     spNCores.setValue(parFacade.getParallelism());
                     spNTasks.setValue(parFacade.getNTasksToSpawn());
                     cbParLR.setSelected(parFacade.getParLR());
+                    metricsText.setText(uiEventListener.getPipelineMetrics().toText());
                 }
                 @Override
                 public void ancestorRemoved(AncestorEvent ancestorEvent) {}
@@ -13722,6 +16804,54 @@ class SettingsPanel extends JPanel {
                 customCrosshairCursorCheckbox.setToolTipText("You can use either the standard thick cross-hair cursor or a custom one");
                 box.add(customCrosshairCursorCheckbox);
             }
+            {
+                viewportRenderingCheckbox = new JCheckBox("Draw only the visible part of zoomed images");
+                viewportRenderingCheckbox.setSelected(UiDefault.VIEWPORT_RENDERING);
+                viewportRenderingCheckbox.addActionListener(
+                        e -> uiEventListener.setViewportRendering(viewportRenderingCheckbox.isSelected())
+                );
+                viewportRenderingCheckbox.setToolTipText("<html>The zoomed images are not built, the visible area is drawn from the unzoomed images." +
+                        "<br>Uses much less memory at large zoom levels, zooming is faster, but scrolling may be slower." +
+                        "<br>Has no effect when subpixel precision marks are shown.</html>");
+                box.add(viewportRenderingCheckbox);
+            }
+            {
+                fusedWarpCheckbox = new JCheckBox("Fisheye correction, rotation and zoom in one step");
+                fusedWarpCheckbox.setSelected(UiDefault.FUSED_WARP);
+                fusedWarpCheckbox.addActionListener(
+                        e -> uiEventListener.setFusedWarp(fusedWarpCheckbox.isSelected())
+                );
+                fusedWarpCheckbox.setToolTipText("<html>The image is resampled once instead of three times, no full-size intermediate images are built." +
+                        "<br>Less blur and less memory, but the result is slightly different." +
+                        "<br>The fisheye correction is done in this step only if there is no color correction and no marks are drawn before rotation." +
+                        "<br>Has no effect when only the visible part of zoomed images is drawn.</html>");
+                box.add(fusedWarpCheckbox);
+            }
+            {
+                demosaicDiskCacheCheckbox = new JCheckBox("Save demosaiced images on disk");
+                demosaicDiskCacheCheckbox.setSelected(UiDefault.DEMOSAIC_DISK_CACHE);
+                demosaicDiskCacheCheckbox.addActionListener(
+                        e -> uiEventListener.setDemosaicDiskCache(demosaicDiskCacheCheckbox.isSelected())
+                );
+                demosaicDiskCacheCheckbox.setToolTipText("<html>Images viewed recently are not demosaiced again, even after a restart." +
+                        "<br>Up to " + (DemosaicDiskCache.DEFAULT_MAX_BYTES >> 20) + " MB in " + DemosaicDiskCache.getDefault().directory + "</html>");
+                box.add(demosaicDiskCacheCheckbox);
+            }
+            {
+                decodedImageCacheSpinner = Spinners.createJSpinner(UiDefault.DECODED_IMAGE_CACHE_MB, 0, 1 << 20);
+                decodedImageCacheSpinner.addChangeListener(
+                        e -> uiEventListener.setDecodedImageCacheMb((Integer) decodedImageCacheSpinner.getValue())
+                );
+                var row = MySwing.makeThinRow(
+                        new JLabel(" Keep recently viewed images in memory, MB:"),
+                        decodedImageCacheSpinner
+                );
+                row.setToolTipText("<html>Going back to a recently viewed image neither downloads nor decodes it again." +
+                        "<br>Images over this size are kept only while the memory is not needed for anything else." +
+                        "<br>0 keeps them only in this way.</html>");
+                decodedImageCacheSpinner.setToolTipText(row.getToolTipText());
+                box.add(row);
+            }
             {
                 geometryIndicatorPositionChooser = new GeometryIndicatorPositionChooser(
                         i -> uiEventListener.setGeometryIndicator(i)
@@ -13739,6 +16869,10 @@ class SettingsPanel extends JPanel {
         saveGifCheckbox.setSelected(bo.saveGif);
         saveRightLeftCheckbox.setSelected(bo.saveLeftRightImages);
         customCrosshairCursorCheckbox.setSelected(bo.useCustomCrosshairCursor);
+        viewportRenderingCheckbox.setSelected(bo.viewportRendering);
+        fusedWarpCheckbox.setSelected(bo.fusedWarp);
+        demosaicDiskCacheCheckbox.setSelected(bo.demosaicDiskCache);
+        decodedImageCacheSpinner.setValue(bo.decodedImageCacheMb);
         geometryIndicatorPositionChooser.setValue(bo.sizerPosition);
     }
     void showDialogIn(JFrame mainFrame) {
@@ -13804,195 +16938,143 @@ class CustomCursorMaker {
     }
 }
 
+/**
+ * Cubic/bicubic Bayer pattern demosaicing, see demosaic.md.
+ * The mosaic is first extracted to a byte plane padded by 2 pixels on each side, the padding reflects
+ * the image borders (by 2 pixels, so that the colors in the Bayer pattern stay the same), and then
+ * each output row is calculated by a loop for R/Gr or Gb/B rows that reads the plane without any checks.
+ */
 class DebayerBicubic {
-    abstract static class BasePointSet<T> {
-        int x,y;
-        BufferedImage bi;
-        int w, h;
-
-        int x(int dx) {
-            int xx = x+dx;
-            while (xx<0) { xx += 2; }
-            while (xx >= w) { xx -= 2; }
-            return xx;
-        }
-        int y(int dy) {
-            int yy = y+dy;
-            while (yy<0) { yy += 2; }
-            while (yy >= h) { yy -= 2; }
-            return yy;
-        }
-
-        @SuppressWarnings("unchecked")
-        public T with(BufferedImage bi) {
-            this.bi = bi;
-            w = bi.getWidth();
-            h = bi.getHeight();
-            return (T) this;
-        }
-        @SuppressWarnings("unchecked")
-        public T at(int x, int y) {
-            this.x = x;
-            this.y = y;
-            return (T) this;
-        }
-
-        public abstract int q0();
-        public abstract int p1();
-        public abstract int q1();
-        public abstract int p2();
-        public abstract int q2();
-
-        public int interpolate() {
-            return (
-                    ((p1()+p2())<<2) + (q1()<<1) - q0() - q2()
-                   ) >> 3;
-        }
-    }
-    static class HorizPointSet extends BasePointSet<HorizPointSet> {
-        @Override
-        public int q0() {
-            return getC(bi, x(-2), y(0));
-        }
-        @Override
-        public int p1() {
-            return getC(bi, x(-1), y(0));
-        }
-        @Override
-        public int q1() {
-            return getC(bi, x(0), y(0));
-        }
-        @Override
-        public int p2() {
-            return getC(bi, x(1), y(0));
-        }
-        @Override
-        public int q2() {
-            return getC(bi, x(2), y(0));
-        }
-    }
-    static class VertPointSet extends BasePointSet<VertPointSet> {
-        @Override
-        public int q0() {
-            return getC(bi, x(0), y(-2));
-        }
-        @Override
-        public int p1() {
-            return getC(bi, x(0), y(-1));
-        }
-        @Override
-        public int q1() {
-            return getC(bi, x(0), y(0));
-        }
-        @Override
-        public int p2() {
-            return getC(bi, x(0), y(1));
-        }
-        @Override
-        public int q2() {
-            return getC(bi, x(0), y(2));
-        }
-    }
-    static class TwoDPointSet extends BasePointSet<TwoDPointSet> {
-        HorizPointSet above = new HorizPointSet();
-        HorizPointSet below = new HorizPointSet();
+    /** the cubic interpolation uses 2 pixels on each side */
+    static final int PAD = 2;
+    /** the mosaic is in the blue channel */
+    static final int[] BLUE_CHANNEL = {0, 0, 0, 0};
 
-        @Override
-        public TwoDPointSet with(BufferedImage bi) {
-            above.with(bi);
-            below.with(bi);
-            return super.with(bi);
-        }
-        @Override
-        public TwoDPointSet at(int x, int y) {
-            above.at(x,y-1);
-            below.at(x,y+1);
-            return super.at(x, y);
-        }
-        @Override
-        public int q0() {
-            return getC(bi, x(0), y(-2));
-        }
-        @Override
-        public int p1() {
-            return above.interpolate();
-        }
-        @Override
-        public int q1() {
-            return getC(bi, x(0), y(0));
-        }
-        @Override
-        public int p2() {
-            return below.interpolate();
-        }
-        @Override
-        public int q2() {
-            return getC(bi, x(0), y(2));
-        }
-    }
     static BufferedImage debayer_bicubic(BufferedImage orig) {
         if (ImageAndPath.isDummyImage(orig)) {
             return orig;
         }
-        int HEIGHT = orig.getHeight();
-        int WIDTH = orig.getWidth();
-        System.out.println("debayer_bicubic " + WIDTH + "x" + HEIGHT);
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Par.splitFor(0, HEIGHT, (from, to) -> {
-            var hps = new HorizPointSet().with(orig);
-            var vps = new VertPointSet().with(orig);
-            var tps = new TwoDPointSet().with(orig);
+        System.out.println("debayer_bicubic " + orig.getWidth() + "x" + orig.getHeight());
+        return demosaic(orig, BLUE_CHANNEL);
+    }
+    /**
+     * @param shifts for each pixel type (R, Gr, Gb, B, see type()), the shift of the channel
+     *               in which the mosaic value is; not used for a gray mosaic, whose bytes are the values
+     */
+    static BufferedImage demosaic(BufferedImage orig, int[] shifts) {
+        int width = orig.getWidth();
+        int height = orig.getHeight();
+        int stride = width + 2*PAD;
+        byte[] plane = paddedPlane(orig, shifts);
+        PixelBuffer dst = PixelBuffer.newRgbImage(width, height);
+        Par.splitFor(0, height, (from, to) -> {
+            int[] row = new int[width];
             for (int j = from; j < to; j++) {
-                for (int i = 0; i < WIDTH; i++) {
-//                int type = (j&1)*2 + (i&1); // RGGB
-                    int type = (j & 1) << 1 | (i & 1); // RGGB
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    int r, g, b;
-                    switch (type) {
-                        case 0: { // R
-                            r = getC(orig, i, j);
-                            g = hps.at(i, j).interpolate();
-                            b = tps.at(i, j).interpolate();
-                        }
-                        break;
-                        case 1: { // Gr
-                            r = hps.at(i, j).interpolate();
-                            g = getC(orig, i, j);
-                            b = vps.at(i, j).interpolate();
-                        }
-                        break;
-                        case 2: { // Gb
-                            r = vps.at(i, j).interpolate();
-                            g = getC(orig, i, j);
-                            b = hps.at(i, j).interpolate();
-                        }
-                        break;
-                        case 3: { // B
-                            r = tps.at(i, j).interpolate();
-                            g = hps.at(i, j).interpolate();
-                            b = getC(orig, i, j);
-                        }
-                        break;
-                        default: // stupid Java, this is impossible! type is 0..3!
-                            r = g = b = 0;
+                int k = (j + PAD) * stride + PAD;
+                if ((j & 1) == 0) {
+                    redRow(plane, k, stride, width, row);
+                } else {
+                    blueRow(plane, k, stride, width, row);
+                }
+                dst.setRow(0, j, width, row);
+            }
+        });
+        return dst.image;
+    }
+    /**
+     * The mosaic values, with the borders reflected; the pixels that do not get into the image
+     * even when reflected (this happens if the image is 1 pixel wide or high) are 0.
+     */
+    static byte[] paddedPlane(BufferedImage orig, int[] shifts) {
+        int width = orig.getWidth();
+        int height = orig.getHeight();
+        int stride = width + 2*PAD;
+        byte[] plane = new byte[stride * (height + 2*PAD)];
+        int[] xs = new int[stride];
+        for (int px = 0; px < stride; px++) {
+            xs[px] = reflect(px - PAD, width);
+        }
+        // a gray mosaic is read as it is, without expanding it to ints
+        GrayBuffer gray = GrayBuffer.direct(orig);
+        PixelBuffer src = gray == null ? PixelBuffer.of(orig) : null;
+        Par.splitFor(0, height + 2*PAD, (from, to) -> {
+            int[] row = new int[width];
+            byte[] values = new byte[width];
+            for (int py = from; py < to; py++) {
+                int y = reflect(py - PAD, height);
+                if (y < 0 || y >= height) {
+                    continue;
+                }
+                if (gray != null) {
+                    System.arraycopy(gray.pixels, gray.index(0, y), values, 0, width);
+                } else {
+                    src.getRow(0, y, width, row);
+                    for (int x = 0; x < width; x++) {
+                        values[x] = (byte) (row[x] >>> shifts[type(x, y)]);
+                    }
+                }
+                int base = py * stride;
+                for (int px = 0; px < stride; px++) {
+                    int x = xs[px];
+                    if (x >= 0 && x < width) {
+                        plane[base + px] = values[x];
                     }
-                    res.setRGB(i, j, rgb(r, g, b));
                 }
             }
         });
-        return res;
+        return plane;
     }
-    static int getC(BufferedImage bi, int x, int y) {
-        int res = 0;
-        if (x >= 0 && y >= 0 && x < bi.getWidth() && y < bi.getHeight()) {
-            res = b(bi.getRGB(x,y));
+    static int reflect(int x, int size) {
+        while (x < 0) { x += 2; }
+        while (x >= size) { x -= 2; }
+        return x;
+    }
+    static int type(int x, int y) {
+        return (y & 1) << 1 | (x & 1); // RGGB
+    }
+    // R Gr R Gr R Gr
+    // Gb B Gb B Gb B
+    // R Gr R Gr R Gr
+    // Gb B Gb B Gb B
+    private static void redRow(byte[] p, int k0, int stride, int width, int[] row) {
+        int i = 0;
+        for (int k = k0; i < width - 1; i += 2, k += 2) {
+            // R
+            row[i] = rgb(p[k] & 0xff, cubic(p, k, 1), bicubic(p, k, stride));
+            // Gr
+            row[i+1] = rgb(cubic(p, k+1, 1), p[k+1] & 0xff, cubic(p, k+1, stride));
+        }
+        if (i < width) {
+            int k = k0 + i;
+            row[i] = rgb(p[k] & 0xff, cubic(p, k, 1), bicubic(p, k, stride));
         }
-        return res;
+    }
+    private static void blueRow(byte[] p, int k0, int stride, int width, int[] row) {
+        int i = 0;
+        for (int k = k0; i < width - 1; i += 2, k += 2) {
+            // Gb
+            row[i] = rgb(cubic(p, k, stride), p[k] & 0xff, cubic(p, k, 1));
+            // B
+            row[i+1] = rgb(bicubic(p, k+1, stride), cubic(p, k+1, 1), p[k+1] & 0xff);
+        }
+        if (i < width) {
+            int k = k0 + i;
+            row[i] = rgb(cubic(p, k, stride), p[k] & 0xff, cubic(p, k, 1));
+        }
+    }
+    /** The value between p1 and p2 in q0 p1 q1 p2 q2, where q1 is at k and the step is 1 (in row) or stride (in column) */
+    private static int cubic(byte[] p, int k, int step) {
+        return (
+                (((p[k-step] & 0xff) + (p[k+step] & 0xff)) << 2)
+                + ((p[k] & 0xff) << 1) - (p[k-2*step] & 0xff) - (p[k+2*step] & 0xff)
+               ) >> 3;
+    }
+    /** Cubic interpolation in the column, p1 and p2 are interpolated in the rows above and below */
+    private static int bicubic(byte[] p, int k, int stride) {
+        return (
+                ((cubic(p, k-stride, 1) + cubic(p, k+stride, 1)) << 2)
+                + ((p[k] & 0xff) << 1) - (p[k-2*stride] & 0xff) - (p[k+2*stride] & 0xff)
+               ) >> 3;
     }
     static int r(int argb) {
         return (argb>>16) & 0xff;
@@ -14011,217 +17093,202 @@ class DebayerBicubic {
     }
 } // DebayerBicubic
 class RedebayerBicubic {
-    abstract static class BasePointSet<T> {
-        int x,y;
-        BufferedImage bi;
-        int w, h;
-
-        int x(int dx) {
-            int xx = x+dx;
-            while (xx<0) { xx += 2; }
-            while (xx >= w) { xx -= 2; }
-            return xx;
-        }
-        int y(int dy) {
-            int yy = y+dy;
-            while (yy<0) { yy += 2; }
-            while (yy >= h) { yy -= 2; }
-            return yy;
-        }
-
-        @SuppressWarnings("unchecked")
-        public T with(BufferedImage bi) {
-            this.bi = bi;
-            w = bi.getWidth();
-            h = bi.getHeight();
-            return (T) this;
-        }
-        @SuppressWarnings("unchecked")
-        public T at(int x, int y) {
-            this.x = x;
-            this.y = y;
-            return (T) this;
-        }
-
-        public abstract int q0();
-        public abstract int p1();
-        public abstract int q1();
-        public abstract int p2();
-        public abstract int q2();
-
-        public int interpolate() {
-            return (
-                    ((p1()+p2())<<2) + (q1()<<1) - q0() - q2()
-            ) >> 3;
-        }
-    }
-    static class HorizPointSet extends BasePointSet<HorizPointSet> {
-        @Override
-        public int q0() {
-            return getC(bi, x(-2), y(0));
-        }
-        @Override
-        public int p1() {
-            return getC(bi, x(-1), y(0));
-        }
-        @Override
-        public int q1() {
-            return getC(bi, x(0), y(0));
-        }
-        @Override
-        public int p2() {
-            return getC(bi, x(1), y(0));
-        }
-        @Override
-        public int q2() {
-            return getC(bi, x(2), y(0));
+    final static int SHIFTR = 16;
+    final static int SHIFTG = 8;
+    final static int SHIFTB = 0;
+    final static int[] SHIFTS = {SHIFTR, SHIFTG, SHIFTG, SHIFTB};
+    /** The same as DebayerBicubic, but the mosaic values are taken from the channel of each pixel's color */
+    static BufferedImage redebayer_bicubic(BufferedImage orig) {
+        if (ImageAndPath.isDummyImage(orig)) {
+            return orig;
         }
+        System.out.println("redebayer_bicubic " + orig.getWidth() + "x" + orig.getHeight());
+        return DebayerBicubic.demosaic(orig, SHIFTS);
     }
-    static class VertPointSet extends BasePointSet<VertPointSet> {
-        @Override
-        public int q0() {
-            return getC(bi, x(0), y(-2));
+} // RedebayerBicubic
+/**
+ * Demosaiced images saved on disk, so that the images viewed recently are not demosaiced again,
+ * in particular after a restart. An image is found by the path/URL of the source, a hash of its pixels
+ * and the demosaicing algorithm. The pixels are stored uncompressed, as they are in a TYPE_INT_RGB image,
+ * and are read and written a row at a time, straight from/to the pixels of the image; the file is not mapped,
+ * because a mapped file stays open until the mapping is garbage collected, and on Windows
+ * an open file cannot be deleted or replaced. When the files take more than maxBytes,
+ * the least recently used ones are deleted.
+ */
+class DemosaicDiskCache {
+    static final int MAGIC = 0x44_4d_43_31; // DMC1
+    static final String SUFFIX = ".dmc";
+    static final long DEFAULT_MAX_BYTES = 1L << 30;
+    /** magic, hash, width, height, path length; the path and the pixels follow */
+    static final int HEADER_BYTES = 4 + 8 + 4 + 4 + 4;
+    private static DemosaicDiskCache defaultCache;
+
+    final File directory;
+    final long maxBytes;
+
+    DemosaicDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+    /** The cache in the temporary directory */
+    static synchronized DemosaicDiskCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new DemosaicDiskCache(
+                    new File(System.getProperty("java.io.tmpdir"), "curious-x3d-demosaic-cache"),
+                    DEFAULT_MAX_BYTES
+            );
         }
-        @Override
-        public int p1() {
-            return getC(bi, x(0), y(-1));
+        return defaultCache;
+    }
+    /** The demosaiced image: from the disk if it is there, otherwise demosaiced and saved */
+    BufferedImage apply(BufferedImage src, String path, DebayerMode debayerMode, Supplier<BufferedImage> demosaic) {
+        long hash = contentHash(PixelBuffer.of(src));
+        File file = fileFor(path, hash, debayerMode);
+        BufferedImage res = read(file, path, hash, src.getWidth(), src.getHeight());
+        if (res != null) {
+            return res;
         }
-        @Override
-        public int q1() {
-            return getC(bi, x(0), y(0));
+        res = demosaic.get();
+        write(file, path, hash, res);
+        return res;
+    }
+    File fileFor(String path, long hash, DebayerMode debayerMode) {
+        // AUTO5 and FORCE5 do the same
+        return new File(directory, String.format("%08x-%016x-%d%s", path.hashCode(), hash, debayerMode.algo, SUFFIX));
+    }
+    static long contentHash(PixelBuffer pixels) {
+        int width = pixels.width;
+        int height = pixels.height;
+        int[] row = new int[width];
+        long h = 0xcbf29ce484222325L ^ ((long) width << 32 | height);
+        for (int j = 0; j < height; j++) {
+            pixels.getRow(0, j, width, row);
+            for (int i = 0; i < width; i++) {
+                h = (h ^ (row[i] & 0xffffff)) * 0x100000001b3L;
+            }
         }
-        @Override
-        public int p2() {
-            return getC(bi, x(0), y(1));
+        return h;
+    }
+    /** The image from the file, or null if there is no such file or it is not for this source */
+    BufferedImage read(File file, String path, long hash, int width, int height) {
+        if (!file.isFile()) {
+            return null;
         }
-        @Override
-        public int q2() {
-            return getC(bi, x(0), y(2));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (!readFully(channel, header)
+             || header.getInt() != MAGIC
+             || header.getLong() != hash
+             || header.getInt() != width
+             || header.getInt() != height
+            ) {
+                return null;
+            }
+            int pathLength = header.getInt();
+            if (pathLength < 0 || channel.size() != HEADER_BYTES + pathLength + 4L * width * height) {
+                return null;
+            }
+            ByteBuffer pathBytes = ByteBuffer.allocate(pathLength);
+            if (!readFully(channel, pathBytes)
+             || !path.equals(new String(pathBytes.array(), StandardCharsets.UTF_8))
+            ) {
+                return null;
+            }
+            PixelBuffer res = PixelBuffer.newRgbImage(width, height);
+            ByteBuffer rowBytes = ByteBuffer.allocate(4 * width);
+            IntBuffer rowInts = rowBytes.asIntBuffer();
+            for (int j = 0; j < height; j++) {
+                rowBytes.clear();
+                if (!readFully(channel, rowBytes)) {
+                    return null;
+                }
+                rowInts.rewind();
+                rowInts.get(res.pixels, res.index(0, j), width);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return res.image;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("cannot read " + file + ": " + e);
+            return null;
         }
     }
-    static class TwoDPointSet extends BasePointSet<TwoDPointSet> {
-        HorizPointSet above = new HorizPointSet();
-        HorizPointSet below = new HorizPointSet();
-
-        @Override
-        public TwoDPointSet with(BufferedImage bi) {
-            above.with(bi);
-            below.with(bi);
-            return super.with(bi);
-        }
-        @Override
-        public TwoDPointSet at(int x, int y) {
-            above.at(x,y-1);
-            below.at(x,y+1);
-            return super.at(x, y);
+    /** Write via a temporary file, so that a file with this name is always complete */
+    void write(File file, String path, long hash, BufferedImage image) {
+        PixelBuffer pixels = PixelBuffer.direct(image);
+        if (pixels == null || pixels.image.getType() != BufferedImage.TYPE_INT_RGB) {
+            return;
         }
-        @Override
-        public int q0() {
-            return getC(bi, x(0), y(-2));
+        int width = pixels.width;
+        int height = pixels.height;
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + pathBytes.length);
+        header.putInt(MAGIC).putLong(hash).putInt(width).putInt(height).putInt(pathBytes.length).put(pathBytes);
+        header.flip();
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            tmp = Files.createTempFile(directory.toPath(), "tmp", ".part");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                ByteBuffer rowBytes = ByteBuffer.allocate(4 * width);
+                IntBuffer rowInts = rowBytes.asIntBuffer();
+                for (int j = 0; j < height; j++) {
+                    rowInts.rewind();
+                    rowInts.put(pixels.pixels, pixels.index(0, j), width);
+                    rowBytes.clear();
+                    writeFully(channel, rowBytes);
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("cannot write " + file + ": " + e);
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+            return;
         }
-        @Override
-        public int p1() {
-            return above.interpolate();
+        trim();
+    }
+    /** @return false if the file ends before the buffer is full; if true, the buffer is flipped for reading */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
         }
-        @Override
-        public int q1() {
-            return getC(bi, x(0), y(0));
+        buffer.flip();
+        return true;
+    }
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
-        @Override
-        public int p2() {
-            return below.interpolate();
+    }
+    /** Delete the least recently used files while the total size is over maxBytes */
+    synchronized void trim() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
         }
-        @Override
-        public int q2() {
-            return getC(bi, x(0), y(2));
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
         }
-    }
-    final static int SHIFTR = 16;
-    final static int SHIFTG = 8;
-    final static int SHIFTB = 0;
-    final static int[] SHIFTS = {SHIFTR, SHIFTG, SHIFTG, SHIFTB};
-    static BufferedImage redebayer_bicubic(BufferedImage orig) {
-        if (ImageAndPath.isDummyImage(orig)) {
-            return orig;
+        if (total <= maxBytes) {
+            return;
         }
-        int HEIGHT = orig.getHeight();
-        int WIDTH = orig.getWidth();
-        System.out.println("redebayer_bicubic " + WIDTH + "x" + HEIGHT);
-        BufferedImage res = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        Par.splitFor(0, HEIGHT, (from, to) -> {
-            var hps = new HorizPointSet().with(orig);
-            var vps = new VertPointSet().with(orig);
-            var tps = new TwoDPointSet().with(orig);
-            for (int j = from; j < to; j++) {
-                for (int i = 0; i < WIDTH; i++) {
-                    int type = type(i, j); // RGGB
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    // R Gr R Gr R Gr
-                    // Gb B Gb B Gb B
-                    int r, g, b;
-                    switch (type) {
-                        case 0: { // R
-                            r = getC(orig, i, j);
-                            g = hps.at(i, j).interpolate();
-                            b = tps.at(i, j).interpolate();
-                        }
-                        break;
-                        case 1: { // Gr
-                            r = hps.at(i, j).interpolate();
-                            g = getC(orig, i, j);
-                            b = vps.at(i, j).interpolate();
-                        }
-                        break;
-                        case 2: { // Gb
-                            r = vps.at(i, j).interpolate();
-                            g = getC(orig, i, j);
-                            b = hps.at(i, j).interpolate();
-                        }
-                        break;
-                        case 3: { // B
-                            r = tps.at(i, j).interpolate();
-                            g = hps.at(i, j).interpolate();
-                            b = getC(orig, i, j);
-                        }
-                        break;
-                        default: // stupid Java, this is impossible! type is 0..3!
-                            r = g = b = 0;
-                    }
-                    res.setRGB(i, j, rgb(r, g, b));
-                }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
             }
-        });
-        return res;
-    }
-    private static int type(int x, int y) {
-        return (y & 1) << 1 | (x & 1);
-    }
-    static int getC(BufferedImage bi, int x, int y) {
-        int res = 0;
-        if (x >= 0 && y >= 0 && x < bi.getWidth() && y < bi.getHeight()) {
-            res = (bi.getRGB(x,y) >>> SHIFTS[type(x,y)]) & 0xFF;
         }
-        return res;
-    }
-//    static int r(int argb) {
-//        return (argb>>16) & 0xff;
-//    }
-//    static int g(int argb) {
-//        return (argb>>8) & 0xff;
-//    }
-//    static int b(int argb) {
-//        return argb & 0xff;
-//    }
-    static int c(int c) {
-        return Math.max(0, Math.min(255, c));
-    }
-    static int rgb(int r, int g, int b) {
-        return (c(r) << 16) | (c(g) << 8) | c(b);
     }
-} // RedebayerBicubic
+}
 class SuccessFailureCounter {
     ConcurrentHashMap<String, Pair<Integer>> counts = new ConcurrentHashMap<>();
     static final Pair<Integer> ONE_SUCCESS = new Pair<>(1, 0);
@@ -14431,6 +17498,18 @@ class ImageMerger
     }
 
     static BufferedImage copyToFrom(BufferedImage dst, int offx, int offy, BufferedImage src, int fromX, int fromY, int width, int height) {
+        PixelBuffer dstPixels = PixelBuffer.direct(dst);
+        if (dstPixels != null) {
+            PixelBuffer srcPixels = PixelBuffer.of(src);
+            Par.splitFor(0, height, (from, to) -> {
+                int[] row = new int[width];
+                for (int y=from; y<to; y++) {
+                    srcPixels.getRow(fromX, y+fromY, width, row);
+                    dstPixels.setRow(offx, offy+y, width, row);
+                }
+            });
+            return dst;
+        }
         Par.splitFor(0, height, (from, to) -> {
             for (int y=from; y<to; y++) { // TODO: to consider Par.splitFor both here and at the call point
                 for (int x=0; x<width; x++) {
@@ -0,0 +1,104 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BatchProcessorTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    @Test
+    public void fromArgsTest() throws Exception {
+        var bp = BatchProcessor.fromArgs(Arrays.asList(
+                "--debayer", "FORCE3",
+                "--color", "GAMMA_DECODE_2_2, STRETCH_CONTRAST_RGB_RGB",
+                "--fisheye", "UNFISH1 CENTER CENTER P2 0.0 0.1 0.0 : 2.0 #",
+                "--zoom", "0.5",
+                "--offset", "10,-20",
+                "--threads", "3",
+                "/a/left.png", "/a/right.png"
+        ));
+        DisplayParameters dp = bp.displayParameters;
+        assertEquals(DebayerMode.FORCE3, dp.debayerL);
+        assertEquals(DebayerMode.FORCE3, dp.debayerR);
+        assertEquals(Arrays.asList(ColorCorrectionAlgo.GAMMA_DECODE_2_2, ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB), dp.lColorCorrection.algos);
+        assertEquals(dp.lColorCorrection, dp.rColorCorrection);
+        assertEquals(FisheyeCorrectionAlgo.UNFISH1, dp.lFisheyeCorrection.algo);
+        assertEquals(2., dp.rFisheyeCorrection.sizeChange, 0.);
+        assertEquals(0.5, dp.zoom, 0.);
+        assertEquals(10, dp.offsetX);
+        assertEquals(-20, dp.offsetY);
+        assertEquals(3, bp.nThreads);
+        assertNull(bp.outputDirectory);
+        assertEquals(Arrays.asList(Arrays.asList("/a/left.png", "/a/right.png")), bp.pairs);
+    }
+    @Test
+    public void badArgsTest() throws Exception {
+        for (var args : Arrays.asList(
+                Arrays.<String>asList(),
+                Arrays.asList("/a/left.png"),
+                Arrays.asList("--zoom", "x", "/a/left.png", "/a/right.png"),
+                Arrays.asList("--color", "NO_SUCH_ALGO", "/a/left.png", "/a/right.png"),
+                Arrays.asList("--fisheye", "nonsense", "/a/left.png", "/a/right.png"),
+                Arrays.asList("/a/left.png", "/a/right.png", "--threads")
+        )) {
+            try {
+                BatchProcessor.fromArgs(args);
+                fail("accepted: " + args);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    @Test
+    public void runTest() throws Exception {
+        File dir = Files.createTempDirectory("batch").toFile();
+        File in = new File(dir, "in");
+        in.mkdirs();
+        ImageIO.write(ImageAndPath._dummyImage(Color.RED, 40, 30), "png", new File(in, "l.png"));
+        ImageIO.write(ImageAndPath._dummyImage(Color.GREEN, 50, 20), "png", new File(in, "r.png"));
+        File pairsFile = new File(dir, "pairs.txt");
+        Files.write(pairsFile.toPath(), Arrays.asList(
+                "# left right",
+                new File(in, "l.png") + " " + new File(in, "r.png"),
+                "",
+                new File(in, "l.png") + " " + new File(in, "missing.png")
+        ));
+        File out = new File(dir, "out");
+        var bp = BatchProcessor.fromArgs(Arrays.asList(
+                "--pairs", pairsFile.toString(),
+                "--out", out.toString(),
+                "--zoom", "2"
+        ));
+        assertEquals(2, bp.pairs.size());
+        assertEquals(1, bp.run());
+        BufferedImage left = ImageIO.read(new File(out, "l.left.png"));
+        BufferedImage right = ImageIO.read(new File(out, "r.right.png"));
+        assertEquals(100, left.getWidth());
+        assertEquals(60, left.getHeight());
+        assertEquals(left.getWidth(), right.getWidth());
+        assertEquals(left.getHeight(), right.getHeight());
+        assertTrue(contains(left, Color.RED));
+        assertTrue(contains(right, Color.GREEN));
+    }
+    static boolean contains(BufferedImage image, Color color) {
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                if (image.getRGB(i, j) == color.getRGB()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BilinearDeglareWhiteTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    /** What unglare() was before it went parallel: the pixels must be the same */
+    static BufferedImage referenceUnglare(BufferedImage src) {
+        int NX = BilinearDeglareWhite.NX, NY = BilinearDeglareWhite.NY;
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int dx = (width+NX-1)/NX;
+        int dy = (height+NY-1)/NY;
+
+        var aminv = new BilinearDeglareWhite.ByteArray2d(NX,NY);
+        var amaxv = new BilinearDeglareWhite.ByteArray2d(NX,NY);
+        aminv.setAll(255);
+        var smaxv = new BilinearDeglareWhite.StretchedArray2d(amaxv, dx, dy);
+        var sminv = new BilinearDeglareWhite.StretchedArray2d(aminv, dx, dy);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int color = src.getRGB(i, j);
+                int r = 0xff & (color >> 16);
+                int g = 0xff & (color >> 8);
+                int b = 0xff & (color);
+                int v = Math.min(Math.min(r,g),b);
+                int vv = Math.max(Math.max(r,g),b);
+                if (v < sminv.get(i, j)) { sminv.set(i,j,r); }
+                if (vv > smaxv.get(i, j)) { smaxv.set(i,j,vv); }
+            }
+        }
+        sminv.copyBoundaries();
+        smaxv.copyBoundaries();
+
+        var bminv = new BilinearDeglareWhite.ByteArray2d(NX,NY);
+        var bmaxv = new BilinearDeglareWhite.ByteArray2d(NX,NY);
+        for (int j=0; j<NY; j++) {
+            for (int i=0; i<NX; i++) {
+                bminv.set(i,j, aminv.foldAround(i,j, Math::min, 255));
+                bmaxv.set(i,j, amaxv.foldAround(i,j, Math::max, 0));
+            }
+        }
+        bminv.copyBoundaries();
+        bmaxv.copyBoundaries();
+
+        var iminv = new BilinearDeglareWhite.InterpolatingArray2d(bminv, dx, dy);
+        var imaxv = new BilinearDeglareWhite.InterpolatingArray2d(bmaxv, dx, dy);
+        var res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j=0; j<height; j++) {
+            for (int i=0; i<width; i++) {
+                int color = src.getRGB(i, j);
+                int r = 0xff & (color >> 16);
+                int g = 0xff & (color >> 8);
+                int b = 0xff & (color);
+                int minV = iminv.get(i,j);
+                int maxV = imaxv.get(i,j);
+                int r1 = (r - minV) * 255 / Math.max(40, maxV-minV);
+                int g1 = (g - minV) * 255 / Math.max(40, maxV-minV);
+                int b1 = (b - minV) * 255 / Math.max(40, maxV-minV);
+                res.setRGB(i, j, (r1 << 16) | (g1 << 8) | (b1));
+            }
+        }
+        return res;
+    }
+    static BufferedImage random(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                res.setRGB(i, j, random.nextInt(0x1000000));
+            }
+        }
+        return res;
+    }
+    @Test
+    public void sameAsReferenceTest() {
+        int[][] sizes = {{40, 30}, {97, 61}, {200, 150}, {33, 300}, {31, 17}, {1, 1}};
+        for (int[] size : sizes) {
+            for (BufferedImage image : new BufferedImage[]{
+                    random(size[0], size[1], size[0]),
+                    ZoomedImageIconTest.gradient(size[0], size[1])
+            }) {
+                GeometricWarpTest.assertSameImages(referenceUnglare(image), BilinearDeglareWhite.unglare(image));
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BrokenPixelMaskTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    /** A smooth image with some hot and dead pixels */
+    static BufferedImage withBrokenPixels(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage res = ZoomedImageIconTest.gradient(width, height);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int noise = random.nextInt(8);
+                res.setRGB(i, j, res.getRGB(i, j) + (noise << 16) + (noise << 8) + noise);
+            }
+        }
+        for (int k = 0; k < width * height / 50; k++) {
+            res.setRGB(random.nextInt(width), random.nextInt(height), random.nextBoolean() ? 0xffffff : random.nextInt(0x1000000));
+        }
+        return res;
+    }
+    static boolean referenceIsBroken(PixelBuffer pixels, int i, int j, int d) {
+        RgbRange around = RgbRange.newEmptyRange();
+        int color = pixels.get(i, j);
+        return !RgbColorBalancer.pixelLooksNotBroken(color, RgbColorBalancer.setToMinMaxRgbDiag(around, pixels, i, j, d))
+            || !RgbColorBalancer.pixelLooksNotBroken(color, RgbColorBalancer.setToMinMaxRgbHorVer(around, pixels, i, j, d));
+    }
+    @Test
+    public void sameAsReferenceTest() {
+        for (int d = 1; d <= 3; d++) {
+            for (int[] size : new int[][]{{40, 30}, {64, 20}, {129, 71}}) {
+                BufferedImage image = withBrokenPixels(size[0], size[1], d * 1000 + size[0]);
+                PixelBuffer pixels = PixelBuffer.of(image);
+                var mask = BrokenPixelMask.calculate(pixels, d);
+                int nBroken = 0;
+                for (int j = 0; j < size[1]; j++) {
+                    for (int i = 0; i < size[0]; i++) {
+                        boolean inside = i >= d && i < size[0] - d && j >= d && j < size[1] - d;
+                        boolean expected = inside && referenceIsBroken(pixels, i, j, d);
+                        assertEquals("at " + i + "," + j + " d=" + d, expected, mask.isBroken(i, j));
+                        nBroken += expected ? 1 : 0;
+                    }
+                }
+                assertTrue(nBroken > 0);
+            }
+        }
+    }
+    @Test
+    public void interpolateTest() {
+        BufferedImage image = withBrokenPixels(100, 70, 1);
+        BufferedImage res = RgbColorBalancer.interpolateBrokenPixels(image);
+        PixelBuffer pixels = PixelBuffer.of(image);
+        RgbRange around = RgbRange.newEmptyRange();
+        for (int j = 0; j < 70; j++) {
+            for (int i = 0; i < 100; i++) {
+                int color = image.getRGB(i, j);
+                if (i == 0 || j == 0 || i == 99 || j == 69) {
+                    assertEquals(color, res.getRGB(i, j));
+                } else if (!RgbColorBalancer.pixelLooksNotBroken(color, RgbColorBalancer.setToMinMaxRgbDiag(around, pixels, i, j, 1))) {
+                    assertEquals(0xff000000 | mean(image, i-1, j-1, i+1, j-1, i-1, j+1, i+1, j+1), res.getRGB(i, j));
+                } else if (!RgbColorBalancer.pixelLooksNotBroken(color, RgbColorBalancer.setToMinMaxRgbHorVer(around, pixels, i, j, 1))) {
+                    assertEquals(0xff000000 | mean(image, i-1, j, i+1, j, i, j-1, i, j+1), res.getRGB(i, j));
+                } else {
+                    assertEquals(color, res.getRGB(i, j));
+                }
+            }
+        }
+    }
+    static int mean(BufferedImage image, int... xy) {
+        int r = 0, g = 0, b = 0;
+        for (int k = 0; k < xy.length; k += 2) {
+            Color c = new Color(image.getRGB(xy[k], xy[k+1]));
+            r += c.getRed();
+            g += c.getGreen();
+            b += c.getBlue();
+        }
+        return (r / 4 << 16) | (g / 4 << 8) | (b / 4);
+    }
+    @Test
+    public void cacheTest() {
+        BrokenPixelMask.clearCache();
+        BufferedImage image = withBrokenPixels(60, 40, 2);
+        var mask = BrokenPixelMask.of(image, 1);
+        assertSame(mask, BrokenPixelMask.of(image, 1));
+        assertNotSame(mask, BrokenPixelMask.of(withBrokenPixels(60, 40, 2), 1));
+        var mask2 = BrokenPixelMask.of(image, 2);
+        assertEquals(2, mask2.distance);
+        assertSame(mask2, BrokenPixelMask.of(image, 2));
+    }
+    @Test
+    public void rangeTest() {
+        BufferedImage image = withBrokenPixels(100, 70, 3);
+        PixelBuffer pixels = PixelBuffer.of(image);
+        RgbRange expected = RgbRange.newEmptyRange();
+        for (int j = 17; j < 70 - 17; j++) {
+            for (int i = 17; i < 100 - 17; i++) {
+                if (!referenceIsBroken(pixels, i, j, 1)) {
+                    expected.update(pixels.get(i, j));
+                }
+            }
+        }
+        assertEquals(expected, RgbColorBalancer.getRgbRangeFromImage(0, 100, 0, 70, image, true));
+    }
+}
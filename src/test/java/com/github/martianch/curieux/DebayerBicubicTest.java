@@ -6,6 +6,7 @@ import org.junit.Test;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -163,6 +164,98 @@ public class DebayerBicubicTest {
     }
 
 
+    /**
+     * The algorithm as it was implemented before the padded plane (with point sets):
+     * the coordinates are reflected by 2 until they get into the image,
+     * and the pixels that still are out of the image are 0.
+     */
+    static class Reference {
+        final PixelBuffer bi;
+        final int[] shifts;
+        Reference(BufferedImage image, int[] shifts) {
+            this.bi = PixelBuffer.of(image);
+            this.shifts = shifts;
+        }
+        int getC(int x, int y) {
+            while (x < 0) { x += 2; }
+            while (x >= bi.width) { x -= 2; }
+            while (y < 0) { y += 2; }
+            while (y >= bi.height) { y -= 2; }
+            int res = 0;
+            if (x >= 0 && y >= 0 && x < bi.width && y < bi.height) {
+                res = (bi.get(x, y) >>> shifts[(y & 1) << 1 | (x & 1)]) & 0xFF;
+            }
+            return res;
+        }
+        static int interpolate(int q0, int p1, int q1, int p2, int q2) {
+            return (((p1 + p2) << 2) + (q1 << 1) - q0 - q2) >> 3;
+        }
+        int horiz(int x, int y) {
+            return interpolate(getC(x-2, y), getC(x-1, y), getC(x, y), getC(x+1, y), getC(x+2, y));
+        }
+        int vert(int x, int y) {
+            return interpolate(getC(x, y-2), getC(x, y-1), getC(x, y), getC(x, y+1), getC(x, y+2));
+        }
+        int twoD(int x, int y) {
+            return interpolate(getC(x, y-2), horiz(x, y-1), getC(x, y), horiz(x, y+1), getC(x, y+2));
+        }
+        BufferedImage debayer() {
+            BufferedImage res = new BufferedImage(bi.width, bi.height, BufferedImage.TYPE_INT_RGB);
+            for (int j = 0; j < bi.height; j++) {
+                for (int i = 0; i < bi.width; i++) {
+                    int r, g, b;
+                    switch ((j & 1) << 1 | (i & 1)) {
+                        case 0: r = getC(i, j); g = horiz(i, j); b = twoD(i, j); break;
+                        case 1: r = horiz(i, j); g = getC(i, j); b = vert(i, j); break;
+                        case 2: r = vert(i, j); g = getC(i, j); b = horiz(i, j); break;
+                        default: r = twoD(i, j); g = horiz(i, j); b = getC(i, j); break;
+                    }
+                    res.setRGB(i, j, DebayerBicubic.rgb(r, g, b));
+                }
+            }
+            return res;
+        }
+    }
+    static BufferedImage randomImage(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage res = new BufferedImage(width, height, type);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                res.setRGB(i, j, random.nextInt());
+            }
+        }
+        return res;
+    }
+    static void assertSameImages(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                assertEquals("at " + i + "," + j, expected.getRGB(i, j), actual.getRGB(i, j));
+            }
+        }
+    }
+    @Test
+    public void sameAsReferenceTest() throws Exception {
+        int[][] sizes = {{64, 64}, {37, 23}, {1, 1}, {1, 9}, {8, 1}, {2, 2}, {3, 5}, {4, 3}};
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR};
+        for (int[] size : sizes) {
+            for (int type : types) {
+                var image = randomImage(size[0], size[1], type, size[0] * 100 + size[1]);
+                assertSameImages(
+                        new Reference(image, DebayerBicubic.BLUE_CHANNEL).debayer(),
+                        DebayerBicubic.debayer_bicubic(image)
+                );
+                assertSameImages(
+                        new Reference(image, RedebayerBicubic.SHIFTS).debayer(),
+                        RedebayerBicubic.redebayer_bicubic(image)
+                );
+            }
+        }
+        var bayered = bayered(imageWithBtGradient(0x102030, 0xF0E0D0));
+        assertSameImages(new Reference(bayered, DebayerBicubic.BLUE_CHANNEL).debayer(), DebayerBicubic.debayer_bicubic(bayered));
+    }
+
     BufferedImage imageOfSameColor(int rgb) {
         int width = 64;
         int height = 64;
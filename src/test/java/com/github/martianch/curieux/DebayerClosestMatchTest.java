@@ -0,0 +1,191 @@
+package com.github.martianch.curieux;
+
+import com.github.martianch.curieux.Debayer.Direction;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.github.martianch.curieux.Debayer.getC;
+
+public class DebayerClosestMatchTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    /** Few levels, so that there are many ties and exact matches */
+    static BufferedImage fewLevels(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int v = random.nextInt(4) * 60;
+                res.setRGB(i, j, v << 16 | v << 8 | v);
+            }
+        }
+        return res;
+    }
+    /**
+     * The closest-match demosaicing one pixel at a time, as it was before Debayer worked over a padded byte plane;
+     * DebayerBenchmark measures it too.
+     */
+    static class Reference {
+        /** The straightforward implementation of Debayer.debayer_closest_match_square() */
+        static BufferedImage debayer_closest_match_square(BufferedImage orig) {
+            int HEIGHT = orig.getHeight();
+            int WIDTH = orig.getWidth();
+            PixelBuffer src = PixelBuffer.of(orig);
+            PixelBuffer dst = PixelBuffer.newRgbImage(WIDTH, HEIGHT);
+            Par.splitFor(0, HEIGHT, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    for (int i = 0; i < WIDTH; i++) {
+                        int type = (j & 1) * 2 + (i & 1); // RGGB
+                        // R Gr R Gr R Gr
+                        // Gb B Gb B Gb B
+                        // R Gr R Gr R Gr
+                        // Gb B Gb B Gb B
+                        // R Gr R Gr R Gr
+                        // Gb B Gb B Gb B
+                        int r, g, b;
+                        switch (type) {
+                            case 0: { // R
+                                r = getC(src, i, j);
+                                Direction dirG = findClosestMatchDist2(src, i, j, Direction.E, Direction.S, Direction.W, Direction.N);
+                                g = getC(src, dirG.x1(i), dirG.y1(j));
+                                Direction dirB = findClosestMatchDist2(src, i, j, Direction.SE, Direction.SW, Direction.NW, Direction.NE);
+                                b = getC(src, dirB.x1(i), dirB.y1(j));
+                            }
+                            break;
+                            case 1: { // Gr
+                                Direction dirR = findClosestMatchDist2(src, i, j, Direction.W, Direction.E);
+                                r = getC(src, dirR.x1(i), dirR.y1(j));
+                                g = getC(src, i, j);
+                                Direction dirB = findClosestMatchDist2(src, i, j, Direction.S, Direction.N);
+                                b = getC(src, dirB.x1(i), dirB.y1(j));
+                            }
+                            break;
+                            case 2: { // Gb
+                                Direction dirR = findClosestMatchDist2(src, i, j, Direction.N, Direction.S);
+                                r = getC(src, dirR.x1(i), dirR.y1(j));
+                                g = getC(src, i, j);
+                                Direction dirB = findClosestMatchDist2(src, i, j, Direction.E, Direction.W);
+                                b = getC(src, dirB.x1(i), dirB.y1(j));
+                            }
+                            break;
+                            case 3: { // B
+                                Direction dirR = findClosestMatchDist2(src, i, j, Direction.NW, Direction.SW, Direction.SE, Direction.NE);
+                                r = getC(src, dirR.x1(i), dirR.y1(j));
+                                Direction dirG = findClosestMatchDist2(src, i, j, Direction.W, Direction.N, Direction.E, Direction.S);
+                                g = getC(src, dirG.x1(i), dirG.y1(j));
+                                b = getC(src, i, j);
+                            }
+                            break;
+                            default: // stupid Java, this is impossible! type is 0..3!
+                                r = g = b = 0;
+                        }
+                        dst.set(i, j, (r << 16) | (g << 8) | b);
+                    }
+                }
+            });
+            return dst.image;
+        }
+        /** The straightforward implementation of Debayer.debayer_closest_match_WNSE_clockwise() */
+        static BufferedImage debayer_closest_match_WNSE_clockwise(BufferedImage orig) {
+            int HEIGHT = orig.getHeight();
+            int WIDTH = orig.getWidth();
+            PixelBuffer src = PixelBuffer.of(orig);
+            PixelBuffer dst = PixelBuffer.newRgbImage(WIDTH, HEIGHT);
+            Par.splitFor(0, HEIGHT, (from, to) -> {
+                for (int j = from; j < to; j++) {
+                    for (int i = 0; i < WIDTH; i++) {
+                        int type = (j & 1) * 2 + (i & 1); // RGGB
+                        // R Gr R Gr R Gr
+                        // Gb B Gb B Gb B
+                        // R Gr R Gr R Gr
+                        // Gb B Gb B Gb B
+                        // R Gr R Gr R Gr
+                        // Gb B Gb B Gb B
+                        int r, g, b;
+                        switch (type) {
+                            case 0: { // R
+                                r = getC(src, i, j);
+                                Direction dirG = findClosestMatchDist2(src, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
+                                g = getC(src, dirG.x1(i), dirG.y1(j));
+                                Direction dirB = findClosestMatchDist2(src, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
+                                b = getC(src, dirB.x1(i), dirB.y1(j));
+                            }
+                            break;
+                            case 1: { // Gr
+                                Direction dirR = findClosestMatchDist2(src, i, j, Direction.W, Direction.E);
+                                r = getC(src, dirR.x1(i), dirR.y1(j));
+                                g = getC(src, i, j);
+                                Direction dirB = findClosestMatchDist2(src, i, j, Direction.N, Direction.S);
+                                b = getC(src, dirB.x1(i), dirB.y1(j));
+                            }
+                            break;
+                            case 2: { // Gb
+                                Direction dirR = findClosestMatchDist2(src, i, j, Direction.N, Direction.S);
+                                r = getC(src, dirR.x1(i), dirR.y1(j));
+                                g = getC(src, i, j);
+                                Direction dirB = findClosestMatchDist2(src, i, j, Direction.W, Direction.E);
+                                b = getC(src, dirB.x1(i), dirB.y1(j));
+                            }
+                            break;
+                            case 3: { // B
+                                Direction dirR = findClosestMatchDist2(src, i, j, Direction.NW, Direction.SW, Direction.NE, Direction.SE);
+                                r = getC(src, dirR.x1(i), dirR.y1(j));
+                                Direction dirG = findClosestMatchDist2(src, i, j, Direction.W, Direction.N, Direction.S, Direction.E);
+                                g = getC(src, dirG.x1(i), dirG.y1(j));
+                                b = getC(src, i, j);
+                            }
+                            break;
+                            default: // stupid Java, this is impossible! type is 0..3!
+                                r = g = b = 0;
+                        }
+                        dst.set(i, j, (r << 16) | (g << 8) | b);
+                    }
+                }
+            });
+            return dst.image;
+        }
+        static Direction findClosestMatchDist2(PixelBuffer bi, int i, int j, Direction... directions) {
+            int c0 = getC(bi, i, j);
+            int diff = Integer.MAX_VALUE;
+            Direction bestDirection = null;
+            for (Direction d : directions) {
+                int c = getC(bi, d.x2(i), d.y2(j));
+                if (c==c0) {
+                    return d;
+                }
+                int newDiff = Math.abs(c - c0);
+                if (newDiff < diff) {
+                    diff = newDiff;
+                    bestDirection = d;
+                }
+            }
+            return bestDirection;
+        }
+    }
+    @Test
+    public void sameAsReferenceTest() {
+        int[][] sizes = {{64, 48}, {37, 23}, {1, 1}, {1, 9}, {8, 1}, {2, 2}, {3, 5}};
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR};
+        for (int[] size : sizes) {
+            for (int type : types) {
+                var random = DebayerBicubicTest.randomImage(size[0], size[1], type, size[0] * 100 + size[1]);
+                var few = fewLevels(size[0], size[1], size[0] * 100 + size[1]);
+                for (BufferedImage image : new BufferedImage[]{random, few}) {
+                    DebayerBicubicTest.assertSameImages(
+                            Reference.debayer_closest_match_square(image),
+                            Debayer.debayer_closest_match_square(image)
+                    );
+                    DebayerBicubicTest.assertSameImages(
+                            Reference.debayer_closest_match_WNSE_clockwise(image),
+                            Debayer.debayer_closest_match_WNSE_clockwise(image)
+                    );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class DecodedImageCacheTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    static ImageAndPath image(String path, int width, int height) {
+        return new ImageAndPath(ImageAndPath._dummyImage(Color.GRAY, width, height), path, path);
+    }
+    @Test
+    public void lruTest() {
+        // 1 MB is 4 images of 256x256
+        var cache = new DecodedImageCache(1);
+        var a = image("https://example.com/a.png", 256, 256);
+        var b = image("https://example.com/b.png", 256, 256);
+        var c = image("https://example.com/c.png", 768, 256);
+        cache.put(a);
+        cache.put(b);
+        assertEquals(2 * 256 * 256 * 4, cache.totalBytes());
+        assertSame(a, cache.get(a.pathToLoad));
+        // b is the least recently used one now, and is pushed out
+        cache.put(c);
+        assertTrue(cache.isWithinBudget(a.pathToLoad));
+        assertFalse(cache.isWithinBudget(b.pathToLoad));
+        assertTrue(cache.isWithinBudget(c.pathToLoad));
+        assertEquals(4 * 256 * 256 * 4, cache.totalBytes());
+        // but it is still there while the memory is not needed
+        assertSame(b, cache.get(b.pathToLoad));
+        assertTrue(cache.isWithinBudget(b.pathToLoad));
+        assertFalse(cache.isWithinBudget(a.pathToLoad));
+        assertNull(cache.get("https://example.com/d.png"));
+    }
+    @Test
+    public void budgetTest() {
+        var cache = new DecodedImageCache(1);
+        var a = image("https://example.com/a.png", 256, 256);
+        var big = image("https://example.com/big.png", 1024, 512);
+        cache.put(a);
+        cache.put(big);
+        assertFalse(cache.isWithinBudget(big.pathToLoad));
+        cache.setMaxMegabytes(0);
+        assertEquals(0, cache.totalBytes());
+        cache.setMaxMegabytes(100);
+        assertSame(a, cache.get(a.pathToLoad));
+        assertSame(big, cache.get(big.pathToLoad));
+        assertEquals((256 * 256 + 1024 * 512) * 4, cache.totalBytes());
+        cache.clear();
+        assertEquals(0, cache.totalBytes());
+        assertNull(cache.get(a.pathToLoad));
+    }
+    @Test
+    public void notCachedTest() {
+        var cache = new DecodedImageCache(100);
+        cache.put(image(ImageAndPath.IN_PROGRESS_PATH, 256, 256));
+        cache.put(new ImageAndPath(ImageAndPath.dummyImage(Color.RED), "https://example.com/a.png", "https://example.com/a.png"));
+        assertEquals(0, cache.totalBytes());
+        assertNull(cache.get("https://example.com/a.png"));
+    }
+    @Test
+    public void readTest() throws Exception {
+        File file = File.createTempFile("decoded-image-cache", ".png");
+        try {
+            BufferedImage image = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(1, 1, 0x123456);
+            ImageIO.write(image, "png", file);
+            var cache = new DecodedImageCache(100);
+            var first = cache.read(file.getPath());
+            assertEquals(0x123456, first.image.getRGB(1, 1) & 0xffffff);
+            assertSame(first, cache.read(file.getPath()));
+            // a modified file is loaded again
+            assertTrue(file.setLastModified(file.lastModified() - 10_000));
+            assertNull(cache.get(file.getPath()));
+            var second = cache.read(file.getPath());
+            assertNotSame(first, second);
+            assertSame(second, cache.read(file.getPath()));
+            // a file that cannot be read is not cached
+            String missing = file.getPath() + ".missing.png";
+            assertTrue(ImageAndPath.isDummyImage(cache.read(missing).image));
+            assertNull(cache.get(missing));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DemosaicDiskCacheTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    @Test
+    public void roundTripTest() throws Exception {
+        File dir = Files.createTempDirectory("dmc").toFile();
+        var cache = new DemosaicDiskCache(dir, DemosaicDiskCache.DEFAULT_MAX_BYTES);
+        BufferedImage src = DebayerBicubicTest.randomImage(37, 23, BufferedImage.TYPE_INT_RGB, 1);
+        AtomicInteger nDemosaiced = new AtomicInteger();
+        BufferedImage expected = DebayerBicubic.debayer_bicubic(src);
+        BufferedImage first = cache.apply(src, "/a/l.png", DebayerMode.FORCE5, () -> {
+            nDemosaiced.incrementAndGet();
+            return DebayerBicubic.debayer_bicubic(src);
+        });
+        BufferedImage second = cache.apply(src, "/a/l.png", DebayerMode.AUTO5, () -> {
+            nDemosaiced.incrementAndGet();
+            return DebayerBicubic.debayer_bicubic(src);
+        });
+        assertEquals(1, nDemosaiced.get());
+        DebayerBicubicTest.assertSameImages(expected, first);
+        DebayerBicubicTest.assertSameImages(expected, second);
+        assertEquals(BufferedImage.TYPE_INT_RGB, second.getType());
+        // another algorithm, another path, other pixels
+        cache.apply(src, "/a/l.png", DebayerMode.FORCE4, () -> {
+            nDemosaiced.incrementAndGet();
+            return src;
+        });
+        cache.apply(src, "/a/r.png", DebayerMode.FORCE5, () -> {
+            nDemosaiced.incrementAndGet();
+            return src;
+        });
+        BufferedImage changed = DebayerBicubicTest.randomImage(37, 23, BufferedImage.TYPE_INT_RGB, 1);
+        changed.setRGB(5, 5, ~changed.getRGB(5, 5));
+        cache.apply(changed, "/a/l.png", DebayerMode.FORCE5, () -> {
+            nDemosaiced.incrementAndGet();
+            return src;
+        });
+        assertEquals(4, nDemosaiced.get());
+    }
+    @Test
+    public void otherPathSameNameTest() throws Exception {
+        File dir = Files.createTempDirectory("dmc").toFile();
+        var cache = new DemosaicDiskCache(dir, DemosaicDiskCache.DEFAULT_MAX_BYTES);
+        BufferedImage src = DebayerBicubicTest.randomImage(10, 10, BufferedImage.TYPE_INT_RGB, 2);
+        long hash = DemosaicDiskCache.contentHash(PixelBuffer.of(src));
+        File file = cache.fileFor("/a/l.png", hash, DebayerMode.FORCE5);
+        cache.write(file, "/a/l.png", hash, DebayerBicubic.debayer_bicubic(src));
+        assertNotNull(cache.read(file, "/a/l.png", hash, 10, 10));
+        // a file with the same name, as if the path hash codes collided
+        assertNull(cache.read(file, "/b/l.png", hash, 10, 10));
+        assertNull(cache.read(file, "/a/l.png", hash + 1, 10, 10));
+        assertNull(cache.read(file, "/a/l.png", hash, 10, 11));
+        assertNull(cache.read(new File(dir, "missing" + DemosaicDiskCache.SUFFIX), "/a/l.png", hash, 10, 10));
+        // a file that has not been written completely
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(file.length() - 4);
+        }
+        assertNull(cache.read(file, "/a/l.png", hash, 10, 10));
+        // nothing keeps the file open after reading, so it can be deleted
+        assertTrue(file.delete());
+    }
+    @Test
+    public void trimTest() throws Exception {
+        File dir = Files.createTempDirectory("dmc").toFile();
+        // each file is a bit more than 400 bytes
+        var cache = new DemosaicDiskCache(dir, 1000);
+        BufferedImage src = DebayerBicubicTest.randomImage(10, 10, BufferedImage.TYPE_INT_RGB, 3);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            String path = "/a/" + i + ".png";
+            cache.apply(src, path, DebayerMode.FORCE5, () -> DebayerBicubic.debayer_bicubic(src));
+            cache.fileFor(path, DemosaicDiskCache.contentHash(PixelBuffer.of(src)), DebayerMode.FORCE5)
+                 .setLastModified(now - 10_000 + i * 1000);
+        }
+        cache.trim();
+        long hash = DemosaicDiskCache.contentHash(PixelBuffer.of(src));
+        assertFalse(cache.fileFor("/a/0.png", hash, DebayerMode.FORCE5).exists());
+        assertTrue(cache.fileFor("/a/1.png", hash, DebayerMode.FORCE5).exists());
+        assertTrue(cache.fileFor("/a/2.png", hash, DebayerMode.FORCE5).exists());
+    }
+    @Test
+    public void viewerTest() throws Exception {
+        File dir = Files.createTempDirectory("dmc").toFile();
+        var x3dViewer = new X3DViewer();
+        BufferedImage src = DebayerBicubicTest.randomImage(20, 10, BufferedImage.TYPE_INT_RGB, 4);
+        BufferedImage expected = x3dViewer.debayer(DebayerMode.FORCE5, src, "/a/l.png");
+        assertEquals(0, dir.list().length);
+        x3dViewer.demosaicDiskCache = new DemosaicDiskCache(dir, DemosaicDiskCache.DEFAULT_MAX_BYTES);
+        DebayerBicubicTest.assertSameImages(expected, x3dViewer.debayer(DebayerMode.FORCE5, src, "/a/l.png"));
+        assertEquals(1, dir.list().length);
+        DebayerBicubicTest.assertSameImages(expected, x3dViewer.debayer(DebayerMode.FORCE5, src, "/a/l.png"));
+        // nothing to demosaic, nothing to save
+        assertSame(src, x3dViewer.debayer(DebayerMode.NEVER, src, "/a/l.png"));
+        assertEquals(1, dir.list().length);
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class FisheyeRemapTableTest {
+    static final DistortionCenterLocation CENTER = DistortionCenterLocation.of(DistortionCenterStationing.CENTER, DistortionCenterStationing.CENTER);
+
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    @Test
+    public void cacheTest() {
+        FisheyeRemapTable.clearCache();
+        var fc1 = FisheyeCorrection.of(FisheyeCorrectionAlgo.UNFISH1, QuadraticPolynomial.of(0.0002, 0.9, 0.), CENTER, 2.);
+        var fc2 = FisheyeCorrection.of(FisheyeCorrectionAlgo.UNFISH1, QuadraticPolynomial.of(0.0002, 0.9, 0.), CENTER, 2.);
+        var t1 = FisheyeRemapTable.of(40, 30, fc1);
+        assertSame(t1, FisheyeRemapTable.of(40, 30, fc2));
+        assertNotSame(t1, FisheyeRemapTable.of(30, 40, fc1));
+        assertNotSame(t1, FisheyeRemapTable.of(40, 30, fc1.withSizeChange(1.)));
+        for (int i = 0; i < FisheyeRemapTable.MAX_CACHED_TABLES; i++) {
+            FisheyeRemapTable.of(10 + i, 10, fc1);
+        }
+        assertEquals(FisheyeRemapTable.MAX_CACHED_TABLES, FisheyeRemapTable.cacheSize());
+        assertNotSame(t1, FisheyeRemapTable.of(40, 30, fc1));
+    }
+    @Test
+    public void applyTest() {
+        // r = R*f(R) with f=1 and no size change maps each pixel to itself
+        var fc = FisheyeCorrection.of(FisheyeCorrectionAlgo.UNFISH1, QuadraticPolynomial.of(0., 0., 1.), CENTER, 1.);
+        BufferedImage image = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage res = fc.doFisheyeCorrection(image);
+        assertEquals(40, res.getWidth());
+        assertEquals(30, res.getHeight());
+        for (int j = 0; j < 30; j++) {
+            for (int i = 0; i < 40; i++) {
+                assertEquals("at " + i + "," + j, image.getRGB(i, j), res.getRGB(i, j));
+            }
+        }
+        // the same table for another image of the same size
+        BufferedImage red = ImageAndPath._dummyImage(Color.RED, 40, 30);
+        assertEquals(Color.RED.getRGB(), fc.doFisheyeCorrection(red).getRGB(20, 15));
+    }
+    @Test
+    public void withoutTableTest() {
+        var fc = FisheyeCorrection.of(FisheyeCorrectionAlgo.UNFISH1, QuadraticPolynomial.of(0.0002, 0.9, 0.), CENTER, 2.);
+        BufferedImage image = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage gray = GrayBufferTest.grayImage(40, 30, 1);
+        var table = FisheyeRemapTable.of(40, 30, fc);
+        var noTable = FisheyeRemapTable.withoutTable(40, 30, fc);
+        assertNotNull(table.sourceIndex);
+        assertNull(noTable.sourceIndex);
+        GeometricWarpTest.assertSameImages(table.apply(image), noTable.apply(image));
+        GeometricWarpTest.assertSameImages(table.apply(gray), noTable.apply(gray));
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeometricWarpTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    static void assertSameImages(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                assertEquals("at " + i + "," + j, expected.getRGB(i, j), actual.getRGB(i, j));
+            }
+        }
+    }
+    @Test
+    public void rotatedSizeTest() {
+        BufferedImage image = ZoomedImageIconTest.gradient(40, 30);
+        for (double angle : new double[]{0., 1., 30., 45., 90., -90., 135., 180., 271.5}) {
+            var warp = GeometricWarp.of(image, null, angle);
+            BufferedImage rotated = X3DViewer.rotate(image, warp.rotation);
+            assertEquals("angle " + angle, rotated.getWidth(), warp.rotatedWidth);
+            assertEquals("angle " + angle, rotated.getHeight(), warp.rotatedHeight);
+        }
+    }
+    @Test
+    public void identityTest() {
+        BufferedImage image = ZoomedImageIconTest.gradient(40, 30);
+        var warp = GeometricWarp.of(image, null, 0.);
+        for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+            assertSameImages(image, X3DViewer.warp(warp, 1., warp, 1., 0, 0, mode));
+        }
+    }
+    @Test
+    public void nearestZoomTest() {
+        BufferedImage image1 = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage image2 = ZoomedImageIconTest.gradient(60, 50);
+        var warp1 = GeometricWarp.of(image1, null, 0.);
+        var warp2 = GeometricWarp.of(image2, null, 0.);
+        // rotate() makes an image with alpha, so the canvas around the image is transparent
+        BufferedImage rotated1 = X3DViewer.rotate(image1, warp1.rotation);
+        BufferedImage rotated2 = X3DViewer.rotate(image2, warp2.rotation);
+        assertSameImages(
+                X3DViewer.zoom(rotated1, 3., rotated2, 1., 10, -5, ImageResamplingMode.NEAREST),
+                X3DViewer.warp(warp1, 3., warp2, 1., 10, -5, ImageResamplingMode.NEAREST)
+        );
+        assertSameImages(
+                X3DViewer.zoom(rotated2, 2., rotated1, .5, -7, 9, ImageResamplingMode.NEAREST),
+                X3DViewer.warp(warp2, 2., warp1, .5, -7, 9, ImageResamplingMode.NEAREST)
+        );
+    }
+    @Test
+    public void fisheyeTest() {
+        var fc = FisheyeCorrection.of(
+                FisheyeCorrectionAlgo.UNFISH1,
+                QuadraticPolynomial.of(0.0002, 0.9, 0.),
+                DistortionCenterLocation.of(DistortionCenterStationing.CENTER, DistortionCenterStationing.CENTER),
+                2.
+        );
+        BufferedImage image = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage corrected = fc.doFisheyeCorrection(image);
+        var warp = GeometricWarp.of(image, fc, 0.);
+        assertEquals(corrected.getWidth(), warp.width);
+        assertEquals(corrected.getHeight(), warp.height);
+        // the same mapping, calculated in a different way: only rounding may differ,
+        // that is, the nearest pixel may be the neighbor, one step of the gradient away;
+        // the interpolated values are within half a step from the nearest pixel
+        int stepR = (255 + image.getWidth() - 1) / image.getWidth();
+        int stepG = (255 + image.getHeight() - 1) / image.getHeight();
+        for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+            BufferedImage warped = X3DViewer.warp(warp, 1., warp, 1., 0, 0, mode);
+            assertEquals(corrected.getWidth(), warped.getWidth());
+            assertEquals(corrected.getHeight(), warped.getHeight());
+            boolean isNearest = mode == ImageResamplingMode.NEAREST;
+            int toleranceR = isNearest ? stepR : stepR / 2 + 1;
+            int toleranceG = isNearest ? stepG : stepG / 2 + 1;
+            int nDifferent = 0;
+            for (int j = 0; j < corrected.getHeight(); j++) {
+                for (int i = 0; i < corrected.getWidth(); i++) {
+                    int expected = corrected.getRGB(i, j);
+                    int actual = warped.getRGB(i, j);
+                    String where = mode + " at " + i + "," + j;
+                    assertTrue(where, Math.abs((0xff & expected >> 16) - (0xff & actual >> 16)) <= toleranceR);
+                    assertTrue(where, Math.abs((0xff & expected >> 8) - (0xff & actual >> 8)) <= toleranceG);
+                    assertEquals(where, 0xff & expected, 0xff & actual);
+                    if ((expected & 0xffffff) != (actual & 0xffffff)) {
+                        nDifferent++;
+                    }
+                }
+            }
+            if (isNearest) {
+                assertTrue("different: " + nDifferent, nDifferent * 100 < corrected.getWidth() * corrected.getHeight());
+            }
+        }
+    }
+    @Test
+    public void pipelineTest() throws Exception {
+        var rd = new RawData(
+                new ImageAndPath(ZoomedImageIconTest.gradient(40, 30), "l.png", "l.png"),
+                new ImageAndPath(ZoomedImageIconTest.gradient(60, 50), "r.png", "r.png")
+        );
+        var dp = new DisplayParameters();
+        dp.zoom = 2.;
+        dp.offsetX = 5;
+        dp.imageResamplingModeL = dp.imageResamplingModeR = ImageResamplingMode.NEAREST;
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        var x3dViewer = new X3DViewer();
+        List<BufferedImage> expected = x3dViewer.processBothImages(rd, dp, ms, ColorCorrection.Command.SHOW);
+        x3dViewer.fusedWarp = true;
+        List<BufferedImage> actual = x3dViewer.processBothImages(rd, dp, ms, ColorCorrection.Command.SHOW);
+        assertSameImages(expected.get(0), actual.get(0));
+        assertSameImages(expected.get(1), actual.get(1));
+        assertTrue(x3dViewer.pipelineMetrics.left.getRecords().stream().anyMatch(r -> r.stage.equals("warp")));
+    }
+}
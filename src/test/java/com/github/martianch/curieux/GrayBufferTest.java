@@ -0,0 +1,177 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import static com.github.martianch.curieux.GeometricWarpTest.assertSameImages;
+import static org.junit.Assert.*;
+
+public class GrayBufferTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    /** A smooth gray picture with noise and some hot and dead pixels */
+    static BufferedImage grayImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        GrayBuffer res = GrayBuffer.newGrayImage(width, height);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int v = 40 + (i * 150 / width) + (j * 50 / height) + random.nextInt(8);
+                if (random.nextInt(50) == 0) {
+                    v = random.nextBoolean() ? 255 : 0;
+                }
+                res.pixels[res.index(i, j)] = (byte) v;
+            }
+        }
+        return res.image;
+    }
+    static BufferedImage rgbCopy(BufferedImage image) {
+        BufferedImage res = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                res.setRGB(i, j, image.getRGB(i, j));
+            }
+        }
+        return res;
+    }
+    static void assertGray(BufferedImage image) {
+        assertTrue("type " + image.getType(), GrayBuffer.isGray(image));
+    }
+    @Test
+    public void compactIfGrayTest() {
+        BufferedImage gray = grayImage(30, 20, 1);
+        assertSame(gray, GrayBuffer.compactIfGray(gray));
+        assertNull(GrayBuffer.compactIfGray(null));
+
+        BufferedImage rgb = rgbCopy(gray);
+        BufferedImage compacted = GrayBuffer.compactIfGray(rgb);
+        assertGray(compacted);
+        assertSameImages(rgb, compacted);
+
+        // one color pixel in the last row
+        rgb.setRGB(29, 19, 0x102030);
+        assertSame(rgb, GrayBuffer.compactIfGray(rgb));
+
+        // the colors of TYPE_BYTE_GRAY are what its color model says, not the stored values
+        BufferedImage byteGray = new BufferedImage(30, 20, BufferedImage.TYPE_BYTE_GRAY);
+        byteGray.getRaster().setSample(3, 4, 0, 100);
+        byteGray.getRaster().setSample(5, 6, 0, 255);
+        compacted = GrayBuffer.compactIfGray(byteGray);
+        assertGray(compacted);
+        assertSameImages(byteGray, compacted);
+
+        BufferedImage argb = new BufferedImage(30, 20, BufferedImage.TYPE_INT_ARGB);
+        assertSame(argb, GrayBuffer.compactIfGray(argb));
+    }
+    @Test
+    public void colorPipelineTest() {
+        BufferedImage gray = grayImage(50, 40, 2);
+        BufferedImage rgb = rgbCopy(gray);
+        List<Supplier<IntUnaryOperator>> gamma = Arrays.asList(GammaColorBalancer.gammaOperator(2.2), GammaColorBalancer.gammaOperator(1 / 1.4));
+        BufferedImage res = PointwiseColorPipeline.apply(gray, gamma);
+        assertGray(res);
+        assertSameImages(PointwiseColorPipeline.apply(rgb, gamma), res);
+
+        res = RgbColorBalancer.stretchColorsRgb(gray, false, false);
+        assertGray(res);
+        assertSameImages(RgbColorBalancer.stretchColorsRgb(rgb, false, false), res);
+
+        // a curve that makes colors
+        List<Supplier<IntUnaryOperator>> reddish = Arrays.asList(ChannelLut.of(v -> v, v -> v / 2, v -> v / 2));
+        res = PointwiseColorPipeline.apply(gray, reddish);
+        assertFalse(GrayBuffer.isGray(res));
+        assertSameImages(PointwiseColorPipeline.apply(rgb, reddish), res);
+    }
+    @Test
+    public void brokenPixelsTest() {
+        for (int size : new int[]{1, 3, 37}) {
+            BufferedImage gray = grayImage(size, size + 2, 3);
+            BufferedImage rgb = rgbCopy(gray);
+            BufferedImage res = RgbColorBalancer.interpolateBrokenPixels(gray);
+            assertGray(res);
+            assertSameImages(RgbColorBalancer.interpolateBrokenPixels(rgb), res);
+        }
+    }
+    @Test
+    public void fisheyeTest() {
+        var fc = FisheyeCorrection.of(
+                FisheyeCorrectionAlgo.UNFISH1,
+                QuadraticPolynomial.of(0.0002, 0.9, 0.),
+                FisheyeRemapTableTest.CENTER,
+                2.
+        );
+        BufferedImage gray = grayImage(40, 30, 4);
+        BufferedImage res = fc.doFisheyeCorrection(gray);
+        assertGray(res);
+        assertSameImages(fc.doFisheyeCorrection(rgbCopy(gray)), res);
+    }
+    @Test
+    public void zoomTest() {
+        BufferedImage gray = grayImage(45, 31, 5);
+        BufferedImage rgb = rgbCopy(gray);
+        BufferedImage other = ZoomedImageIconTest.gradient(20, 20);
+        for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+            for (double zoom : new double[]{1., 2.5, .7, .3, .1}) {
+                assertSameImages(
+                        X3DViewer.zoom(rgb, zoom, other, 1., 3, -2, mode),
+                        X3DViewer.zoom(gray, zoom, other, 1., 3, -2, mode)
+                );
+            }
+        }
+        BufferedImage half = MipmapPyramid.halve(gray);
+        assertGray(half);
+        assertSameImages(MipmapPyramid.halve(rgb), half);
+    }
+    @Test
+    public void demosaicTest() {
+        for (int[] size : new int[][]{{40, 30}, {37, 23}, {1, 1}, {1, 9}, {8, 1}}) {
+            BufferedImage gray = grayImage(size[0], size[1], 8);
+            BufferedImage rgb = rgbCopy(gray);
+            assertSameImages(DebayerBicubic.debayer_bicubic(rgb), DebayerBicubic.debayer_bicubic(gray));
+            assertSameImages(RedebayerBicubic.redebayer_bicubic(rgb), RedebayerBicubic.redebayer_bicubic(gray));
+            assertSameImages(Debayer.debayer_closest_match_square(rgb), Debayer.debayer_closest_match_square(gray));
+            assertSameImages(Debayer.debayer_closest_match_WNSE_clockwise(rgb), Debayer.debayer_closest_match_WNSE_clockwise(gray));
+        }
+    }
+    @Test
+    public void rotateTest() {
+        BufferedImage gray = grayImage(40, 30, 6);
+        BufferedImage rgb = rgbCopy(gray);
+        for (double angle : new double[]{0., 90., 180., 30., -7.5}) {
+            var transform = X3DViewer.rotationTransform(gray, angle);
+            for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+                assertSameImages(
+                        ImageRotator.rotate(rgb, transform, mode),
+                        ImageRotator.rotate(gray, transform, mode)
+                );
+            }
+        }
+    }
+    @Test
+    public void warpTest() {
+        var fc = FisheyeCorrection.of(
+                FisheyeCorrectionAlgo.UNFISH1,
+                QuadraticPolynomial.of(0.0002, 0.9, 0.),
+                FisheyeRemapTableTest.CENTER,
+                2.
+        );
+        BufferedImage gray = grayImage(40, 30, 7);
+        BufferedImage rgb = rgbCopy(gray);
+        for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+            var warpGray = GeometricWarp.of(gray, fc, 12.);
+            var warpRgb = GeometricWarp.of(rgb, fc, 12.);
+            assertSameImages(
+                    X3DViewer.warp(warpRgb, 1.5, warpRgb, 1.5, 2, 1, mode),
+                    X3DViewer.warp(warpGray, 1.5, warpGray, 1.5, 2, 1, mode)
+            );
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.martianch.curieux;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.Assert.*;
+
+public class HsvConverterTest {
+    @Test
+    public void rgbToHsvTest() {
+        float[] expected = new float[3];
+        float[] actual = new float[3];
+        for (int rgb = 0; rgb < 0x1000000; rgb++) {
+            Color.RGBtoHSB(0xff & (rgb >> 16), 0xff & (rgb >> 8), 0xff & rgb, expected);
+            HsvConverter.rgbToHsv(rgb, actual);
+            if (expected[0] != actual[0] || expected[1] != actual[1] || expected[2] != actual[2]) {
+                fail("color " + Integer.toHexString(rgb));
+            }
+        }
+    }
+    @Test
+    public void hsvToRgbTest() {
+        Random random = new Random(1);
+        float[] special = {0.f, 1.f, 0.5f, 1.f / 6, 2.f / 6, 0.9999999f, -0.25f, 1.5f};
+        for (float h : special) {
+            for (float s : special) {
+                for (float v : new float[]{0.f, 1.f, 0.5f, 0.9999999f}) {
+                    assertEquals(Color.HSBtoRGB(h, Math.abs(s), v), HsvConverter.hsvToRgb(h, Math.abs(s), v));
+                }
+            }
+        }
+        for (int i = 0; i < 1_000_000; i++) {
+            float h = random.nextFloat() * 3 - 1;
+            float s = random.nextFloat();
+            float v = random.nextFloat();
+            assertEquals(Color.HSBtoRGB(h, s, v), HsvConverter.hsvToRgb(h, s, v));
+        }
+    }
+    /** What the HSV stretch was before the tables: the pixels must be the same */
+    static IntUnaryOperator referenceStretch(
+            HsvRange cr, HTargetRange tr,
+            boolean stretchH, boolean stretchS, boolean stretchV,
+            boolean saturateH, boolean saturateS, boolean saturateV
+    ) {
+        double minH = cr.minH, minS = cr.minS, minV = cr.minV;
+        double mh = (tr.maxH - tr.minH) / (cr.maxH - cr.minH);
+        double ms = 1. / (cr.maxS - cr.minS);
+        double mv = 1. / (cr.maxV - cr.minV);
+        float[] hsv = {0.f, 0.f, 0.f};
+        return color -> {
+            Color.RGBtoHSB(0xff & (color >> 16), 0xff & (color >> 8), 0xff & (color), hsv);
+            double h = hsv[0], s = hsv[1], v = hsv[2];
+            float h1 = !stretchH ? hsv[0]
+                     : (float) (!saturateH ? MyMath.frac((h - minH)*mh + tr.minH) : MyMath.saturate(tr.minH, tr.maxH, (h - minH)*mh + tr.minH));
+            float s1 = !stretchS ? hsv[1]
+                     : (float) (!saturateS ? MyMath.frac((s - minS)*ms) : MyMath.saturate01((s - minS)*ms));
+            float v1 = !stretchV ? hsv[2]
+                     : (float) (!saturateV ? MyMath.frac((v - minV)*mv) : MyMath.saturate01((v - minV)*mv));
+            return Color.HSBtoRGB(h1, s1, v1);
+        };
+    }
+    @Test
+    public void stretchTest() {
+        Random random = new Random(2);
+        for (int k = 0; k < 64; k++) {
+            HsvRange cr = HsvRange.newEmptyRangeFrom(random.nextDouble());
+            for (int i = 0; i < 2; i++) {
+                cr.update(new float[]{random.nextFloat(), random.nextFloat(), random.nextFloat()});
+            }
+            HTargetRange tr = HTargetRange.newFullRangeFrom(random.nextDouble()).withMaxH(1. + random.nextDouble());
+            boolean[] flags = new boolean[6];
+            for (int i = 0; i < 6; i++) {
+                flags[i] = ((k >> i) & 1) != 0;
+            }
+            IntUnaryOperator expected = referenceStretch(cr, tr, flags[0], flags[1], flags[2], flags[3], flags[4], flags[5]);
+            IntUnaryOperator actual = HsvColorBalancer.stretchColorsUsingHsvRangeOperator(
+                    cr, tr, flags[0], flags[1], flags[2], flags[3], flags[4], flags[5]
+            ).get();
+            for (int i = 0; i < 20_000; i++) {
+                int rgb = random.nextInt(0x1000000);
+                int res = expected.applyAsInt(rgb);
+                assertEquals("color " + Integer.toHexString(rgb) + " " + cr + " " + tr, res, actual.applyAsInt(rgb));
+                // memoized, and the alpha makes no difference
+                assertEquals(res, actual.applyAsInt(rgb | 0xff000000));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class ImageRotatorTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    static BufferedImage affineTransformOp(BufferedImage image, AffineTransform transform) {
+        return new AffineTransformOp(transform, AffineTransformOp.TYPE_BICUBIC).filter(image, null);
+    }
+    @Test
+    public void sizeAndTypeTest() {
+        for (BufferedImage image : new BufferedImage[]{ZoomedImageIconTest.gradient(40, 30), ZoomedImageIconTest.gradient(41, 30)}) {
+            for (double angle : new double[]{0., 1., 30., 45., 90., -90., 135., 180., 271.5}) {
+                AffineTransform transform = X3DViewer.rotationTransform(image, angle);
+                BufferedImage expected = affineTransformOp(image, transform);
+                BufferedImage actual = X3DViewer.rotate(image, transform);
+                assertEquals("angle " + angle, expected.getWidth(), actual.getWidth());
+                assertEquals("angle " + angle, expected.getHeight(), actual.getHeight());
+                assertEquals("angle " + angle, expected.getType(), actual.getType());
+            }
+        }
+    }
+    @Test
+    public void quadrantTest() {
+        for (BufferedImage image : new BufferedImage[]{ZoomedImageIconTest.gradient(40, 30), ZoomedImageIconTest.gradient(41, 30)}) {
+            int w = image.getWidth();
+            int h = image.getHeight();
+            BufferedImage r0 = X3DViewer.rotate(image, X3DViewer.rotationTransform(image, 0.));
+            BufferedImage r90 = X3DViewer.rotate(image, X3DViewer.rotationTransform(image, 90.));
+            BufferedImage r180 = X3DViewer.rotate(image, X3DViewer.rotationTransform(image, 180.));
+            BufferedImage r270 = X3DViewer.rotate(image, X3DViewer.rotationTransform(image, -90.));
+            assertEquals(h, r90.getWidth());
+            assertEquals(w, r90.getHeight());
+            for (int j = 0; j < h; j++) {
+                for (int i = 0; i < w; i++) {
+                    int p = image.getRGB(i, j);
+                    assertEquals(p, r0.getRGB(i, j));
+                    assertEquals(p, r90.getRGB(h - 1 - j, i));
+                    assertEquals(p, r180.getRGB(w - 1 - i, h - 1 - j));
+                    assertEquals(p, r270.getRGB(j, w - 1 - i));
+                }
+            }
+        }
+    }
+    @Test
+    public void sameImageTest() {
+        BufferedImage image = X3DViewer.rotate(ZoomedImageIconTest.gradient(40, 30), new AffineTransform());
+        assertSame(image, X3DViewer.rotate(image, new AffineTransform()));
+    }
+    @Test
+    public void closeToAffineTransformOpTest() {
+        BufferedImage image = ZoomedImageIconTest.gradient(80, 60);
+        for (double angle : new double[]{1., 30., 135.}) {
+            AffineTransform transform = X3DViewer.rotationTransform(image, angle);
+            BufferedImage expected = affineTransformOp(image, transform);
+            BufferedImage actual = X3DViewer.rotate(image, transform);
+            // compare the pixels that are well inside both images
+            int n = 0;
+            long sumDiff = 0;
+            for (int j = 0; j < expected.getHeight(); j++) {
+                for (int i = 0; i < expected.getWidth(); i++) {
+                    int e = expected.getRGB(i, j);
+                    int a = actual.getRGB(i, j);
+                    if ((e >>> 24) == 0xff && (a >>> 24) == 0xff) {
+                        for (int shift = 0; shift <= 16; shift += 8) {
+                            sumDiff += Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+                        }
+                        n++;
+                    }
+                }
+            }
+            assertTrue("angle " + angle, n > 0);
+            assertTrue("angle " + angle + " mean difference " + (double) sumDiff / n / 3, sumDiff < n * 3);
+        }
+    }
+}
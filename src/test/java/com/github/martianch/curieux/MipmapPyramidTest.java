@@ -0,0 +1,90 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.*;
+
+public class MipmapPyramidTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    static BufferedImage checkerboard(int width, int height) {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                res.setRGB(i, j, (i + j) % 2 == 0 ? 0xffffff : 0);
+            }
+        }
+        return res;
+    }
+    @Test
+    public void levelsTest() {
+        BufferedImage image = checkerboard(41, 30);
+        assertSame(image, MipmapPyramid.level(image, 0));
+        BufferedImage level1 = MipmapPyramid.level(image, 1);
+        assertSame(level1, MipmapPyramid.level(image, 1));
+        assertEquals(21, level1.getWidth());
+        assertEquals(15, level1.getHeight());
+        // 2x2 blocks of the checkerboard average to gray
+        assertEquals(0xff808080, level1.getRGB(3, 4));
+        // the last column has no pair, it is averaged with itself
+        assertEquals(image.getRGB(40, 0), level1.getRGB(20, 0) | 0x7f7f7f);
+        assertEquals(11, MipmapPyramid.level(image, 2).getWidth());
+        assertEquals(8, MipmapPyramid.level(image, 2).getHeight());
+    }
+    @Test
+    public void imageIsNotKeptTest() throws InterruptedException {
+        WeakReference<BufferedImage> ref = imageWithLevels();
+        int sizeWithImage = MipmapPyramid.cacheSize();
+        for (int k = 0; k < 100 && ref.get() != null; k++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertTrue(MipmapPyramid.cacheSize() < sizeWithImage);
+    }
+    private static WeakReference<BufferedImage> imageWithLevels() {
+        BufferedImage image = checkerboard(64, 64);
+        MipmapPyramid.level(image, 3);
+        MipmapPyramid.sourceFor(image, 10, 10);
+        return new WeakReference<>(image);
+    }
+    @Test
+    public void sourceForTest() {
+        BufferedImage image = checkerboard(40, 30);
+        assertSame(image, MipmapPyramid.sourceFor(image, 40, 30));
+        assertSame(image, MipmapPyramid.sourceFor(image, 21, 15));
+        assertEquals(20, MipmapPyramid.sourceFor(image, 20, 15).getWidth());
+        assertEquals(20, MipmapPyramid.sourceFor(image, 11, 8).getWidth());
+        assertEquals(10, MipmapPyramid.sourceFor(image, 10, 7).getWidth());
+        assertEquals(1, MipmapPyramid.sourceFor(image, 0, 0).getWidth());
+    }
+    @Test
+    public void alphaTest() {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0xffff0000);
+        image.setRGB(1, 1, 0xffff0000);
+        BufferedImage level1 = MipmapPyramid.level(image, 1);
+        // transparent pixels do not make the color darker
+        assertEquals(0x80ff0000, level1.getRGB(0, 0));
+    }
+    @Test
+    public void noAliasingTest() {
+        BufferedImage image = checkerboard(400, 300);
+        for (ImageResamplingMode mode : new ImageResamplingMode[]{ImageResamplingMode.BILINEAR, ImageResamplingMode.BICUBIC, ImageResamplingMode.LANCZOS}) {
+            BufferedImage zoomed = ZoomedImageIcon.of(image, .3, image, .3, 0, 0, mode).toBufferedImage();
+            for (int j = 2; j < zoomed.getHeight() - 2; j++) {
+                for (int i = 2; i < zoomed.getWidth() - 2; i++) {
+                    int v = new Color(zoomed.getRGB(i, j)).getGreen();
+                    assertTrue(mode + " at " + i + "," + j + ": " + v, Math.abs(v - 128) <= 2);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+    @BeforeClass
+    public static void setup() {
+        Par.init();
+    }
+    @Test
+    public void measureTest() {
+        var metrics = new PipelineMetrics();
+        BufferedImage input = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+        BufferedImage output = new BufferedImage(40, 10, BufferedImage.TYPE_INT_RGB);
+        assertSame(output, metrics.left.measure("new", input, () -> output));
+        assertSame(input, metrics.left.measure("same", input, () -> input));
+        List<PipelineMetrics.StageRecord> records = metrics.left.getRecords();
+        assertEquals(2, records.size());
+        assertEquals("new", records.get(0).stage);
+        assertEquals(40, records.get(0).width);
+        assertEquals(10, records.get(0).height);
+        assertEquals(40 * 10 * 4, records.get(0).bytes);
+        assertFalse(records.get(0).reused);
+        assertEquals(0, records.get(1).bytes);
+        assertTrue(records.get(1).reused);
+        assertTrue(metrics.right.getRecords().isEmpty());
+        metrics.clear();
+        assertTrue(metrics.left.getRecords().isEmpty());
+    }
+    @Test
+    public void colorCorrectionStagesTest() {
+        var metrics = new PipelineMetrics();
+        BufferedImage input = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+        var cc = new ColorCorrection(
+                Arrays.asList(
+                        ColorCorrectionAlgo.GAMMA_DECODE_2_2,
+                        ColorCorrectionAlgo.FILTER_RED,
+                        ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB,
+                        ColorCorrectionAlgo.GAMMA_ENCODE_2_2
+                ),
+                CustomStretchRgbParameters.newEmpty(),
+                CustomStretchHsvParameters.newFullRange()
+        );
+        cc.doColorCorrection(input, ColorCorrection.Command.SHOW, metrics.right);
+        List<PipelineMetrics.StageRecord> records = metrics.right.getRecords();
+        assertEquals(3, records.size());
+        assertEquals("color: GAMMA_DECODE_2_2+FILTER_RED", records.get(0).stage);
+        assertEquals("color: STRETCH_CONTRAST_RGB_RGB", records.get(1).stage);
+        assertEquals("color: GAMMA_ENCODE_2_2", records.get(2).stage);
+    }
+    @Test
+    public void toJsonTest() {
+        var metrics = new PipelineMetrics();
+        metrics.totalNanos = 12345;
+        metrics.right.measure("zoom", () -> new BufferedImage(3, 2, BufferedImage.TYPE_INT_RGB));
+        Object json = JsonDiy.jsonToDataStructure(metrics.toJson());
+        assertEquals("12345", JsonDiy.get(json, "totalNanos").toString());
+        assertEquals("zoom", JsonDiy.get(json, "right", "0", "stage"));
+        assertEquals(3, JsonDiy.getInt(json, "right", "0", "width"));
+        assertEquals(0, ((List<?>) JsonDiy.get(json, "left")).size());
+    }
+    @Test
+    public void latestRenderingTest() {
+        var rd = new RawData(
+                new ImageAndPath(ZoomedImageIconTest.gradient(40, 30), "l.png", "l.png"),
+                new ImageAndPath(ZoomedImageIconTest.gradient(60, 50), "r.png", "r.png")
+        );
+        var dp = new DisplayParameters();
+        dp.zoom = 2.;
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        var x3dViewer = new X3DViewer();
+        x3dViewer.processBothImages(rd, dp, ms, ColorCorrection.Command.SHOW);
+        PipelineMetrics shown = x3dViewer.pipelineMetrics;
+        List<PipelineMetrics.StageRecord> records = shown.left.getRecords();
+        assertTrue(records.stream().anyMatch(r -> r.stage.equals("zoom")));
+        assertTrue(shown.totalNanos > 0);
+        // a range request neither replaces nor clears the timing of the displayed images
+        x3dViewer.processBothImages(rd, dp, ms, ColorCorrection.Command.GET_RANGE_RGB);
+        assertSame(shown, x3dViewer.pipelineMetrics);
+        assertEquals(records.size(), shown.left.getRecords().size());
+        // a new rendering comes with its own records
+        x3dViewer.processBothImages(rd, dp, ms, ColorCorrection.Command.SHOW);
+        assertNotSame(shown, x3dViewer.pipelineMetrics);
+        assertEquals(records.size(), shown.left.getRecords().size());
+    }
+}
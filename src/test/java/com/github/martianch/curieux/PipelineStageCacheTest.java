@@ -0,0 +1,79 @@
+package com.github.martianch.curieux;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class PipelineStageCacheTest {
+    @Test
+    public void sameInputAndParametersTest() {
+        var cache = new PipelineStageCache();
+        var counter = new AtomicInteger();
+        BufferedImage input = ImageAndPath._dummyImage(Color.RED, 20, 20);
+        Function<BufferedImage, BufferedImage> func = img -> {
+            counter.incrementAndGet();
+            return ImageAndPath._dummyImage(Color.GREEN, 20, 20);
+        };
+        var res1 = cache.apply(PipelineStageCache.Stage.FISHEYE, true, input, "a", func);
+        var res2 = cache.apply(PipelineStageCache.Stage.FISHEYE, true, input, "a", func);
+        assertSame(res1, res2);
+        assertEquals(1, counter.get());
+        assertSame(res1, cache.getCachedOutput(PipelineStageCache.Stage.FISHEYE));
+    }
+    @Test
+    public void changedParametersOrInputTest() {
+        var cache = new PipelineStageCache();
+        var counter = new AtomicInteger();
+        BufferedImage input1 = ImageAndPath._dummyImage(Color.RED, 20, 20);
+        BufferedImage input2 = ImageAndPath._dummyImage(Color.RED, 20, 20);
+        Function<BufferedImage, BufferedImage> func = img -> {
+            counter.incrementAndGet();
+            return ImageAndPath._dummyImage(Color.GREEN, 20, 20);
+        };
+        var res1 = cache.apply(PipelineStageCache.Stage.DEBAYER, true, input1, "a", func);
+        var res2 = cache.apply(PipelineStageCache.Stage.DEBAYER, true, input1, "b", func);
+        assertNotSame(res1, res2);
+        assertEquals(2, counter.get());
+        var res3 = cache.apply(PipelineStageCache.Stage.DEBAYER, true, input2, "b", func);
+        assertNotSame(res2, res3);
+        assertEquals(3, counter.get());
+        // stages do not share entries
+        cache.apply(PipelineStageCache.Stage.PREFILTER, true, input2, "b", func);
+        assertEquals(4, counter.get());
+        assertSame(res3, cache.apply(PipelineStageCache.Stage.DEBAYER, true, input2, "b", func));
+        assertEquals(4, counter.get());
+    }
+    @Test
+    public void stageOffTest() {
+        var cache = new PipelineStageCache();
+        BufferedImage input = ImageAndPath._dummyImage(Color.RED, 20, 20);
+        cache.apply(PipelineStageCache.Stage.COLOR_CORRECTION, true, input, "a", img -> ImageAndPath._dummyImage(Color.GREEN, 20, 20));
+        assertNotNull(cache.getCachedOutput(PipelineStageCache.Stage.COLOR_CORRECTION));
+        var res = cache.apply(PipelineStageCache.Stage.COLOR_CORRECTION, false, input, "a", img -> { fail(); return null; });
+        assertSame(input, res);
+        assertNull(cache.getCachedOutput(PipelineStageCache.Stage.COLOR_CORRECTION));
+    }
+    @Test
+    public void parameterEqualityTest() {
+        var fc1 = FisheyeCorrection.defaultValue().withFunc(QuadraticPolynomial.of(1., 2., 3.));
+        var fc2 = FisheyeCorrection.defaultValue().withFunc(QuadraticPolynomial.of(1., 2., 3.));
+        assertEquals(fc1, fc2);
+        assertEquals(fc1.hashCode(), fc2.hashCode());
+        assertNotEquals(fc1, fc2.withSizeChange(3.));
+        var cc1 = new ColorCorrection(
+                Arrays.asList(ColorCorrectionAlgo.GAMMA_DECODE_2_2),
+                CustomStretchRgbParameters.newEmpty(),
+                CustomStretchHsvParameters.newFullRange()
+        );
+        var cc2 = cc1.copyWith(Arrays.asList(ColorCorrectionAlgo.GAMMA_DECODE_2_2));
+        assertEquals(cc1, cc2);
+        assertEquals(cc1.hashCode(), cc2.hashCode());
+        assertNotEquals(cc1, cc1.copyWith(Arrays.asList(ColorCorrectionAlgo.GAMMA_DECODE_1_2)));
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PixelBufferTest {
+    static final int[] TYPES = {
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_BYTE_INDEXED,
+            BufferedImage.TYPE_USHORT_565_RGB,
+    };
+    @BeforeClass
+    public static void setup() {
+        Par.init();
+    }
+    static BufferedImage randomImage(int width, int height, int type) {
+        Random random = new Random(type);
+        BufferedImage res = new BufferedImage(width, height, type);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                res.setRGB(i, j, random.nextInt());
+            }
+        }
+        return res;
+    }
+    static void assertSameAsGetRgb(BufferedImage image) {
+        PixelBuffer pixels = PixelBuffer.of(image);
+        assertEquals(image.getWidth(), pixels.width);
+        assertEquals(image.getHeight(), pixels.height);
+        int[] row = new int[image.getWidth()];
+        for (int j = 0; j < image.getHeight(); j++) {
+            pixels.getRow(0, j, image.getWidth(), row);
+            for (int i = 0; i < image.getWidth(); i++) {
+                assertEquals("type " + image.getType() + " at " + i + "," + j, image.getRGB(i, j), pixels.get(i, j));
+                assertEquals(image.getRGB(i, j), row[i]);
+            }
+        }
+    }
+    @Test
+    public void readTest() {
+        for (int type : TYPES) {
+            BufferedImage image = randomImage(37, 23, type);
+            assertSameAsGetRgb(image);
+            assertSameAsGetRgb(image.getSubimage(3, 5, 20, 11));
+        }
+    }
+    @Test
+    public void directTest() {
+        BufferedImage image = randomImage(17, 13, BufferedImage.TYPE_INT_RGB);
+        assertNotNull(PixelBuffer.direct(image));
+        assertNull(PixelBuffer.direct(randomImage(17, 13, BufferedImage.TYPE_3BYTE_BGR)));
+        PixelBuffer pixels = PixelBuffer.direct(image.getSubimage(2, 3, 10, 8));
+        pixels.set(1, 2, 0x123456);
+        assertEquals(0xff123456, image.getRGB(3, 5));
+        int[] row = {0x010203, 0x040506};
+        pixels.setRow(4, 7, 2, row);
+        assertEquals(0xff010203, image.getRGB(6, 10));
+        assertEquals(0xff040506, image.getRGB(7, 10));
+    }
+    @Test
+    public void newRgbImageTest() {
+        PixelBuffer pixels = PixelBuffer.newRgbImage(5, 4);
+        assertEquals(BufferedImage.TYPE_INT_RGB, pixels.image.getType());
+        pixels.set(4, 3, 0xabcdef);
+        assertEquals(0xffabcdef, pixels.image.getRGB(4, 3));
+        assertEquals(0xffabcdef, pixels.get(4, 3));
+    }
+}
@@ -0,0 +1,243 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class PointwiseColorPipelineTest {
+    @BeforeClass
+    public static void setup() {
+        Par.init();
+    }
+    static BufferedImage randomImage(int width, int height) {
+        Random random = new Random(1);
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                res.setRGB(i, j, random.nextInt());
+            }
+        }
+        return res;
+    }
+    static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                assertEquals("at " + i + "," + j, expected.getRGB(i, j), actual.getRGB(i, j));
+            }
+        }
+    }
+    /**
+     * The step-by-step implementations as they were before the per-pixel algos were fused,
+     * one BufferedImage per step; the fused pipeline must give the same pixels.
+     */
+    static class Reference {
+        static BufferedImage filterColor(BufferedImage src, IntUnaryOperator changeColor) {
+            var res = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+            for (int j = 0; j < src.getHeight(); j++) {
+                for (int i = 0; i < src.getWidth(); i++) {
+                    res.setRGB(i, j, changeColor.applyAsInt(src.getRGB(i, j)));
+                }
+            }
+            return res;
+        }
+        static BufferedImage filterRed(BufferedImage src) {
+            return filterColor(src, color -> (color & 0xff0000) | (color>>8 & 0x00ff00) | (color>>16 & 0x0000ff));
+        }
+        static BufferedImage filterBlue(BufferedImage src) {
+            return filterColor(src, color -> (color<<16 & 0xff0000) | (color<<8 & 0x00ff00) | (color & 0x0000ff));
+        }
+        static BufferedImage filterBlueGreenColor(BufferedImage src) {
+            return filterColor(src, color -> color & 0x00ffff);
+        }
+        static BufferedImage balanceColors(BufferedImage src, double gamma) {
+            return filterColor(src, color -> {
+                int r1 = gamma(gamma, 0xff & (color >> 16));
+                int g1 = gamma(gamma, 0xff & (color >> 8));
+                int b1 = gamma(gamma, 0xff & (color));
+                return (r1 << 16) | (g1 << 8) | (b1);
+            });
+        }
+        static int gamma(double gamma, int colorValue) {
+            double res = Math.pow((colorValue / 255.), gamma) * 255.;
+            return (int) Math.round(res);
+        }
+        static BufferedImage rotateColorsSimple(BufferedImage src, int hLowerDeg) {
+            HTargetRange tr = HTargetRange.newFullRangeFrom(hLowerDeg/360.);
+            double mh = tr.maxH - tr.minH;
+            float[] hsv = { 0.f, 0.f, 0.f };
+            var res = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+            for (int j = 0; j < src.getHeight(); j++) {
+                for (int i = 0; i < src.getWidth(); i++) {
+                    int color = src.getRGB(i, j);
+                    hsv = Color.RGBtoHSB(0xff & (color >> 16), 0xff & (color >> 8), 0xff & (color), hsv);
+                    float h1 = (float) MyMath.frac(hsv[0]*mh + tr.minH);
+                    res.setRGB(i, j, Color.HSBtoRGB(h1, hsv[1], hsv[2]));
+                }
+            }
+            return res;
+        }
+        static BufferedImage stretchColorsRgb(BufferedImage src, boolean perChannel) {
+            final int M = 16;
+            RgbRange cr = RgbColorBalancer.getRgbRangeFromImage(M, src.getWidth() - M, M, src.getHeight() - M, src, false);
+            return stretchColorsUsingRgbRange(cr, src, perChannel, false, false);
+        }
+        static BufferedImage stretchColorsUsingRgbRange(RgbRange cr, BufferedImage src,
+                                                        boolean perChannel, boolean saturate, boolean saturateToBlack) {
+            int[] min = {cr.minR, cr.minG, cr.minB};
+            int[] d = {cr.maxR - cr.minR, cr.maxG - cr.minG, cr.maxB - cr.minB};
+            if (!perChannel) {
+                int minV = Math.min(cr.minR, Math.min(cr.minG, cr.minB));
+                int maxV = Math.max(cr.maxR, Math.max(cr.maxG, cr.maxB));
+                Arrays.fill(min, minV);
+                Arrays.fill(d, maxV - minV);
+            }
+            return filterColor(src, color -> {
+                int res = 0;
+                for (int n = 0; n < 3; n++) {
+                    int x = ((0xff & (color >> (16 - 8 * n))) - min[n]) * 255 / d[n];
+                    int x1 = saturate && !saturateToBlack ? Math.max(0, Math.min(255, x))
+                           : saturateToBlack ? 0xff & Math.max(0, Math.min(256, x))
+                           : 0xff & x;
+                    res = (res << 8) | x1;
+                }
+                return res;
+            });
+        }
+    }
+    @Test
+    public void fusedSameAsStepByStepTest() {
+        BufferedImage src = randomImage(53, 37);
+        BufferedImage expected = src;
+        expected = Reference.balanceColors(expected, 2.2);
+        expected = Reference.rotateColorsSimple(expected, 60);
+        expected = Reference.filterRed(expected);
+        expected = Reference.balanceColors(expected, 1 / 1.4);
+        var cc = new ColorCorrection(
+                Arrays.asList(
+                        ColorCorrectionAlgo.GAMMA_DECODE_2_2,
+                        ColorCorrectionAlgo.ROTATE_H_HSV_H060,
+                        ColorCorrectionAlgo.FILTER_RED,
+                        ColorCorrectionAlgo.GAMMA_ENCODE_1_4
+                ),
+                CustomStretchRgbParameters.newEmpty(),
+                CustomStretchHsvParameters.newFullRange()
+        );
+        assertSameImage(expected, cc.doColorCorrection(src, ColorCorrection.Command.SHOW));
+    }
+    @Test
+    public void barrierTest() {
+        BufferedImage src = randomImage(41, 29);
+        BufferedImage expected = src;
+        expected = Reference.filterBlue(expected);
+        expected = Reference.stretchColorsRgb(expected, true);
+        expected = Reference.balanceColors(expected, 1.8);
+        var cc = new ColorCorrection(
+                Arrays.asList(
+                        ColorCorrectionAlgo.FILTER_BLUE,
+                        ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB,
+                        ColorCorrectionAlgo.GAMMA_DECODE_1_8
+                ),
+                CustomStretchRgbParameters.newEmpty(),
+                CustomStretchHsvParameters.newFullRange()
+        );
+        assertSameImage(expected, cc.doColorCorrection(src, ColorCorrection.Command.SHOW));
+    }
+    @Test
+    public void failedStepIsSkippedTest() {
+        BufferedImage src = randomImage(23, 19);
+        BufferedImage expected = src;
+        expected = Reference.balanceColors(expected, 2.2);
+        expected = Reference.filterRed(expected);
+        List<Supplier<IntUnaryOperator>> ops = Arrays.asList(
+                GammaColorBalancer.gammaOperator(2.2),
+                () -> color -> { throw new IllegalStateException("test"); },
+                () -> CyanRedColorFilter.RED_AS_WHITE
+        );
+        assertSameImage(expected, ColorCorrection.applyPixelOpsOrSkipFailed(src, ops));
+    }
+    @Test
+    public void noOpsTest() {
+        BufferedImage src = randomImage(10, 10);
+        List<ColorCorrectionAlgo> algos = Arrays.asList(ColorCorrectionAlgo.DO_NOTHING, ColorCorrectionAlgo.GET_STATS);
+        var cc = new ColorCorrection(algos, CustomStretchRgbParameters.newEmpty(), CustomStretchHsvParameters.newFullRange());
+        assertSame(src, cc.doColorCorrection(src, ColorCorrection.Command.SHOW));
+        assertNull(PointwiseColorPipeline.pixelOperator(ColorCorrectionAlgo.UNGLARE1, cc));
+    }
+    @Test
+    public void channelLutTest() {
+        for (double gamma : new double[]{2.4, 1 / 2.2, 1.}) {
+            ChannelLut lut = GammaColorBalancer.gammaOperator(gamma);
+            for (int v = 0; v < 256; v++) {
+                int v1 = (int) Math.round(Math.pow(v / 255., gamma) * 255.);
+                assertEquals((v1 << 16) | (v1 << 8) | v1, lut.applyAsInt(0xff000000 | (v << 16) | (v << 8) | v));
+            }
+        }
+        RgbRange cr = RgbRange.newFullRange();
+        cr.minR = 10; cr.maxR = 200;
+        cr.minG = 30; cr.maxG = 250;
+        cr.minB = 0; cr.maxB = 100;
+        Random random = new Random(3);
+        for (boolean saturate : new boolean[]{false, true}) {
+            for (boolean saturateToBlack : new boolean[]{false, true}) {
+                ChannelLut lut = RgbColorBalancer.stretchColorsUsingRgbRangeOperator(cr, true, saturate, saturateToBlack);
+                for (int k = 0; k < 10_000; k++) {
+                    int color = random.nextInt();
+                    int[] c = {0xff & (color >> 16), 0xff & (color >> 8), 0xff & color};
+                    int[] min = {cr.minR, cr.minG, cr.minB};
+                    int[] d = {cr.maxR - cr.minR, cr.maxG - cr.minG, cr.maxB - cr.minB};
+                    int expected = 0;
+                    for (int n = 0; n < 3; n++) {
+                        int x = (c[n] - min[n]) * 255 / d[n];
+                        int x1 = saturateToBlack ? 0xff & Math.max(0, Math.min(256, x))
+                               : saturate ? Math.max(0, Math.min(255, x))
+                               : 0xff & x;
+                        expected = (expected << 8) | x1;
+                    }
+                    assertEquals(expected, lut.applyAsInt(color));
+                }
+            }
+        }
+    }
+    @Test
+    public void channelLutFusionTest() {
+        BufferedImage src = randomImage(47, 31);
+        RgbRange range = RgbRange.newFullRange();
+        range.minR = range.minG = range.minB = 20;
+        range.maxR = range.maxG = range.maxB = 220;
+        var csrp = new CustomStretchRgbParameters(range, true, true, false);
+        BufferedImage expected = src;
+        expected = Reference.stretchColorsUsingRgbRange(range, expected, true, true, false);
+        expected = Reference.balanceColors(expected, 2.2);
+        expected = Reference.filterBlueGreenColor(expected);
+        var cc = new ColorCorrection(
+                Arrays.asList(
+                        ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB3,
+                        ColorCorrectionAlgo.GAMMA_DECODE_2_2,
+                        ColorCorrectionAlgo.FILTER_BLUE_GREEN_COLOR
+                ),
+                csrp,
+                CustomStretchHsvParameters.newFullRange()
+        );
+        assertSameImage(expected, cc.doColorCorrection(src, ColorCorrection.Command.SHOW));
+        List<Supplier<IntUnaryOperator>> ops = Arrays.asList(
+                PointwiseColorPipeline.pixelOperator(ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB3, cc),
+                PointwiseColorPipeline.pixelOperator(ColorCorrectionAlgo.GAMMA_DECODE_2_2, cc),
+                PointwiseColorPipeline.pixelOperator(ColorCorrectionAlgo.FILTER_BLUE_GREEN_COLOR, cc),
+                PointwiseColorPipeline.pixelOperator(ColorCorrectionAlgo.FILTER_RED, cc),
+                PointwiseColorPipeline.pixelOperator(ColorCorrectionAlgo.GAMMA_ENCODE_2_2, cc)
+        );
+        // one curve, the filter that mixes channels, one more curve
+        assertEquals(3, PointwiseColorPipeline.fuseChannelLuts(ops).size());
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.martianch.curieux;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RenderSchedulerTest {
+    @Test
+    public void latestWinsTest() throws Exception {
+        var scheduler = new RenderScheduler();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(1);
+        List<Integer> computed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> shown = Collections.synchronizedList(new ArrayList<>());
+        scheduler.submit(
+                () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    computed.add(1);
+                    return 1;
+                },
+                shown::add
+        );
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 2; i <= 5; i++) {
+            int n = i;
+            scheduler.submit(
+                    () -> {
+                        computed.add(n);
+                        return n;
+                    },
+                    x -> {
+                        shown.add(x);
+                        done.countDown();
+                    }
+            );
+        }
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        javax.swing.SwingUtilities.invokeAndWait(() -> {});
+        // job 1 was running, jobs 2..4 were superseded before they started
+        assertEquals(Arrays.asList(1, 5), computed);
+        assertEquals(Arrays.asList(5), shown);
+    }
+    @Test
+    public void cancelAllTest() throws Exception {
+        var scheduler = new RenderScheduler();
+        List<Integer> shown = Collections.synchronizedList(new ArrayList<>());
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var finished = new CountDownLatch(1);
+        scheduler.submit(
+                () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    finished.countDown();
+                    return 1;
+                },
+                shown::add
+        );
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scheduler.cancelAll();
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        javax.swing.SwingUtilities.invokeAndWait(() -> {});
+        javax.swing.SwingUtilities.invokeAndWait(() -> {});
+        assertTrue(shown.isEmpty());
+    }
+    @Test
+    public void previewTest() throws Exception {
+        var scheduler = new RenderScheduler();
+        var done = new CountDownLatch(1);
+        List<String> shown = Collections.synchronizedList(new ArrayList<>());
+        scheduler.submit(
+                () -> "preview",
+                shown::add,
+                () -> "full",
+                x -> {
+                    shown.add(x);
+                    done.countDown();
+                }
+        );
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("preview", "full"), shown);
+    }
+    @Test
+    public void abandonTest() throws Exception {
+        var scheduler = new RenderScheduler();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        // outside of a job, there is nothing to abandon
+        scheduler.abandonIfSuperseded();
+        scheduler.submit(
+                () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return "preview";
+                },
+                events::add,
+                () -> {
+                    events.add("full started");
+                    return "full";
+                },
+                events::add
+        );
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scheduler.submit(
+                () -> {
+                    try {
+                        scheduler.abandonIfSuperseded();
+                    } catch (CancellationException e) {
+                        events.add("abandoned");
+                    }
+                    return "next";
+                },
+                x -> {
+                    events.add(x);
+                    done.countDown();
+                }
+        );
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // the superseded job does not go on after the preview, and the current one is not abandoned
+        assertEquals(Arrays.asList("next"), events);
+        assertTrue(RenderScheduler.isAbandoned(new RuntimeException(new CancellationException())));
+    }
+}
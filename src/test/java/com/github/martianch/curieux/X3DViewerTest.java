@@ -1,13 +1,24 @@
 package com.github.martianch.curieux;
 
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import javax.swing.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
 public class X3DViewerTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
     @Test
     public void testZoom_sizes() {
         Color red = new Color(255, 0, 0);
@@ -72,4 +83,163 @@ public class X3DViewerTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void proxyTest() {
+        var rd = new RawData(
+                new ImageAndPath(ZoomedImageIconTest.gradient(2000, 1500), "l.png", "l.png"),
+                new ImageAndPath(ZoomedImageIconTest.gradient(1000, 700), "r.png", "r.png")
+        );
+        var dp = new DisplayParameters();
+        dp.zoom = .5;
+        dp.offsetX = 40;
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        int proxyLevel = X3DViewer.proxyLevel(rd, ms);
+        assertEquals(1, proxyLevel);
+        var x3dViewer = new X3DViewer();
+        List<Icon> full = x3dViewer.renderBothImages(rd, dp, ms.copy(), false);
+        List<Icon> proxy = x3dViewer.renderProxy(rd, dp, ms.copy(), false, proxyLevel);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(full.get(i).getIconWidth(), proxy.get(i).getIconWidth(), 2);
+            assertEquals(full.get(i).getIconHeight(), proxy.get(i).getIconHeight(), 2);
+        }
+        // the proxy image is kept in the stage cache of the pane, and reused
+        BufferedImage proxyL = x3dViewer.stageCacheL.getCachedOutput(PipelineStageCache.Stage.PROXY);
+        assertEquals(1000, proxyL.getWidth());
+        assertSame(proxyL, X3DViewer.proxyImage(x3dViewer.stageCacheL, rd.left.image, proxyLevel));
+        assertEquals(500, x3dViewer.stageCacheR.getCachedOutput(PipelineStageCache.Stage.PROXY).getWidth());
+        // no preview if what is shown depends on the exact pixel positions
+        ms.measurementShown = true;
+        assertEquals(0, X3DViewer.proxyLevel(rd, ms));
+    }
+    @Test
+    public void proxyAbandonTest() throws Exception {
+        var rd = new RawData(
+                new ImageAndPath(ZoomedImageIconTest.gradient(2000, 1500), "l.png", "l.png"),
+                new ImageAndPath(ZoomedImageIconTest.gradient(1000, 700), "r.png", "r.png")
+        );
+        var dp = new DisplayParameters();
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        var x3dViewer = new X3DViewer();
+        var result = new CompletableFuture<String>();
+        x3dViewer.renderScheduler.submit(
+                () -> {
+                    // as if a newer rendering request came while the preview is being rendered
+                    x3dViewer.renderScheduler.cancelAll();
+                    try {
+                        x3dViewer.renderProxy(rd, dp, ms, false, 1);
+                        result.complete("rendered");
+                    } catch (RuntimeException e) {
+                        result.complete(RenderScheduler.isAbandoned(e) ? "abandoned" : e.toString());
+                    }
+                    return null;
+                },
+                x -> {}
+        );
+        assertEquals("abandoned", result.get(10, TimeUnit.SECONDS));
+    }
+    @Test
+    public void fisheyeProxyTest() {
+        var rd = new RawData(
+                new ImageAndPath(ZoomedImageIconTest.gradient(400, 300), "l.png", "l.png"),
+                new ImageAndPath(ZoomedImageIconTest.gradient(400, 300), "r.png", "r.png")
+        );
+        var dp = new DisplayParameters();
+        dp.lFisheyeCorrection = dp.rFisheyeCorrection = FisheyeCorrection.of(
+                FisheyeCorrectionAlgo.UNFISH1,
+                QuadraticPolynomial.of(0.0002, 0.9, 0.),
+                DistortionCenterLocation.of(DistortionCenterStationing.CENTER, DistortionCenterStationing.CENTER),
+                2.
+        );
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        var x3dViewer = new X3DViewer();
+        // the fisheye correction is not done to the smaller images, so the corrected image must be cached
+        assertNull(x3dViewer.renderProxy(rd, dp, ms.copy(), false, 1));
+        List<Icon> full = x3dViewer.renderBothImages(rd, dp, ms.copy(), false);
+        var cc = dp.lColorCorrection.copyWith(Arrays.asList(ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB));
+        var newDp = dp.withColorCorrection(cc, cc);
+        List<Icon> proxy = x3dViewer.renderProxy(rd, newDp, ms.copy(), false, 1);
+        assertNotNull(proxy);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(full.get(i).getIconWidth(), proxy.get(i).getIconWidth(), 2);
+            assertEquals(full.get(i).getIconHeight(), proxy.get(i).getIconHeight(), 2);
+        }
+    }
+    @Test
+    public void viewportInImageTest() {
+        var identity = new AffineTransform();
+        assertEquals(new Rectangle(10, 5, 20, 15), X3DViewer.viewportInImage(new Rectangle(20, 10, 40, 30), 400, 300, identity, 2., 0, 0));
+        // the image is drawn from (10, 6) on the canvas
+        assertEquals(new Rectangle(5, 2, 20, 15), X3DViewer.viewportInImage(new Rectangle(20, 10, 40, 30), 400, 300, identity, 2., 5, 3));
+        // clipped to the image
+        assertEquals(new Rectangle(0, 0, 400, 300), X3DViewer.viewportInImage(new Rectangle(0, 0, 1000, 1000), 400, 300, identity, 1., 0, 0));
+        assertTrue(X3DViewer.viewportInImage(new Rectangle(500, 0, 100, 100), 400, 300, identity, 1., 0, 0).isEmpty());
+        // the rotated image is 300x400; its top 100 rows are the left 100 columns or the right 100 columns of the image
+        var rotation = X3DViewer.rotationTransform(400, 300, 90.);
+        Rectangle r = X3DViewer.viewportInImage(new Rectangle(0, 0, 300, 100), 400, 300, rotation, 1., 0, 0);
+        assertEquals(100, r.width);
+        assertEquals(300, r.height);
+        assertTrue(r.x == 0 || r.x == 300);
+    }
+    @Test
+    public void processImageForStatsTest() {
+        var rd = new RawData(
+                new ImageAndPath(ZoomedImageIconTest.gradient(40, 30), "l.png", "l.png"),
+                new ImageAndPath(ZoomedImageIconTest.gradient(40, 30), "r.png", "r.png")
+        );
+        var dp = new DisplayParameters();
+        dp.imageResamplingModeL = dp.imageResamplingModeR = ImageResamplingMode.NEAREST;
+        var cc = dp.lColorCorrection.copyWith(Arrays.asList(
+                ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB, ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB3
+        ));
+        dp = dp.withColorCorrection(cc, cc);
+        var ms = new MeasurementStatus();
+        ms.measurementShown = false;
+        var x3dViewer = new X3DViewer();
+        // at zoom 1 and angle 0, the image for stats is what the whole pipeline makes for the command
+        var expected = x3dViewer.processBothImages(rd, dp, ms, ColorCorrection.Command.GET_RANGE_RGB).get(1);
+        var actual = x3dViewer.processImageForStats(rd, dp, ColorCorrection.Command.GET_RANGE_RGB, true);
+        GeometricWarpTest.assertSameImages(expected, actual);
+    }
+    @Test
+    public void statsForAreaTest() {
+        var rd = new RawData(
+                new ImageAndPath(PointwiseColorPipelineTest.randomImage(200, 150), "l.png", "l.png"),
+                new ImageAndPath(PointwiseColorPipelineTest.randomImage(200, 150), "r.png", "r.png")
+        );
+        var x3dViewer = new X3DViewer();
+        List<List<ColorCorrectionAlgo>> chains = Arrays.asList(
+                // only the area with a margin is color corrected
+                Arrays.asList(ColorCorrectionAlgo.GAMMA_DECODE_2_2, ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB3, ColorCorrectionAlgo.FILTER_RED),
+                // the stretch depends on the whole image
+                Arrays.asList(ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB, ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB3)
+        );
+        List<Rectangle> areas = Arrays.asList(
+                new Rectangle(50, 40, 60, 30),
+                new Rectangle(0, 0, 200, 150),
+                new Rectangle(0, 100, 30, 50),
+                new Rectangle(180, 10, 20, 20)
+        );
+        for (List<ColorCorrectionAlgo> chain : chains) {
+            var dp = new DisplayParameters();
+            var cc = dp.lColorCorrection.copyWith(chain);
+            dp = dp.withColorCorrection(cc, cc);
+            assertEquals(chain.get(0).notNothing() && chain.get(0) != ColorCorrectionAlgo.STRETCH_CONTRAST_RGB_RGB,
+                    cc.isPerPixelUpTo(ColorCorrection.Command.GET_RANGE_RGB));
+            BufferedImage image = x3dViewer.processImageForStats(rd, dp, ColorCorrection.Command.GET_RANGE_RGB, false);
+            for (Rectangle area : areas) {
+                for (boolean ignoreBroken : new boolean[]{false, true}) {
+                    assertEquals(
+                            chain + " " + area,
+                            RgbColorBalancer.getRgbRangeWithStatsFromImage(area, image, ignoreBroken, 1),
+                            x3dViewer.statsForArea(rd, dp, ColorCorrection.Command.GET_RANGE_RGB, false,
+                                    size -> new Rectangle(area),
+                                    (a, img) -> RgbColorBalancer.getRgbRangeWithStatsFromImage(a, img, ignoreBroken, 1))
+                    );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class ZoomResamplerTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    /** what ZoomedImageIcon.toBufferedImage() did before */
+    static BufferedImage drawImage(ZoomedImageIcon icon) {
+        BufferedImage res = new BufferedImage(icon.canvasWidth, icon.canvasHeight, icon.image.getType());
+        Graphics2D g = res.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, icon.imageResamplingMode.getRenderingHint());
+        g.drawImage(icon.image, icon.xToDrawFrom, icon.yToDrawFrom, icon.newImageWidth, icon.newImageHeight, null);
+        g.dispose();
+        return res;
+    }
+    static double meanDifference(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        long sum = 0;
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                int e = expected.getRGB(i, j);
+                int a = actual.getRGB(i, j);
+                for (int shift = 0; shift <= 24; shift += 8) {
+                    sum += Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+                }
+            }
+        }
+        return (double) sum / expected.getWidth() / expected.getHeight() / 4;
+    }
+    @Test
+    public void nearestTest() {
+        BufferedImage image1 = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage image2 = ZoomedImageIconTest.gradient(60, 50);
+        for (double zoom : new double[]{.3, .5, 1., 1.7, 3.}) {
+            var icon = ZoomedImageIcon.of(image1, zoom, image2, 1., 7, -3, ImageResamplingMode.NEAREST);
+            GeometricWarpTest.assertSameImages(drawImage(icon), icon.toBufferedImage());
+        }
+    }
+    @Test
+    public void interpolationTest() {
+        BufferedImage image1 = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage image2 = ZoomedImageIconTest.gradient(60, 50);
+        for (ImageResamplingMode mode : new ImageResamplingMode[]{ImageResamplingMode.BILINEAR, ImageResamplingMode.BICUBIC}) {
+            for (double zoom : new double[]{.5, 1., 2.5}) {
+                var icon = ZoomedImageIcon.of(image1, zoom, image2, 1., 5, 5, mode);
+                BufferedImage actual = icon.toBufferedImage();
+                assertEquals(image1.getType(), actual.getType());
+                double diff = meanDifference(drawImage(icon), actual);
+                assertTrue(mode + " " + zoom + ": " + diff, diff < 1.);
+            }
+        }
+    }
+    @Test
+    public void lanczosTest() {
+        BufferedImage image = ImageAndPath._dummyImage(new Color(10, 100, 200), 40, 30);
+        var icon = ZoomedImageIcon.of(image, 2.3, image, 2.3, 0, 0, ImageResamplingMode.LANCZOS);
+        BufferedImage zoomed = icon.toBufferedImage();
+        for (int j = 0; j < zoomed.getHeight(); j++) {
+            for (int i = 0; i < zoomed.getWidth(); i++) {
+                assertEquals(image.getRGB(0, 0), zoomed.getRGB(i, j));
+            }
+        }
+    }
+    @Test
+    public void transparentMarginTest() {
+        // a rotated image: opaque pixels and a transparent margin
+        BufferedImage image = X3DViewer.rotate(ImageAndPath._dummyImage(Color.WHITE, 40, 30), X3DViewer.rotationTransform(40, 30, 20.));
+        for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+            BufferedImage zoomed = ZoomedImageIcon.of(image, 1.5, image, 1.5, 0, 0, mode).toBufferedImage();
+            for (int j = 0; j < zoomed.getHeight(); j++) {
+                for (int i = 0; i < zoomed.getWidth(); i++) {
+                    int p = zoomed.getRGB(i, j);
+                    if ((p >>> 24) != 0) {
+                        assertEquals(mode + " at " + i + "," + j, 0xffffff, p & 0xffffff);
+                    }
+                }
+            }
+        }
+    }
+    @Test
+    public void areaTest() {
+        BufferedImage image1 = ZoomedImageIconTest.gradient(40, 30);
+        BufferedImage image2 = ZoomedImageIconTest.gradient(60, 50);
+        for (ImageResamplingMode mode : ImageResamplingMode.values()) {
+            var icon = ZoomedImageIcon.of(image1, 2., image2, 1., 3, 4, mode);
+            BufferedImage full = icon.toBufferedImage();
+            Rectangle area = new Rectangle(11, 13, 50, 40);
+            BufferedImage part = ZoomResampler.render(icon, area);
+            GeometricWarpTest.assertSameImages(full.getSubimage(area.x, area.y, area.width, area.height), part);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.martianch.curieux;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class ZoomedImageIconTest {
+    @BeforeClass
+    public static void init() {
+        Par.init();
+    }
+    static BufferedImage gradient(int width, int height) {
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                res.setRGB(i, j, ((i * 255 / width) << 16) | ((j * 255 / height) << 8) | 0x40);
+            }
+        }
+        return res;
+    }
+    static void assertSameAsZoom(BufferedImage image1, double zoom1, BufferedImage image2, double zoom2, int offX, int offY) {
+        var icon = ZoomedImageIcon.of(image1, zoom1, image2, zoom2, offX, offY, ImageResamplingMode.NEAREST);
+        var zoomed = X3DViewer.zoom(image1, zoom1, image2, zoom2, offX, offY, ImageResamplingMode.NEAREST);
+        assertEquals(zoomed.getWidth(), icon.getIconWidth());
+        assertEquals(zoomed.getHeight(), icon.getIconHeight());
+        BufferedImage painted = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = painted.createGraphics();
+        // paint in two halves, like a viewport that shows only a part of the image
+        int half = icon.getIconHeight() / 2;
+        g.setClip(0, 0, icon.getIconWidth(), half);
+        icon.paintIcon(null, g, 0, 0);
+        g.setClip(0, half, icon.getIconWidth(), icon.getIconHeight() - half);
+        icon.paintIcon(null, g, 0, 0);
+        g.dispose();
+        for (int j = 0; j < zoomed.getHeight(); j++) {
+            for (int i = 0; i < zoomed.getWidth(); i++) {
+                assertEquals("at " + i + "," + j, zoomed.getRGB(i, j), painted.getRGB(i, j));
+            }
+        }
+    }
+    @Test
+    public void sameAsZoomTest() {
+        BufferedImage image1 = gradient(40, 30);
+        BufferedImage image2 = gradient(60, 50);
+        assertSameAsZoom(image1, 1., image2, 1., 0, 0);
+        assertSameAsZoom(image1, 3., image2, 1., 10, -5);
+        assertSameAsZoom(image2, 1., image1, 3., -10, 5);
+        assertSameAsZoom(image1, .5, image2, 2., 7, 9);
+    }
+    @Test
+    public void toBufferedImageTest() {
+        BufferedImage image1 = gradient(40, 30);
+        BufferedImage image2 = gradient(60, 50);
+        var icon = ZoomedImageIcon.of(image1, 2., image2, 1., 5, 5, ImageResamplingMode.NEAREST);
+        var bi = icon.toBufferedImage();
+        assertEquals(icon.getIconWidth(), bi.getWidth());
+        assertEquals(icon.getIconHeight(), bi.getHeight());
+        assertEquals(image1.getRGB(0, 0), bi.getRGB(icon.xToDrawFrom, icon.yToDrawFrom));
+    }
+}